@@ -1,5 +1,6 @@
 package org.margin.server.authentication.controllers;
 
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -7,6 +8,7 @@ import org.margin.server.authentication.models.AuthResponse;
 import org.margin.server.authentication.services.AuthenticationService;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -21,10 +23,21 @@ public class AuthenticationController {
     }
 
     @PostMapping("/login")
-    public AuthResponse login(@RequestBody LoginRequest request) {
+    public AuthResponse login(@RequestBody LoginRequest request, HttpServletRequest httpRequest) {
         log.info("Login attempt for username: {}", request.username());
 
-        return authService.authenticateUser(request.username(), request.password());
+        return authService.authenticateUser(request.username(), request.password(), httpRequest.getRemoteAddr());
+    }
+
+    @PostMapping("/logout")
+    public ResponseEntity<Void> logout(@RequestHeader(value = "Authorization", required = false) String authHeader) {
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+
+        return authService.logout(authHeader.substring(7))
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
     }
 
     @PostMapping("/register")
@@ -32,17 +45,12 @@ public class AuthenticationController {
         log.info("Registration attempt for username: {}", request.username());
 
         try {
-            authService.registerUser(
+            AuthResponse authResponse = authService.registerUser(
                     request.username(),
                     request.email(),
                     request.password()
             );
 
-            AuthResponse authResponse = authService.authenticateUser(
-                    request.username(),
-                    request.password()
-            );
-
             log.info("Successfully registered user {}", request.username());
             return ResponseEntity.status(HttpStatus.CREATED).body(authResponse);
 
@@ -0,0 +1,22 @@
+package org.margin.server.authentication.models;
+
+import java.security.Principal;
+import java.time.Instant;
+
+/**
+ * Identity carried by a JWT whose signature and expiry have already been verified.
+ * {@code role} and {@code serverDomain} are null for tokens issued before they became claims.
+ */
+public record JwtPrincipal(
+        Long userId,
+        String username,
+        String role,
+        String serverDomain,
+        Instant expiresAt
+) implements Principal {
+
+    @Override
+    public String getName() {
+        return username;
+    }
+}
@@ -1,72 +1,82 @@
 package org.margin.server.authentication.services;
 
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.BadCredentialsException;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.margin.server.authentication.models.AuthResponse;
 import org.margin.server.config.FederationConfig;
+import org.margin.server.users.UserService;
 import org.margin.server.users.models.Role;
 import org.margin.server.users.models.User;
 import org.margin.server.users.repositories.UserRepository;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 @Service
 @Slf4j
 public class AuthenticationService {
-    private static final int MAX_FAILED_ATTEMPTS = 3;
-    private static final int LOCK_DURATION_SECONDS = 30;
-
-    private final AuthenticationManager authenticationManager;
     private final UserRepository userRepository;
     private final JwtService jwtService;
-    private final PasswordEncoder passwordEncoder;
+    private final PasswordHashingService passwordHashingService;
     private final FederationConfig federationConfig;
+    private final UserService userService;
+    private final LoginThrottle loginThrottle;
 
     public AuthenticationService(
-            AuthenticationManager authenticationManager,
             UserRepository userRepository,
             JwtService jwtService,
-            PasswordEncoder passwordEncoder,
-            FederationConfig federationConfig) {
-        this.authenticationManager = authenticationManager;
+            PasswordHashingService passwordHashingService,
+            FederationConfig federationConfig,
+            UserService userService,
+            LoginThrottle loginThrottle) {
         this.userRepository = userRepository;
         this.jwtService = jwtService;
-        this.passwordEncoder = passwordEncoder;
+        this.passwordHashingService = passwordHashingService;
         this.federationConfig = federationConfig;
+        this.userService = userService;
+        this.loginThrottle = loginThrottle;
     }
 
-    public AuthResponse authenticateUser(String username, String password) {
-        try {
-            User user = userRepository.findByUsername(username)
-                    .orElseThrow(() -> new BadCredentialsException("Invalid credentials"));
+    /**
+     * The password is checked against the already loaded user on the hashing pool, so a login costs one user lookup
+     * and one BCrypt comparison. Failures are counted in memory; the user row is only written when the account
+     * becomes locked or a login clears a persisted lock.
+     */
+    public AuthResponse authenticateUser(String username, String password, String clientAddress) {
+        if (clientAddress != null && loginThrottle.isAddressBlocked(clientAddress)) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many failed logins, retry later");
+        }
 
-            if (isAccountLocked(user)) {
-                throw new BadCredentialsException("Account is locked until " + user.getAccountLockedUntil());
-            }
+        User user = userRepository.findByUsername(username).orElse(null);
 
-            authenticationManager.authenticate(
-                    new UsernamePasswordAuthenticationToken(username, password)
-            );
+        if (user == null || isAccountLocked(user) || loginThrottle.lockedUntil(username) != null
+                || !passwordHashingService.matches(password, user.getPassword())) {
+            handleFailedLogin(username, user, clientAddress);
+            throw new BadCredentialsException("Invalid credentials");
+        }
 
-            resetFailedAttempts(user);
+        loginThrottle.recordSuccess(username);
+        resetFailedAttempts(user);
 
-            String token = jwtService.generateToken(username, user.getId());
+        String token = jwtService.generateToken(user);
 
-            log.info("User {} authenticated successfully", username);
+        log.info("User {} authenticated successfully", username);
 
-            return new AuthResponse(true, "Login successful", username, token);
+        return new AuthResponse(true, "Login successful", username, token);
+    }
 
-        } catch (BadCredentialsException e) {
-            handleFailedLogin(username);
-            throw new BadCredentialsException("Invalid credentials");
-        }
+    public boolean logout(String token) {
+        return jwtService.revokeToken(token);
     }
 
-    public void registerUser(String username, String email, String password) {
+    /**
+     * Create the user and log them in with a token for the new row, without hashing the password a second time.
+     */
+    public AuthResponse registerUser(String username, String email, String password) {
         if (userRepository.findByUsername(username).isPresent()) {
             throw new IllegalArgumentException("Username already exists");
         }
@@ -74,11 +84,14 @@ public class AuthenticationService {
         User user = new User();
         user.setUsername(username);
         user.setEmail(email);
-        user.setPassword(passwordEncoder.encode(password));
+        user.setPassword(passwordHashingService.encode(password));
         user.setServerDomain(federationConfig.getServerDomain());
         user.setRole(Role.USER);
 
-        userRepository.save(user);
+        User saved = userRepository.save(user);
+        log.info("User {} registered", username);
+
+        return new AuthResponse(true, "Registration successful", username, jwtService.generateToken(saved));
     }
 
     private boolean isAccountLocked(User user) {
@@ -89,27 +102,28 @@ public class AuthenticationService {
         return user.getAccountLockedUntil().isAfter(LocalDateTime.now());
     }
 
-    private void handleFailedLogin(String username) {
-        userRepository.findByUsername(username).ifPresent(user -> {
+    private void handleFailedLogin(String username, User user, String clientAddress) {
+        Instant lockedUntil = loginThrottle.recordFailure(username, clientAddress);
+
+        if (lockedUntil != null && user != null) {
             user.setFailedLoginAttempts(user.getFailedLoginAttempts() + 1);
             user.setLastFailedLoginAttempt(LocalDateTime.now());
-
-            if (user.getFailedLoginAttempts() >= MAX_FAILED_ATTEMPTS) {
-                user.setAccountLockedUntil(LocalDateTime.now().plusSeconds(LOCK_DURATION_SECONDS));
-                log.warn("Account locked for user {} until {}",
-                        user.getUsername(), user.getAccountLockedUntil());
-            }
+            user.setAccountLockedUntil(LocalDateTime.ofInstant(lockedUntil, ZoneId.systemDefault()));
+            log.warn("Account locked for user {} until {}",
+                    user.getUsername(), user.getAccountLockedUntil());
 
             userRepository.save(user);
-        });
+            userService.evict(user.getId());
+        }
     }
 
     private void resetFailedAttempts(User user) {
-        if (user.getFailedLoginAttempts() > 0) {
+        if (user.getFailedLoginAttempts() > 0 || user.getAccountLockedUntil() != null) {
             user.setFailedLoginAttempts(0);
             user.setLastFailedLoginAttempt(null);
             user.setAccountLockedUntil(null);
             userRepository.save(user);
+            userService.evict(user.getId());
         }
     }
 }
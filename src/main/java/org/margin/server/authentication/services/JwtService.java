@@ -1,18 +1,32 @@
 package org.margin.server.authentication.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.margin.server.authentication.models.JwtPrincipal;
 import org.margin.server.users.UserService;
 import org.margin.server.users.models.User;
 
 import javax.crypto.SecretKey;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -23,17 +37,37 @@ import java.util.function.Function;
 @Slf4j
 public class JwtService {
     private final UserService userService;
+    private final MeterRegistry meterRegistry;
+    private final TokenRevocationService revocationService;
 	@Value("${jwt.secret}")
 	private String secret;
 	@Value("${jwt.expiration}") // 24 hours
 	private Long expiration;
+	@Value("${jwt.cache.maximum-size:100000}")
+	private long verifiedTokenCacheSize;
 
-    public JwtService(UserService userService) {
+	private SecretKey signingKey;
+	private JwtParser parser;
+	// Verified tokens keyed by SHA-256 of the token, each entry expiring with its token
+	private Cache<ByteBuffer, JwtPrincipal> verifiedTokens;
+
+    public JwtService(UserService userService, MeterRegistry meterRegistry, TokenRevocationService revocationService) {
         this.userService = userService;
+        this.meterRegistry = meterRegistry;
+        this.revocationService = revocationService;
     }
 
-	private SecretKey getSigningKey() {
-		return Keys.hmacShaKeyFor(secret.getBytes(StandardCharsets.UTF_8));
+	@PostConstruct
+	void init() {
+		signingKey = Keys.hmacShaKeyFor(secret.getBytes(StandardCharsets.UTF_8));
+		parser = Jwts.parserBuilder().setSigningKey(signingKey).build();
+		verifiedTokens = Caffeine.newBuilder()
+				.maximumSize(verifiedTokenCacheSize)
+				.expireAfter(Expiry.creating((ByteBuffer digest, JwtPrincipal principal) ->
+						Duration.between(Instant.now(), principal.expiresAt())))
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, verifiedTokens, "jwt-tokens");
 	}
 
     public String generateToken(String username, Long userId) {
@@ -42,8 +76,75 @@ public class JwtService {
         return createToken(claims, username);
     }
 
+    /**
+     * Issue a token carrying everything REST requests need to authorize, so they can be served without loading the
+     * user.
+     */
+    public String generateToken(User user) {
+        Map<String, Object> claims = new HashMap<>();
+        claims.put("userId", user.getId());
+        claims.put("role", user.getRole().name());
+        claims.put("serverDomain", user.getServerDomain());
+        return createToken(claims, user.getUsername());
+    }
+
+    /**
+     * Deny a single token for the rest of its lifetime. Returns false if the token was not valid to begin with.
+     */
+    public boolean revokeToken(String token) {
+        Optional<JwtPrincipal> principal = validateToken(token);
+        if (principal.isEmpty()) {
+            return false;
+        }
+
+        ByteBuffer digest = digest(token);
+        revocationService.revokeToken(digest, principal.get());
+        verifiedTokens.invalidate(digest);
+        return true;
+    }
+
+	/**
+	 * Verify the signature and expiry once and return the token's identity. Repeat calls for the same token are served
+	 * from a cache until the token expires.
+	 */
+	public Optional<JwtPrincipal> validateToken(String token) {
+		if (token == null || token.isEmpty()) {
+			return Optional.empty();
+		}
+
+		ByteBuffer digest = digest(token);
+		JwtPrincipal cached = verifiedTokens.getIfPresent(digest);
+		if (cached != null) {
+			return notRevoked(digest, cached);
+		}
+
+		try {
+			Claims claims = extractAllClaims(token);
+			JwtPrincipal principal = new JwtPrincipal(
+					claims.get("userId", Long.class),
+					claims.getSubject(),
+					claims.get("role", String.class),
+					claims.get("serverDomain", String.class),
+					claims.getExpiration().toInstant()
+			);
+			verifiedTokens.put(digest, principal);
+			return notRevoked(digest, principal);
+		} catch (JwtException | IllegalArgumentException e) {
+			log.debug("Rejected JWT: {}", e.getMessage());
+			return Optional.empty();
+		}
+	}
+
+	private Optional<JwtPrincipal> notRevoked(ByteBuffer digest, JwtPrincipal principal) {
+		if (revocationService.isRevoked(digest)) {
+			log.debug("Rejected revoked JWT for user {}", principal.userId());
+			return Optional.empty();
+		}
+		return Optional.of(principal);
+	}
+
 	public Claims extractAllClaims(String token) {
-		return Jwts.parserBuilder().setSigningKey(getSigningKey()).build().parseClaimsJws(token).getBody();
+		return parser.parseClaimsJws(token).getBody();
 	}
 
 	public String extractUsername(String token) {
@@ -51,14 +152,11 @@ public class JwtService {
 	}
 
     public boolean isTokenValid(String token, String username) {
-        final String tokenUsername = extractUsername(token);
-        return (tokenUsername.equals(username)) && !isTokenExpired(token);
+        return validateToken(token)
+                .map(principal -> principal.username().equals(username))
+                .orElse(false);
     }
 
-	private boolean isTokenExpired(String token) {
-		return extractAllClaims(token).getExpiration().before(new Date());
-	}
-
     public Long extractUserId(String token) {
         return extractClaim(token, claims -> claims.get("userId", Long.class));
     }
@@ -79,19 +177,16 @@ public class JwtService {
                 return Optional.empty();
             }
 
-            String extractedUsername = extractUsername(token);
+            Optional<JwtPrincipal> principal = validateToken(token);
 
-            if (!isTokenValid(token, extractedUsername)) {
+            if (principal.isEmpty()) {
                 log.warn("Invalid or expired JWT token");
                 return Optional.empty();
             }
 
-            String username = extractUsername(token);
-            User user = userService.getById(
-                    extractAllClaims(token).get("userId", Long.class)
-            );
+            User user = userService.getById(principal.get().userId());
 
-            log.info("WebSocket authenticated user: {} (id: {})", username, user);
+            log.info("WebSocket authenticated user: {} (id: {})", principal.get().username(), user);
             return Optional.of(user);
 
         } catch (Exception e) {
@@ -113,13 +208,22 @@ public class JwtService {
         return null;
     }
 
+    private ByteBuffer digest(String token) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256")
+                    .digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
     private String createToken(Map<String, Object> claims, String subject) {
         return Jwts.builder()
                 .setClaims(claims)
                 .setSubject(subject)
                 .setIssuedAt(new Date(System.currentTimeMillis()))
                 .setExpiration(new Date(System.currentTimeMillis() + expiration))
-                .signWith(getSigningKey(), SignatureAlgorithm.HS256)
+                .signWith(signingKey, SignatureAlgorithm.HS256)
                 .compact();
     }
 }
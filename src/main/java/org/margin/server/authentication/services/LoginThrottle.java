@@ -0,0 +1,169 @@
+package org.margin.server.authentication.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.LoginThrottleConfig;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory failed-login limiter keyed by username and by client address. Each key holds a sliding-window counter
+ * (the previous and current fixed window, weighted by how far into the current one we are) packed into a single
+ * {@link AtomicLong}, so recording an attempt is one CAS and no lock. Keys live in a size-bounded cache.
+ */
+@Service
+public class LoginThrottle {
+    private static final String USER_PREFIX = "u:";
+    private static final String IP_PREFIX = "ip:";
+    private static final long COUNT_MASK = 0xFFFFL;
+    private static final int PREVIOUS_SHIFT = 16;
+    private static final int WINDOW_SHIFT = 32;
+
+    private final Cache<String, Window> counters;
+    private final LongSupplier clock;
+    private final long windowMillis;
+    private final long lockMillis;
+    private final int maxFailuresPerUser;
+    private final int maxFailuresPerIp;
+    private final Counter failures;
+    private final Counter userLocks;
+    private final Counter ipRejections;
+
+    @Autowired
+    public LoginThrottle(LoginThrottleConfig config, MeterRegistry meterRegistry) {
+        this(config, meterRegistry, System::currentTimeMillis);
+    }
+
+    public LoginThrottle(LoginThrottleConfig config, MeterRegistry meterRegistry, LongSupplier clock) {
+        this.clock = clock;
+        this.windowMillis = config.getWindow().toMillis();
+        this.lockMillis = config.getLockDuration().toMillis();
+        this.maxFailuresPerUser = config.getMaxFailuresPerUser();
+        this.maxFailuresPerIp = config.getMaxFailuresPerIp();
+        this.counters = Caffeine.newBuilder()
+                .maximumSize(config.getMaximumKeys())
+                .expireAfterAccess(config.getWindow().multipliedBy(2).plus(config.getLockDuration()))
+                .build();
+
+        Gauge.builder("auth.throttle.tracked.keys", counters, Cache::estimatedSize)
+                .description("Usernames and addresses currently tracked by the login throttle")
+                .register(meterRegistry);
+        this.failures = Counter.builder("auth.throttle.failures").register(meterRegistry);
+        this.userLocks = Counter.builder("auth.throttle.locks").tag("key", "user").register(meterRegistry);
+        this.ipRejections = Counter.builder("auth.throttle.rejections").tag("key", "ip").register(meterRegistry);
+    }
+
+    /**
+     * Whether the address has failed too often to be allowed another attempt. Checked before any password work.
+     */
+    public boolean isAddressBlocked(String address) {
+        Window counter = counters.getIfPresent(IP_PREFIX + address);
+        if (counter != null && counter.estimate(clock.getAsLong()) >= maxFailuresPerIp) {
+            ipRejections.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The time until which the username is locked in memory, or null if it is not.
+     */
+    public Instant lockedUntil(String username) {
+        Window counter = counters.getIfPresent(USER_PREFIX + username);
+        if (counter == null) {
+            return null;
+        }
+        long lockedUntil = counter.lockedUntil.get();
+        return lockedUntil > clock.getAsLong() ? Instant.ofEpochMilli(lockedUntil) : null;
+    }
+
+    /**
+     * Count a failed attempt against both keys. Returns the lock expiry if this failure is the one that locked the
+     * username, so the caller persists the lock exactly once; null otherwise.
+     */
+    public Instant recordFailure(String username, String address) {
+        long now = clock.getAsLong();
+        failures.increment();
+        if (address != null) {
+            counters.get(IP_PREFIX + address, key -> new Window()).increment(now);
+        }
+
+        Window counter = counters.get(USER_PREFIX + username, key -> new Window());
+        if (counter.increment(now) < maxFailuresPerUser) {
+            return null;
+        }
+
+        long lockedUntil = counter.lockedUntil.get();
+        if (lockedUntil > now || !counter.lockedUntil.compareAndSet(lockedUntil, now + lockMillis)) {
+            return null;
+        }
+        counter.reset();
+        userLocks.increment();
+        return Instant.ofEpochMilli(now + lockMillis);
+    }
+
+    public void recordSuccess(String username) {
+        counters.invalidate(USER_PREFIX + username);
+    }
+
+    /**
+     * Sliding-window counter packed as [window index:32][previous count:16][current count:16].
+     */
+    private final class Window {
+        private final AtomicLong state = new AtomicLong();
+        private final AtomicLong lockedUntil = new AtomicLong();
+
+        double increment(long now) {
+            long window = now / windowMillis;
+            long next;
+            long current;
+            do {
+                current = state.get();
+                next = pack(window, roll(current, window));
+                next = Math.min(next + 1, (next | COUNT_MASK));
+            } while (!state.compareAndSet(current, next));
+            return weigh(next, now);
+        }
+
+        double estimate(long now) {
+            long window = now / windowMillis;
+            return weigh(pack(window, roll(state.get(), window)), now);
+        }
+
+        void reset() {
+            state.set(0);
+        }
+
+        /**
+         * Previous and current counts as they stand in {@code window}, with the current count still zero.
+         */
+        private long roll(long packed, long window) {
+            long packedWindow = packed >>> WINDOW_SHIFT;
+            if (packedWindow == (window & 0xFFFFFFFFL)) {
+                return packed & ((COUNT_MASK << PREVIOUS_SHIFT) | COUNT_MASK);
+            }
+            if (packedWindow == ((window - 1) & 0xFFFFFFFFL)) {
+                return (packed & COUNT_MASK) << PREVIOUS_SHIFT;
+            }
+            return 0;
+        }
+
+        private long pack(long window, long counts) {
+            return ((window & 0xFFFFFFFFL) << WINDOW_SHIFT) | counts;
+        }
+
+        private double weigh(long packed, long now) {
+            double elapsed = (double) (now % windowMillis) / windowMillis;
+            long previous = (packed >>> PREVIOUS_SHIFT) & COUNT_MASK;
+            long current = packed & COUNT_MASK;
+            return previous * (1 - elapsed) + current;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.margin.server.authentication.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.margin.server.authentication.models.JwtPrincipal;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * In-memory revocation for stateless tokens: single tokens are denylisted until they expire, so entries only live as
+ * long as the tokens they could match. The denylist is bounded; it should hold every token revoked within one token
+ * lifetime, as one pushed out past the bound is accepted again.
+ */
+@Service
+public class TokenRevocationService {
+    private final Cache<ByteBuffer, Instant> revokedTokens;
+
+    public TokenRevocationService(@Value("${jwt.revocation.maximum-size:100000}") long maximumSize) {
+        this.revokedTokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(Expiry.creating((ByteBuffer digest, Instant expiresAt) ->
+                        Duration.between(Instant.now(), expiresAt)))
+                .build();
+    }
+
+    public void revokeToken(ByteBuffer tokenDigest, JwtPrincipal principal) {
+        revokedTokens.put(tokenDigest, principal.expiresAt());
+    }
+
+    public boolean isRevoked(ByteBuffer tokenDigest) {
+        return revokedTokens.getIfPresent(tokenDigest) != null;
+    }
+}
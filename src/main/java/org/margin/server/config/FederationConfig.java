@@ -4,6 +4,9 @@ import lombok.Getter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.util.List;
+
 @Getter
 @Component
 public class FederationConfig {
@@ -14,4 +17,191 @@ public class FederationConfig {
     @Value("${federation.public-endpoint}")
     private String publicEndpoint;
 
-}
\ No newline at end of file
+    /**
+     * Scheme used to reach peers by domain; only local setups should use http
+     */
+    @Value("${federation.client.scheme:https}")
+    private String clientScheme;
+
+    /**
+     * Offer HTTP/2 to peers (ALPN over TLS, h2c upgrade otherwise); peers that decline are spoken to in HTTP/1.1
+     */
+    @Value("${federation.client.http2:true}")
+    private boolean clientHttp2;
+
+    @Value("${federation.client.connect-timeout:5s}")
+    private Duration clientConnectTimeout;
+
+    @Value("${federation.client.request-timeout:10s}")
+    private Duration clientRequestTimeout;
+
+    /**
+     * Idle pooled connections are closed after this long
+     */
+    @Value("${federation.client.keep-alive:5m}")
+    private Duration clientKeepAlive;
+
+    /**
+     * Requests in flight to one peer at a time, which also bounds the HTTP/1.1 connections opened to it
+     */
+    @Value("${federation.client.max-requests-per-peer:32}")
+    private int clientMaxRequestsPerPeer;
+
+    /**
+     * Requests waiting for a slot to a peer before further ones fail fast
+     */
+    @Value("${federation.client.max-queued-per-peer:1000}")
+    private int clientMaxQueuedPerPeer;
+
+    /**
+     * Peers tagged with their own domain in client and outbox metrics; all others share the tag "other"
+     */
+    @Value("${federation.metrics.peers:}")
+    private List<String> metricsPeers;
+
+    /**
+     * How long a peer's discovery document is used when it does not send Cache-Control max-age
+     */
+    @Value("${federation.discovery.default-ttl:1h}")
+    private Duration discoveryDefaultTtl;
+
+    @Value("${federation.discovery.max-ttl:24h}")
+    private Duration discoveryMaxTtl;
+
+    /**
+     * After it expires, a discovery document is still used while a fresh copy is fetched in the background
+     */
+    @Value("${federation.discovery.stale-while-revalidate:1h}")
+    private Duration discoveryStaleWhileRevalidate;
+
+    /**
+     * Peers that could not be reached are not retried for this long; sends to them fail fast meanwhile
+     */
+    @Value("${federation.discovery.negative-ttl:1m}")
+    private Duration discoveryNegativeTtl;
+
+    @Value("${federation.discovery.maximum-peers:10000}")
+    private long discoveryMaximumPeers;
+
+    /**
+     * Cache lifetime this server advertises for its own discovery document
+     */
+    @Value("${federation.discovery.advertised-max-age:1h}")
+    private Duration discoveryAdvertisedMaxAge;
+
+    /**
+     * Send messages to peers that advertise a batch endpoint in batches rather than one request each
+     */
+    @Value("${federation.batch.enabled:true}")
+    private boolean batchEnabled;
+
+    @Value("${federation.batch.max-size:100}")
+    private int batchMaxSize;
+
+    /**
+     * How long a message may wait for others to the same peer before its batch is sent anyway
+     */
+    @Value("${federation.batch.linger:5ms}")
+    private Duration batchLinger;
+
+    /**
+     * Messages accepted in one incoming batch; a larger batch is refused with 413
+     */
+    @Value("${federation.batch.max-receive-size:1000}")
+    private int batchMaxReceiveSize;
+
+    /**
+     * How often the outbox is scanned for messages due for (another) delivery attempt
+     */
+    @Value("${federation.outbox.poll-interval:1s}")
+    private Duration outboxPollInterval;
+
+    @Value("${federation.outbox.batch-size:500}")
+    private int outboxBatchSize;
+
+    /**
+     * Delivery attempts to one peer in flight at a time
+     */
+    @Value("${federation.outbox.max-in-flight-per-peer:64}")
+    private int outboxMaxInFlightPerPeer;
+
+    /**
+     * A message is given up on (kept with status DEAD) after this many failed attempts
+     */
+    @Value("${federation.outbox.max-attempts:20}")
+    private int outboxMaxAttempts;
+
+    /**
+     * Retries wait a random time up to base * 2^(attempts - 1), capped at max
+     */
+    @Value("${federation.outbox.backoff-base:1s}")
+    private Duration outboxBackoffBase;
+
+    @Value("${federation.outbox.backoff-max:10m}")
+    private Duration outboxBackoffMax;
+
+    /**
+     * Consecutive failures to a peer that open its circuit
+     */
+    @Value("${federation.outbox.breaker-failure-threshold:5}")
+    private int outboxBreakerFailureThreshold;
+
+    @Value("${federation.outbox.breaker-open-duration:30s}")
+    private Duration outboxBreakerOpenDuration;
+
+    /**
+     * Accept and open persistent WebSocket links to peers that advertise one, instead of an HTTP request per message
+     */
+    @Value("${federation.link.enabled:false}")
+    private boolean linkEnabled;
+
+    /**
+     * Where peers connect for a link, served by the WebSocket server
+     */
+    @Value("${federation.link.advertised-url:ws://localhost:8081/federation/link}")
+    private String linkAdvertisedUrl;
+
+    /**
+     * Credits granted to a connected peer: messages it may have unacknowledged on the link at once
+     */
+    @Value("${federation.link.window:256}")
+    private int linkWindow;
+
+    /**
+     * Messages held for credit before further sends to the peer fall back to HTTP
+     */
+    @Value("${federation.link.max-queued:1000}")
+    private int linkMaxQueued;
+
+    /**
+     * A dropped link is reopened after a random delay up to base * 2^(attempts - 1), capped at max
+     */
+    @Value("${federation.link.reconnect-base:1s}")
+    private Duration linkReconnectBase;
+
+    @Value("${federation.link.reconnect-max:1m}")
+    private Duration linkReconnectMax;
+
+    /**
+     * Links this server keeps open to peers at once. Links are also closed once unused, or unable to connect, for
+     * the client keep-alive.
+     */
+    @Value("${federation.link.maximum-links:1000}")
+    private int linkMaximumLinks;
+
+    /**
+     * Ed25519 key pair, base64 PKCS#8 and X.509, that signs this server's link handshakes; the public half is
+     * advertised in the discovery document. A pair is generated at startup when either is empty.
+     */
+    @Value("${federation.link.private-key:}")
+    private String linkPrivateKey;
+
+    @Value("${federation.link.public-key:}")
+    private String linkPublicKey;
+
+    /**
+     * How far a link handshake's timestamp may be from this server's clock
+     */
+    @Value("${federation.link.max-clock-skew:5m}")
+    private Duration linkMaxClockSkew;
+}
@@ -0,0 +1,36 @@
+package org.margin.server.config;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Getter
+@Component
+public class LoginThrottleConfig {
+
+    /**
+     * Failed logins for one username within the window before the account is locked
+     */
+    @Value("${auth.throttle.max-failures-per-user:3}")
+    private int maxFailuresPerUser;
+
+    /**
+     * Failed logins from one address within the window before it is refused with 429
+     */
+    @Value("${auth.throttle.max-failures-per-ip:30}")
+    private int maxFailuresPerIp;
+
+    @Value("${auth.throttle.window:5m}")
+    private Duration window;
+
+    @Value("${auth.throttle.lock-duration:30s}")
+    private Duration lockDuration;
+
+    /**
+     * Upper bound on usernames and addresses tracked at once; the least recently used are dropped first
+     */
+    @Value("${auth.throttle.maximum-keys:100000}")
+    private long maximumKeys;
+}
@@ -0,0 +1,31 @@
+package org.margin.server.config;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Component
+public class MessagePersistenceConfig {
+
+    /**
+     * Unique per server instance (0-1023), used as the node part of Snowflake message ids
+     */
+    @Value("${ids.node-id:0}")
+    private int nodeId;
+
+    @Value("${messages.persistence.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /**
+     * Senders are paused (autoRead off) once this many messages are waiting, and resumed at half of it
+     */
+    @Value("${messages.persistence.high-water-mark:8000}")
+    private int highWaterMark;
+
+    @Value("${messages.persistence.batch-size:500}")
+    private int batchSize;
+
+    @Value("${messages.persistence.linger-ms:10}")
+    private long lingerMs;
+}
@@ -0,0 +1,33 @@
+package org.margin.server.config;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Getter
+@Component
+public class PasswordHashingConfig {
+
+    /**
+     * BCrypt cost factor for new hashes (4-31). Existing hashes keep verifying at the cost they were created with.
+     */
+    @Value("${auth.password.bcrypt-strength:10}")
+    private int bcryptStrength;
+
+    /**
+     * 0 = one thread per core
+     */
+    @Value("${auth.password.hashing-threads:0}")
+    private int threads;
+
+    /**
+     * Hash requests allowed to wait for a thread before new ones are rejected with 429
+     */
+    @Value("${auth.password.hashing-queue-capacity:32}")
+    private int queueCapacity;
+
+    @Value("${auth.password.hashing-timeout:5s}")
+    private Duration timeout;
+}
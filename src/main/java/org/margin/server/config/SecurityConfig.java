@@ -22,8 +22,8 @@ public class SecurityConfig {
     }
 
     @Bean
-    public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+    public PasswordEncoder passwordEncoder(PasswordHashingConfig passwordHashingConfig) {
+        return new BCryptPasswordEncoder(passwordHashingConfig.getBcryptStrength());
     }
 
     @Bean
@@ -42,6 +42,9 @@ public class SecurityConfig {
                                 .requestMatchers("/federation/**").permitAll()
                                 .requestMatchers("/.well-known/**").permitAll()
                                 .requestMatchers("/chat_messages/**").hasRole("USER")
+                                // Other endpoints list users and their addresses
+                                .requestMatchers("/actuator/health").authenticated()
+                                .requestMatchers("/actuator/**").hasRole("ADMIN")
                                 .anyRequest().authenticated())
                 .addFilterBefore(jwtAuthFilter, UsernamePasswordAuthenticationFilter.class);
 
@@ -0,0 +1,18 @@
+package org.margin.server.config;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Getter
+@Component
+public class UserCacheConfig {
+
+    @Value("${users.cache.maximum-size:10000}")
+    private long maximumSize;
+
+    @Value("${users.cache.expire-after-write:5m}")
+    private Duration expireAfterWrite;
+}
@@ -0,0 +1,140 @@
+package org.margin.server.config;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Getter
+@Component
+public class WebSocketConfig {
+
+    @Value("${websocket.port:8081}")
+    private int port;
+
+    /**
+     * URL advertised to clients during the WebSocket handshake
+     */
+    @Value("${websocket.advertised-url:ws://localhost:8081/ws}")
+    private String advertisedUrl;
+
+    @Value("${websocket.max-frame-size:65536}")
+    private int maxFrameSize;
+
+    /**
+     * auto, epoll or nio. auto picks epoll when the native library is available.
+     */
+    @Value("${websocket.transport:auto}")
+    private String transport;
+
+    @Value("${websocket.boss-threads:1}")
+    private int bossThreads;
+
+    /**
+     * 0 lets Netty choose (2 * available processors)
+     */
+    @Value("${websocket.worker-threads:0}")
+    private int workerThreads;
+
+    @Value("${websocket.backlog:1024}")
+    private int backlog;
+
+    @Value("${websocket.tcp-no-delay:true}")
+    private boolean tcpNoDelay;
+
+    /**
+     * Binds one acceptor per boss thread with SO_REUSEPORT. Only honoured by the epoll transport.
+     */
+    @Value("${websocket.reuse-port:false}")
+    private boolean reusePort;
+
+    @Value("${websocket.write-buffer-low-water-mark:32768}")
+    private int writeBufferLowWaterMark;
+
+    @Value("${websocket.write-buffer-high-water-mark:65536}")
+    private int writeBufferHighWaterMark;
+
+    /**
+     * immediate flushes every write, batched flushes once per event loop task,
+     * coalesced defers flushes so broadcasts within the interval share one flush per channel
+     */
+    @Value("${websocket.broadcast.flush-mode:batched}")
+    private String broadcastFlushMode;
+
+    @Value("${websocket.broadcast.flush-interval-ms:5}")
+    private long broadcastFlushIntervalMs;
+
+    /**
+     * Presence changes are held for this long and sent as one diff per tick. 0 broadcasts every change immediately.
+     */
+    @Value("${websocket.presence.window-ms:1000}")
+    private long presenceWindowMs;
+
+    /**
+     * What happens to presence updates for a channel that is over its write-buffer high water mark:
+     * drop discards them, coalesce merges them into a single diff sent once the channel drains
+     */
+    @Value("${websocket.slow-consumer.presence-policy:coalesce}")
+    private String slowConsumerPresencePolicy;
+
+    /**
+     * Channels with more than this many bytes queued for writing are disconnected. 0 disables the limit.
+     */
+    @Value("${websocket.slow-consumer.max-backlog-bytes:1048576}")
+    private long slowConsumerMaxBacklogBytes;
+
+    /**
+     * Negotiate permessage-deflate with clients that offer it
+     */
+    @Value("${websocket.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    @Value("${websocket.compression.level:6}")
+    private int compressionLevel;
+
+    /**
+     * LZ77 window (8-15 bits) requested for frames the client compresses
+     */
+    @Value("${websocket.compression.client-window-bits:15}")
+    private int compressionClientWindowBits;
+
+    /**
+     * Frames smaller than this are sent uncompressed
+     */
+    @Value("${websocket.compression.min-size:256}")
+    private int compressionMinSize;
+
+    /**
+     * Compress every message on its own so a broadcast frame can be compressed once and shared by all recipients,
+     * at some cost in ratio for direct messages
+     */
+    @Value("${websocket.compression.server-no-context-takeover:true}")
+    private boolean compressionServerNoContextTakeover;
+
+    /**
+     * A ping is sent to clients nothing has been read from for this long. 0 disables heartbeats.
+     */
+    @Value("${websocket.heartbeat.ping-interval:30s}")
+    private Duration heartbeatPingInterval;
+
+    /**
+     * Clients that send nothing, not even a pong, for this long are disconnected
+     */
+    @Value("${websocket.heartbeat.reader-idle-timeout:75s}")
+    private Duration heartbeatReaderIdleTimeout;
+
+    /**
+     * A ping is also sent to clients nothing has been written to for this long, so proxies and NATs that only see
+     * the client talking keep the connection. 0 disables it.
+     */
+    @Value("${websocket.heartbeat.writer-idle-interval:30s}")
+    private Duration heartbeatWriterIdleInterval;
+
+    /**
+     * Messages a client may have waiting for blocking work (lookups, persistence, federation) before further ones
+     * are refused
+     */
+    @Value("${websocket.dispatch.max-pending-per-user:1000}")
+    private int dispatchMaxPendingPerUser;
+}
@@ -1,30 +1,48 @@
 package org.margin.server.federation.controllers;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.bind.annotation.*;
-import org.margin.server.social.models.DirectMessage;
 import org.margin.server.config.FederationConfig;
 import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
 import org.margin.server.federation.models.FederationInfo;
+import org.margin.server.federation.services.FederationReceiver;
+import org.margin.server.federation.services.FederationSigningKey;
 import org.margin.server.users.UserService;
-import org.margin.server.websocket.services.WebSocketClientService;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @RestController
 public class FederationController {
-
-    private final WebSocketClientService webSocketClientService;
+    private final FederationReceiver federationReceiver;
     private final FederationConfig federationConfig;
     private final UserService userService;
+    private final ObjectMapper mapper;
+    private final FederationSigningKey signingKey;
 
 
-    public FederationController(WebSocketClientService webSocketClientService, FederationConfig federationConfig, UserService userService) {
-        this.webSocketClientService = webSocketClientService;
+    public FederationController(FederationReceiver federationReceiver, FederationConfig federationConfig,
+                                UserService userService, ObjectMapper mapper, FederationSigningKey signingKey) {
+        this.federationReceiver = federationReceiver;
         this.federationConfig = federationConfig;
         this.userService = userService;
+        this.mapper = mapper;
+        this.signingKey = signingKey;
     }
 
     /**
@@ -40,30 +58,97 @@ public class FederationController {
 
         // TODO: Add server authentication/verification here
 
-        DirectMessage message = new DirectMessage(
-                messageDTO.getFromUserId(),
-                messageDTO.getToUserId(),
-                messageDTO.getFromServer(),
-                federationConfig.getServerDomain(),
-                messageDTO.getMessage()
-        );
+        // Only answer once the message is stored (the receiver bounds the wait), so a failure is retried by the sender
+        FederatedMessageResult result = federationReceiver.deliver(messageDTO, originServer).join();
+        if (result.accepted()) {
+            return ResponseEntity.ok().build();
+        }
+        if (FederationReceiver.INVALID_MESSAGE.equals(result.error())) {
+            return ResponseEntity.badRequest().build();
+        }
+        log.warn("Could not store federated message {} from {}: {}", result.messageId(), originServer,
+                result.error());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+
+    /**
+     * Receive a JSON array of messages from another server. Messages are delivered as they are read from the stream,
+     * and the response lists, in the same order, whether each one was stored. A batch over the configured size is
+     * refused with 413 as soon as the cap is passed, without reading the rest; messages already stored are recognised
+     * when the sender retries them in smaller batches. As on the single-message endpoint, the origin header is taken
+     * as given; only links verify the sending server.
+     */
+    @PostMapping("/federation/messages/batch")
+    public ResponseEntity<List<FederatedMessageResult>> receiveMessages(
+            HttpServletRequest request,
+            @RequestHeader("X-Server-Domain") String originServer) throws IOException {
 
-        webSocketClientService.sendMessageToUser(message);
+        List<CompletableFuture<FederatedMessageResult>> results = new ArrayList<>();
+        boolean tooLarge = false;
+        // Elements are read as trees first, so one that is null or not a message is rejected on its own
+        try (MappingIterator<JsonNode> messages = mapper.readerFor(JsonNode.class)
+                .readValues(request.getInputStream())) {
+            while (messages.hasNextValue()) {
+                if (results.size() >= federationConfig.getBatchMaxReceiveSize()) {
+                    tooLarge = true;
+                    break;
+                }
+                FederatedMessageDTO messageDTO = toMessage(messages.nextValue());
+                results.add(messageDTO != null
+                        ? federationReceiver.deliver(messageDTO, originServer)
+                        : CompletableFuture.completedFuture(
+                                FederatedMessageResult.rejected(null, FederationReceiver.INVALID_MESSAGE)));
+            }
+        }
 
-        return ResponseEntity.ok().build();
+        List<FederatedMessageResult> delivered = results.stream().map(CompletableFuture::join).toList();
+        if (tooLarge) {
+            log.warn("Refused batch of more than {} federated messages from {}", results.size(), originServer);
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+        log.info("Received batch of {} federated messages from {}", results.size(), originServer);
+        return ResponseEntity.ok(delivered);
+    }
+
+    private FederatedMessageDTO toMessage(JsonNode element) {
+        if (element == null || !element.isObject()) {
+            return null;
+        }
+        try {
+            return mapper.treeToValue(element, FederatedMessageDTO.class);
+        } catch (JsonProcessingException e) {
+            return null;
+        }
     }
 
     /**
-     * Well-known endpoint for server discovery
+     * Well-known endpoint for server discovery. Peers cache it for the advertised max-age and revalidate it with the
+     * ETag, which only changes when this server's domain or endpoints do.
      */
     @GetMapping("/.well-known/federation")
-    public FederationInfo getFederationInfo() {
-        return FederationInfo.builder()
+    public ResponseEntity<FederationInfo> getFederationInfo(WebRequest request) {
+        Map<String, String> endpoints = new LinkedHashMap<>();
+        endpoints.put("messages", federationConfig.getPublicEndpoint() + "/federation/messages");
+        endpoints.put("messages_batch", federationConfig.getPublicEndpoint() + "/federation/messages/batch");
+        if (federationConfig.isLinkEnabled()) {
+            endpoints.put("link", federationConfig.getLinkAdvertisedUrl());
+        }
+
+        FederationInfo info = FederationInfo.builder()
                 .serverDomain(federationConfig.getServerDomain())
                 .version("1.0")
-                .endpoints(Map.of(
-                        "messages", federationConfig.getPublicEndpoint() + "/federation/messages"
-                ))
+                .endpoints(endpoints)
+                .linkKey(federationConfig.isLinkEnabled() ? signingKey.publicKey() : null)
                 .build();
+        String etag = "\"" + Integer.toHexString(info.hashCode()) + "\"";
+        CacheControl cacheControl = CacheControl.maxAge(federationConfig.getDiscoveryAdvertisedMaxAge())
+                .staleWhileRevalidate(federationConfig.getDiscoveryStaleWhileRevalidate())
+                .cachePublic();
+
+        if (request.checkNotModified(etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(cacheControl).eTag(etag)
+                    .build();
+        }
+        return ResponseEntity.ok().cacheControl(cacheControl).eTag(etag).body(info);
     }
-}
\ No newline at end of file
+}
@@ -1,11 +1,19 @@
 package org.margin.server.federation.models;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 @Data
 @Builder
+@NoArgsConstructor
+@AllArgsConstructor
 public class FederatedMessageDTO {
+    /**
+     * Id the message has on the sending server
+     */
+    private Long messageId;
     private Long fromUserId;
     private String fromServer;
     private Long toUserId;
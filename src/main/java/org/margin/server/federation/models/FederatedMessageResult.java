@@ -0,0 +1,18 @@
+package org.margin.server.federation.models;
+
+/**
+ * Outcome of one message in a batch, in the order the messages were sent
+ */
+public record FederatedMessageResult(
+        Long messageId,
+        boolean accepted,
+        String error
+) {
+    public static FederatedMessageResult accepted(Long messageId) {
+        return new FederatedMessageResult(messageId, true, null);
+    }
+
+    public static FederatedMessageResult rejected(Long messageId, String error) {
+        return new FederatedMessageResult(messageId, false, error);
+    }
+}
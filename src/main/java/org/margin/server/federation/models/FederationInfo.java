@@ -1,14 +1,22 @@
 package org.margin.server.federation.models;
 
+import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 import java.util.Map;
 
 @Data
 @Builder
+@NoArgsConstructor
+@AllArgsConstructor
 public class FederationInfo {
     private String serverDomain;
     private String version;
     private Map<String, String> endpoints;
+    /**
+     * Public key that signs this server's link handshakes, when it opens links
+     */
+    private String linkKey;
 }
\ No newline at end of file
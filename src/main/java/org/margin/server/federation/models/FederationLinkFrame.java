@@ -0,0 +1,35 @@
+package org.margin.server.federation.models;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * One frame on a server-to-server link, sent as CBOR in a binary WebSocket frame. The receiving server grants
+ * credits, the sender spends one per MESSAGE, and each ACK answers a message by its sequence number and hands
+ * back the credits it freed.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record FederationLinkFrame(
+        Type type,
+        Long seq,
+        Integer credits,
+        FederatedMessageDTO message,
+        FederatedMessageResult result
+) {
+    public static final String SUBPROTOCOL = "margin.federation";
+
+    public enum Type {
+        CREDIT, MESSAGE, ACK
+    }
+
+    public static FederationLinkFrame credit(int credits) {
+        return new FederationLinkFrame(Type.CREDIT, null, credits, null, null);
+    }
+
+    public static FederationLinkFrame message(long seq, FederatedMessageDTO message) {
+        return new FederationLinkFrame(Type.MESSAGE, seq, null, message, null);
+    }
+
+    public static FederationLinkFrame ack(long seq, FederatedMessageResult result) {
+        return new FederationLinkFrame(Type.ACK, seq, 1, null, result);
+    }
+}
@@ -0,0 +1,60 @@
+package org.margin.server.federation.models;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "federation_outbox")
+public class FederationOutboxEntry {
+
+    public enum Status {
+        PENDING, DEAD
+    }
+
+    /**
+     * The message id, so a message is queued at most once
+     */
+    @Id
+    private Long id;
+
+    @Column(nullable = false)
+    private String peer;
+
+    /**
+     * The {@link FederatedMessageDTO} as JSON
+     */
+    @Column(nullable = false, length = 8192)
+    private String payload;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private Status status = Status.PENDING;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column(name = "next_attempt_at", nullable = false)
+    private Instant nextAttemptAt;
+
+    @Column(name = "created_at", nullable = false)
+    private Instant createdAt;
+
+    @Column(name = "last_error", length = 1000)
+    private String lastError;
+
+    public FederationOutboxEntry(Long id, String peer, String payload, Instant createdAt) {
+        this.id = id;
+        this.peer = peer;
+        this.payload = payload;
+        this.status = Status.PENDING;
+        this.nextAttemptAt = createdAt;
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,56 @@
+package org.margin.server.federation.repositories;
+
+import org.springframework.data.domain.Limit;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import org.margin.server.federation.models.FederationOutboxEntry;
+
+import java.time.Instant;
+import java.util.List;
+
+@Repository
+public interface FederationOutboxRepository extends JpaRepository<FederationOutboxEntry, Long> {
+
+    interface PeerBacklog {
+        String getPeer();
+
+        long getDepth();
+
+        Instant getOldest();
+    }
+
+    @Query("""
+            SELECT o
+            FROM FederationOutboxEntry o
+            WHERE o.status = org.margin.server.federation.models.FederationOutboxEntry.Status.PENDING
+              AND o.nextAttemptAt <= :now
+            ORDER BY o.nextAttemptAt ASC
+            """)
+    List<FederationOutboxEntry> findDue(@Param("now") Instant now, Limit limit);
+
+    @Query("""
+            SELECT o.peer AS peer, COUNT(o) AS depth, MIN(o.createdAt) AS oldest
+            FROM FederationOutboxEntry o
+            WHERE o.status = org.margin.server.federation.models.FederationOutboxEntry.Status.PENDING
+            GROUP BY o.peer
+            """)
+    List<PeerBacklog> findBacklogByPeer();
+
+    /**
+     * Hold back a peer's pending messages while its circuit is open, so they do not crowd out other peers' due rows
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            UPDATE FederationOutboxEntry o
+            SET o.nextAttemptAt = :until
+            WHERE o.peer = :peer
+              AND o.status = org.margin.server.federation.models.FederationOutboxEntry.Status.PENDING
+              AND o.nextAttemptAt < :until
+            """)
+    int deferPeer(@Param("peer") String peer, @Param("until") Instant until);
+}
@@ -0,0 +1,67 @@
+package org.margin.server.federation.services;
+
+/**
+ * Per-peer breaker: after a run of consecutive failures the peer is left alone for a cool-down, then a single trial
+ * request decides whether it is closed again or stays open for another cool-down.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Whether a request may go out now. Once the cool-down has passed this admits exactly one trial request.
+     */
+    public synchronized boolean allowRequest(long now) {
+        return switch (state) {
+            case CLOSED -> true;
+            case HALF_OPEN -> false;
+            case OPEN -> {
+                if (now < openUntil) {
+                    yield false;
+                }
+                state = State.HALF_OPEN;
+                yield true;
+            }
+        };
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Returns true if this failure opened the circuit
+     */
+    public synchronized boolean onFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openUntil = now + openMillis;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    public synchronized long openUntil() {
+        return openUntil;
+    }
+}
@@ -0,0 +1,175 @@
+package org.margin.server.federation.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Groups outbound federated messages per destination server and sends each group as one request to the peer's batch
+ * endpoint. A batch goes out as soon as it is full, or once its first message has waited the linger time.
+ */
+@Slf4j
+@Service
+public class FederationBatcher {
+    private static final TypeReference<List<FederatedMessageResult>> RESULTS = new TypeReference<>() {
+    };
+
+    private record Pending(FederatedMessageDTO message, CompletableFuture<FederatedMessageResult> result) {
+    }
+
+    private final FederationClient federationClient;
+    private final ObjectMapper mapper;
+    private final int maxSize;
+    private final long lingerNanos;
+    private final ScheduledExecutorService scheduler;
+    private final Map<URI, PeerBatch> batches = new ConcurrentHashMap<>();
+    private final DistributionSummary batchSizes;
+
+    public FederationBatcher(FederationConfig config, FederationClient federationClient, ObjectMapper mapper,
+                             MeterRegistry meterRegistry) {
+        this.federationClient = federationClient;
+        this.mapper = mapper;
+        this.maxSize = config.getBatchMaxSize();
+        this.lingerNanos = config.getBatchLinger().toNanos();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "federation-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.batchSizes = DistributionSummary.builder("federation.batch.size")
+                .description("Messages per outgoing federation batch")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queue the message for the peer's batch endpoint. The future completes with the peer's verdict on this message
+     * and never completes exceptionally.
+     */
+    public CompletableFuture<FederatedMessageResult> submit(URI batchEndpoint, FederatedMessageDTO message) {
+        CompletableFuture<FederatedMessageResult> result = new CompletableFuture<>();
+        batches.computeIfAbsent(batchEndpoint, PeerBatch::new).add(new Pending(message, result));
+        return result;
+    }
+
+    private void send(URI endpoint, List<Pending> batch) {
+        batchSizes.record(batch.size());
+        List<FederatedMessageDTO> messages = batch.stream().map(Pending::message).toList();
+
+        federationClient.post(endpoint, messages).whenComplete((response, error) -> {
+            if (error != null) {
+                failAll(batch, error.getMessage());
+                return;
+            }
+            if (response.statusCode() / 100 != 2) {
+                failAll(batch, "Peer answered " + response.statusCode());
+                return;
+            }
+
+            try {
+                List<FederatedMessageResult> results = mapper.readValue(response.body(), RESULTS);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result().complete(i < results.size()
+                            ? results.get(i)
+                            : FederatedMessageResult.rejected(batch.get(i).message().getMessageId(), "No result"));
+                }
+            } catch (Exception e) {
+                failAll(batch, "Unreadable batch response: " + e.getMessage());
+            }
+        });
+    }
+
+    private static void failAll(List<Pending> batch, String error) {
+        for (Pending pending : batch) {
+            pending.result().complete(FederatedMessageResult.rejected(pending.message().getMessageId(), error));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdown();
+        batches.values().forEach(PeerBatch::flush);
+    }
+
+    /**
+     * Messages waiting for one peer. The first message of a batch schedules its linger flush; filling the batch
+     * sends it straight away, and the pending flush then finds a newer (or no) batch and leaves it alone unless it is
+     * its own. A peer with nothing waiting after its linger flush is forgotten; a message added to it as it is removed
+     * still goes out with that flush or its own.
+     */
+    private final class PeerBatch {
+        private final URI endpoint;
+        private List<Pending> pending = new ArrayList<>();
+
+        private PeerBatch(URI endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        void add(Pending message) {
+            List<Pending> full = null;
+            synchronized (this) {
+                pending.add(message);
+                if (pending.size() >= maxSize) {
+                    full = pending;
+                    pending = new ArrayList<>();
+                } else if (pending.size() == 1) {
+                    List<Pending> current = pending;
+                    schedule(() -> flush(current));
+                }
+            }
+
+            if (full != null) {
+                send(endpoint, full);
+            }
+        }
+
+        void flush() {
+            List<Pending> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            if (!batch.isEmpty()) {
+                send(endpoint, batch);
+            }
+        }
+
+        private void flush(List<Pending> expected) {
+            synchronized (this) {
+                if (pending == expected) {
+                    pending = new ArrayList<>();
+                } else {
+                    expected = null;
+                }
+            }
+            if (expected != null) {
+                send(endpoint, expected);
+            }
+            batches.computeIfPresent(endpoint, (uri, batch) -> batch == this && batch.isEmpty() ? null : batch);
+        }
+
+        private synchronized boolean isEmpty() {
+            return pending.isEmpty();
+        }
+
+        private void schedule(Runnable flush) {
+            try {
+                scheduler.schedule(flush, lingerNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                flush.run();
+            }
+        }
+    }
+}
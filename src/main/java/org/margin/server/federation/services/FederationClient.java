@@ -0,0 +1,199 @@
+package org.margin.server.federation.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous HTTP client for talking to other servers. One {@link HttpClient} is shared by all peers, so
+ * connections are pooled and kept alive between messages, and HTTP/2 peers multiplex every request over a single
+ * connection. Requests to each peer are limited to a fixed number in flight, with a bounded queue behind them, so a
+ * slow peer cannot take every connection or pile up unbounded work. Peers are named by users, so the per-peer limits
+ * are forgotten once a peer goes idle, and only configured peers get their own tag in metrics.
+ */
+@Slf4j
+@Service
+public class FederationClient {
+    private static final String KEEP_ALIVE_PROPERTY = "jdk.httpclient.keepalive.timeout";
+    private static final String OTHER_PEERS = "other";
+
+    private final FederationConfig federationConfig;
+    private final ObjectMapper mapper;
+    private final MeterRegistry meterRegistry;
+    private final HttpClient httpClient;
+    private final ExecutorService executor;
+    private final Cache<String, PeerLimit> peers;
+    private final Set<String> taggedPeers;
+
+    public FederationClient(FederationConfig federationConfig, ObjectMapper mapper, MeterRegistry meterRegistry) {
+        this.federationConfig = federationConfig;
+        this.mapper = mapper;
+        this.meterRegistry = meterRegistry;
+        // A peer idle for longer than the keep-alive has no pooled connection left either
+        this.peers = Caffeine.newBuilder()
+                .expireAfterAccess(federationConfig.getClientKeepAlive())
+                .maximumSize(federationConfig.getDiscoveryMaximumPeers())
+                .build();
+        this.taggedPeers = federationConfig.getMetricsPeers() != null
+                ? Set.copyOf(federationConfig.getMetricsPeers())
+                : Set.of();
+
+        // The JDK client only takes its idle timeout from a system property, read when the first client is built
+        if (System.getProperty(KEEP_ALIVE_PROPERTY) == null) {
+            System.setProperty(KEEP_ALIVE_PROPERTY, Long.toString(federationConfig.getClientKeepAlive().toSeconds()));
+        }
+
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("federation-client-", 0).factory());
+        this.httpClient = HttpClient.newBuilder()
+                .version(federationConfig.isClientHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(federationConfig.getClientConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor)
+                .build();
+    }
+
+    public CompletableFuture<HttpResponse<String>> get(URI uri) {
+        return get(uri, Map.of());
+    }
+
+    public CompletableFuture<HttpResponse<String>> get(URI uri, Map<String, String> headers) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).GET();
+        headers.forEach(builder::header);
+        return send(uri, builder);
+    }
+
+    /**
+     * POST the body as JSON, signed with this server's domain
+     */
+    public CompletableFuture<HttpResponse<String>> post(URI uri, Object body) {
+        byte[] json;
+        try {
+            json = mapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return send(uri, HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(json)));
+    }
+
+    /**
+     * Base URI of a peer addressed by its domain
+     */
+    public URI peerUri(String serverDomain, String path) {
+        return URI.create(federationConfig.getClientScheme() + "://" + serverDomain + path);
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(URI uri, HttpRequest.Builder builder) {
+        HttpRequest request = builder
+                .timeout(federationConfig.getClientRequestTimeout())
+                .header("X-Server-Domain", federationConfig.getServerDomain())
+                // TODO: Add authentication
+                .build();
+        String peer = uri.getAuthority();
+
+        return peers.get(peer, PeerLimit::new).submit(() -> {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .whenComplete((response, error) -> sample.stop(Timer.builder("federation.client.requests")
+                            .tag("peer", taggedPeers.contains(peer) ? peer : OTHER_PEERS)
+                            .tag("outcome", outcome(response, error))
+                            .register(meterRegistry)));
+        });
+    }
+
+    private static String outcome(HttpResponse<?> response, Throwable error) {
+        if (error != null) {
+            return error instanceof HttpTimeoutException || error.getCause() instanceof HttpTimeoutException
+                    ? "timeout" : "error";
+        }
+        return response.statusCode() < 400 ? "success" : "http_" + response.statusCode();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        httpClient.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Admits a fixed number of requests to one peer; the rest wait in a bounded queue and start as slots free up.
+     */
+    private final class PeerLimit {
+        private final String peer;
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight;
+
+        private PeerLimit(String peer) {
+            this.peer = peer;
+        }
+
+        <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            Runnable start = () -> {
+                CompletableFuture<T> sent;
+                try {
+                    sent = request.get();
+                } catch (RuntimeException e) {
+                    sent = CompletableFuture.failedFuture(e);
+                }
+                sent.whenComplete((value, error) -> {
+                    release();
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            };
+
+            synchronized (this) {
+                if (inFlight >= federationConfig.getClientMaxRequestsPerPeer()) {
+                    if (waiting.size() >= federationConfig.getClientMaxQueuedPerPeer()) {
+                        return CompletableFuture.failedFuture(
+                                new RejectedExecutionException("Too many requests queued for " + peer));
+                    }
+                    waiting.add(start);
+                    return result;
+                }
+                inFlight++;
+            }
+
+            start.run();
+            return result;
+        }
+
+        private void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            executor.execute(next);
+        }
+    }
+}
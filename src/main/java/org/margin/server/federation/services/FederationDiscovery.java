@@ -0,0 +1,208 @@
+package org.margin.server.federation.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederationInfo;
+
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves a peer's messages endpoint from its {@code /.well-known/federation} document and caches the result per
+ * server domain for as long as the peer's Cache-Control allows. An expired entry keeps being served while one
+ * background request revalidates it with its ETag, concurrent lookups for the same domain share a single fetch, and a
+ * peer that cannot be reached is remembered as such for a short while instead of being asked again on every send.
+ */
+@Slf4j
+@Service
+public class FederationDiscovery {
+    private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])max-age=(\\d+)");
+
+    /**
+     * What is known about a peer. An unreachable entry has no endpoint, and a peer without batch or link support no
+     * batch or link endpoint. The link key verifies the peer's link handshakes.
+     */
+    public record Endpoint(URI messages, URI batch, URI link, String linkKey, String etag, long freshUntil,
+                           long staleUntil) {
+        public boolean isReachable() {
+            return messages != null;
+        }
+    }
+
+    private final FederationClient federationClient;
+    private final ObjectMapper mapper;
+    private final LongSupplier clock;
+    private final long defaultTtlMillis;
+    private final long maxTtlMillis;
+    private final long staleMillis;
+    private final long negativeTtlMillis;
+    private final Cache<String, Endpoint> endpoints;
+    private final Map<String, CompletableFuture<Endpoint>> inFlight = new ConcurrentHashMap<>();
+    private final Counter fetches;
+    private final Counter hits;
+
+    @Autowired
+    public FederationDiscovery(FederationConfig config, FederationClient federationClient, ObjectMapper mapper,
+                               MeterRegistry meterRegistry) {
+        this(config, federationClient, mapper, meterRegistry, System::currentTimeMillis);
+    }
+
+    public FederationDiscovery(FederationConfig config, FederationClient federationClient, ObjectMapper mapper,
+                               MeterRegistry meterRegistry, LongSupplier clock) {
+        this.federationClient = federationClient;
+        this.mapper = mapper;
+        this.clock = clock;
+        this.defaultTtlMillis = config.getDiscoveryDefaultTtl().toMillis();
+        this.maxTtlMillis = config.getDiscoveryMaxTtl().toMillis();
+        this.staleMillis = config.getDiscoveryStaleWhileRevalidate().toMillis();
+        this.negativeTtlMillis = config.getDiscoveryNegativeTtl().toMillis();
+        this.endpoints = Caffeine.newBuilder()
+                .maximumSize(config.getDiscoveryMaximumPeers())
+                .expireAfterWrite(Duration.ofMillis(maxTtlMillis + staleMillis))
+                .build();
+        this.fetches = Counter.builder("federation.discovery.fetches").register(meterRegistry);
+        this.hits = Counter.builder("federation.discovery.hits")
+                .description("Lookups answered from the cache, fresh or stale")
+                .register(meterRegistry);
+    }
+
+    /**
+     * The peer's messages endpoint. Only waits for the network when nothing usable is cached.
+     */
+    public CompletableFuture<Endpoint> resolve(String serverDomain) {
+        Endpoint cached = endpoints.getIfPresent(serverDomain);
+        long now = clock.getAsLong();
+
+        if (cached != null && now < cached.freshUntil()) {
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (cached != null && cached.isReachable() && now < cached.staleUntil()) {
+            hits.increment();
+            refresh(serverDomain, cached);
+            return CompletableFuture.completedFuture(cached);
+        }
+        return refresh(serverDomain, cached);
+    }
+
+    public void invalidate(String serverDomain) {
+        endpoints.invalidate(serverDomain);
+    }
+
+    private CompletableFuture<Endpoint> refresh(String serverDomain, Endpoint previous) {
+        CompletableFuture<Endpoint> created = new CompletableFuture<>();
+        CompletableFuture<Endpoint> existing = inFlight.putIfAbsent(serverDomain, created);
+        if (existing != null) {
+            return existing;
+        }
+
+        fetches.increment();
+        Map<String, String> headers = previous != null && previous.etag() != null
+                ? Map.of("If-None-Match", previous.etag())
+                : Map.of();
+
+        CompletableFuture<HttpResponse<String>> response;
+        try {
+            response = federationClient.get(federationClient.peerUri(serverDomain, "/.well-known/federation"),
+                    headers);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+
+        response.thenApply(received -> fromResponse(serverDomain, received, previous))
+                .exceptionally(error -> unreachable(serverDomain, previous, error))
+                .thenAccept(endpoint -> {
+                    endpoints.put(serverDomain, endpoint);
+                    inFlight.remove(serverDomain, created);
+                    created.complete(endpoint);
+                });
+        return created;
+    }
+
+    private Endpoint fromResponse(String serverDomain, HttpResponse<String> response, Endpoint previous) {
+        long now = clock.getAsLong();
+        long ttl = ttl(response);
+        String etag = response.headers().firstValue("ETag").orElse(null);
+
+        if (response.statusCode() == 304 && previous != null && previous.isReachable()) {
+            return new Endpoint(previous.messages(), previous.batch(), previous.link(), previous.linkKey(),
+                    etag != null ? etag : previous.etag(), now + ttl, now + ttl + staleMillis);
+        }
+
+        // Fallback to standard endpoint
+        URI messages = federationClient.peerUri(serverDomain, "/federation/messages");
+        URI batch = null;
+        URI link = null;
+        String linkKey = null;
+        if (response.statusCode() == 200) {
+            try {
+                FederationInfo info = mapper.readValue(response.body(), FederationInfo.class);
+                if (info.getEndpoints() != null && info.getEndpoints().get("messages") != null) {
+                    messages = URI.create(info.getEndpoints().get("messages"));
+                }
+                if (info.getEndpoints() != null && info.getEndpoints().get("messages_batch") != null) {
+                    batch = URI.create(info.getEndpoints().get("messages_batch"));
+                }
+                if (info.getEndpoints() != null && info.getEndpoints().get("link") != null) {
+                    link = URI.create(info.getEndpoints().get("link"));
+                }
+                linkKey = info.getLinkKey();
+            } catch (Exception e) {
+                log.warn("Invalid server info from {}: {}", serverDomain, e.getMessage());
+                etag = null;
+            }
+        } else if (response.statusCode() >= 500) {
+            return unreachable(serverDomain, previous, new IllegalStateException("status " + response.statusCode()));
+        } else {
+            log.warn("Could not discover server info for {}, using default", serverDomain);
+            etag = null;
+        }
+        return new Endpoint(messages, batch, link, linkKey, etag, now + ttl, now + ttl + staleMillis);
+    }
+
+    /**
+     * Keep serving a previously known endpoint until its stale window runs out; otherwise remember the failure
+     */
+    private Endpoint unreachable(String serverDomain, Endpoint previous, Throwable error) {
+        long now = clock.getAsLong();
+        if (previous != null && previous.isReachable() && now < previous.staleUntil()) {
+            log.warn("Could not revalidate server info for {}, keeping cached endpoint: {}", serverDomain,
+                    error.getMessage());
+            return previous;
+        }
+
+        log.warn("Server {} is unreachable, not retrying for {} ms: {}", serverDomain, negativeTtlMillis,
+                error.getMessage());
+        return new Endpoint(null, null, null, null, null, now + negativeTtlMillis, now + negativeTtlMillis);
+    }
+
+    private long ttl(HttpResponse<?> response) {
+        Optional<String> cacheControl = response.headers().firstValue("Cache-Control");
+        if (cacheControl.isPresent()) {
+            String directives = cacheControl.get().toLowerCase();
+            if (directives.contains("no-store") || directives.contains("no-cache")) {
+                return 0;
+            }
+            Matcher maxAge = MAX_AGE.matcher(directives);
+            if (maxAge.find()) {
+                return Math.min(Long.parseLong(maxAge.group(1)) * 1000, maxTtlMillis);
+            }
+        }
+        return defaultTtlMillis;
+    }
+}
@@ -0,0 +1,363 @@
+package org.margin.server.federation.services;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.*;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
+import org.margin.server.federation.models.FederationLinkFrame;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent WebSocket connection to one peer's {@link FederationLinkAcceptor}. Messages are sent as the peer grants
+ * credit and wait in a bounded queue otherwise; each completes with the peer's ack. When the connection drops, every
+ * message still waiting fails, so the caller can fall back to HTTP, and the link reconnects after a backoff. A
+ * message whose ack was lost may then reach the peer twice, which the receiving side ignores by message id. A link
+ * that stays down for the give-up time stops reconnecting and closes for good.
+ *
+ * <p>All state is confined to one event loop, which the link keeps across reconnects.
+ */
+@Slf4j
+public class FederationLink {
+
+    private record Outgoing(long seq, FederatedMessageDTO message, CompletableFuture<FederatedMessageResult> result) {
+    }
+
+    public record Settings(String localDomain, int maxFrameSize, int maxQueued, long connectTimeoutMillis,
+                           long ackTimeoutMillis, long reconnectBaseMillis, long reconnectMaxMillis,
+                           long giveUpMillis) {
+    }
+
+    /**
+     * Why a message could not go over the link
+     */
+    public enum Failure {
+        DOWN, FULL, CLOSED, TIMEOUT
+    }
+
+    public static final class LinkException extends IllegalStateException {
+        private final Failure failure;
+
+        private LinkException(Failure failure, String message) {
+            super(message);
+            this.failure = failure;
+        }
+
+        public Failure failure() {
+            return failure;
+        }
+    }
+
+    private final String peer;
+    private final URI uri;
+    private final Settings settings;
+    private final EventLoop eventLoop;
+    private final Class<? extends Channel> channelClass;
+    private final FederationSigningKey signingKey;
+    private final SslContext sslContext;
+
+    private final Map<Long, Outgoing> unacked = new HashMap<>();
+    private final Queue<Outgoing> waiting = new ArrayDeque<>();
+    private final CompletableFuture<Void> firstAttempt = new CompletableFuture<>();
+    private Channel channel;
+    private int credits;
+    private long nextSeq;
+    private int reconnectAttempts;
+    private long downSince = System.currentTimeMillis();
+
+    private volatile boolean open;
+    private volatile boolean closed;
+
+    public FederationLink(String peer, URI uri, Settings settings, EventLoop eventLoop,
+                          Class<? extends Channel> channelClass, FederationSigningKey signingKey) {
+        this.peer = peer;
+        this.uri = uri;
+        this.settings = settings;
+        this.eventLoop = eventLoop;
+        this.channelClass = channelClass;
+        this.signingKey = signingKey;
+        this.sslContext = "wss".equalsIgnoreCase(uri.getScheme()) ? newSslContext() : null;
+    }
+
+    public URI uri() {
+        return uri;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closed by the owner or given up on; a closed link never reconnects
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void connect() {
+        eventLoop.execute(this::doConnect);
+    }
+
+    /**
+     * Send a message over the link. While the link is being opened for the first time the message waits for it, up
+     * to the connect timeout. Otherwise fails straight away when the link is not open or too many messages are
+     * already waiting for credit, and later if the link drops or the ack does not arrive in time; the failure is a
+     * {@link LinkException} saying which.
+     */
+    public CompletableFuture<FederatedMessageResult> send(FederatedMessageDTO message) {
+        if (!open && !firstAttempt.isDone()) {
+            return firstAttempt.copy()
+                    .completeOnTimeout(null, settings.connectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .thenCompose(attempted -> enqueue(message));
+        }
+        return enqueue(message);
+    }
+
+    private CompletableFuture<FederatedMessageResult> enqueue(FederatedMessageDTO message) {
+        if (!open) {
+            return CompletableFuture.failedFuture(failure(Failure.DOWN, "is down"));
+        }
+
+        CompletableFuture<FederatedMessageResult> result = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            if (!open) {
+                result.completeExceptionally(failure(Failure.DOWN, "is down"));
+            } else if (waiting.size() >= settings.maxQueued()) {
+                result.completeExceptionally(failure(Failure.FULL, "is full"));
+            } else {
+                Outgoing outgoing = new Outgoing(nextSeq++, message, result);
+                waiting.add(outgoing);
+                ScheduledFuture<?> timeout = eventLoop.schedule(() -> expire(outgoing), settings.ackTimeoutMillis(),
+                        TimeUnit.MILLISECONDS);
+                result.whenComplete((done, error) -> timeout.cancel(false));
+                drain();
+            }
+        });
+        return result;
+    }
+
+    public void close() {
+        closed = true;
+        eventLoop.execute(() -> {
+            if (channel != null) {
+                channel.close();
+            }
+        });
+    }
+
+    private void doConnect() {
+        if (closed) {
+            return;
+        }
+
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : sslContext != null ? 443 : 80;
+        // Signed afresh on every attempt, as the peer only accepts recent handshakes and each one once
+        long now = System.currentTimeMillis();
+        HttpHeaders headers = new DefaultHttpHeaders()
+                .add(FederationLinkAcceptor.SERVER_DOMAIN_HEADER, settings.localDomain())
+                .add(FederationLinkAcceptor.TIMESTAMP_HEADER, now)
+                .add(FederationLinkAcceptor.SIGNATURE_HEADER,
+                        signingKey.sign(FederationSigningKey.linkHandshake(settings.localDomain(), peer, now)));
+        WebSocketClientProtocolConfig protocolConfig = WebSocketClientProtocolConfig.newBuilder()
+                .webSocketUri(uri)
+                .subprotocol(FederationLinkFrame.SUBPROTOCOL)
+                .customHeaders(headers)
+                .maxFramePayloadLength(settings.maxFrameSize())
+                .build();
+
+        new Bootstrap()
+                .group(eventLoop)
+                .channel(channelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) settings.connectTimeoutMillis())
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (sslContext != null) {
+                            ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), host, port));
+                        }
+                        ch.pipeline()
+                                .addLast(new HttpClientCodec())
+                                .addLast(new HttpObjectAggregator(settings.maxFrameSize()))
+                                .addLast(new WebSocketClientProtocolHandler(protocolConfig))
+                                .addLast(new OutboundLinkHandler());
+                    }
+                })
+                .connect(host, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess()) {
+                        log.warn("Could not open federation link to {}: {}", peer, future.cause().getMessage());
+                        firstAttempt.complete(null);
+                        scheduleReconnect();
+                    }
+                });
+    }
+
+    private void onOpen(Channel openedChannel) {
+        channel = openedChannel;
+        credits = 0;
+        reconnectAttempts = 0;
+        open = true;
+        firstAttempt.complete(null);
+        log.info("Federation link to {} open", peer);
+    }
+
+    private void onClosed() {
+        boolean wasOpen = open;
+        open = false;
+        channel = null;
+        credits = 0;
+
+        firstAttempt.complete(null);
+
+        LinkException error = failure(Failure.CLOSED, "closed");
+        unacked.values().forEach(outgoing -> outgoing.result().completeExceptionally(error));
+        unacked.clear();
+        waiting.forEach(outgoing -> outgoing.result().completeExceptionally(error));
+        waiting.clear();
+
+        if (wasOpen) {
+            log.warn("Federation link to {} closed", peer);
+            downSince = System.currentTimeMillis();
+        }
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (closed) {
+            return;
+        }
+        if (System.currentTimeMillis() - downSince >= settings.giveUpMillis()) {
+            log.warn("Giving up on federation link to {} after {} attempts", peer, reconnectAttempts + 1);
+            closed = true;
+            return;
+        }
+        reconnectAttempts++;
+        long ceiling = Math.min(settings.reconnectMaxMillis(),
+                settings.reconnectBaseMillis() * (1L << Math.min(reconnectAttempts - 1, 30)));
+        eventLoop.schedule(this::doConnect, ThreadLocalRandom.current().nextLong(ceiling + 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fail a message that was not acked in time. One still waiting for credit is dropped from the queue; one already
+     * sent holds a credit that only its ack returns, so the link is closed and reopened with a full window rather than
+     * left to shrink.
+     */
+    private void expire(Outgoing outgoing) {
+        if (outgoing.result().isDone()) {
+            return;
+        }
+        LinkException error = failure(Failure.TIMEOUT, "did not ack message " + outgoing.seq() + " in time");
+        if (unacked.remove(outgoing.seq()) != null) {
+            log.warn("Federation link to {} stopped acking, reopening it", peer);
+            outgoing.result().completeExceptionally(error);
+            channel.close();
+        } else {
+            waiting.remove(outgoing);
+            outgoing.result().completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Write as many waiting messages as there is credit for, then flush once
+     */
+    private void drain() {
+        boolean written = false;
+        while (credits > 0 && !waiting.isEmpty()) {
+            Outgoing outgoing = waiting.poll();
+            if (outgoing.result().isDone()) {
+                continue;
+            }
+            try {
+                channel.write(FederationLinkCodec.encode(channel.alloc(),
+                        FederationLinkFrame.message(outgoing.seq(), outgoing.message())));
+            } catch (IOException e) {
+                outgoing.result().completeExceptionally(e);
+                continue;
+            }
+            credits--;
+            unacked.put(outgoing.seq(), outgoing);
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    private void onFrame(FederationLinkFrame frame) {
+        if (frame.credits() != null) {
+            credits += frame.credits();
+        }
+        if (frame.type() == FederationLinkFrame.Type.ACK && frame.seq() != null) {
+            Outgoing outgoing = unacked.remove(frame.seq());
+            if (outgoing != null) {
+                outgoing.result().complete(frame.result() != null
+                        ? frame.result()
+                        : FederatedMessageResult.rejected(outgoing.message().getMessageId(), "Empty ack"));
+            }
+        }
+        drain();
+    }
+
+    private LinkException failure(Failure failure, String detail) {
+        return new LinkException(failure, "Federation link to " + peer + " " + detail);
+    }
+
+    private static SslContext newSslContext() {
+        try {
+            return SslContextBuilder.forClient().build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("Could not set up TLS for federation links", e);
+        }
+    }
+
+    private final class OutboundLinkHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+                onOpen(ctx.channel());
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws IOException {
+            if (frame instanceof BinaryWebSocketFrame binaryFrame) {
+                onFrame(FederationLinkCodec.decode(binaryFrame));
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            onClosed();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error("Federation link error to {}: {}", peer, cause.getMessage());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package org.margin.server.federation.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.*;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
+import org.margin.server.federation.models.FederationLinkFrame;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The receiving end of persistent links from other servers. The WebSocket server hands over upgrade requests for
+ * {@link #PATH}, which are only upgraded once signed by the server they claim to come from; each link is granted a
+ * window of credits, messages on it are stored like those posted over HTTP, and every ack returns a credit.
+ */
+@Slf4j
+@Service
+public class FederationLinkAcceptor {
+    public static final String PATH = "/federation/link";
+    public static final String SERVER_DOMAIN_HEADER = "X-Server-Domain";
+    public static final String TIMESTAMP_HEADER = "X-Federation-Timestamp";
+    public static final String SIGNATURE_HEADER = "X-Federation-Signature";
+
+    private final FederationConfig config;
+    private final FederationReceiver receiver;
+    private final FederationDiscovery discovery;
+    private final FederationLinks outboundLinks;
+    private final WebSocketServerHandshakerFactory handshakerFactory;
+    private final ChannelGroup links = new DefaultChannelGroup("federation-links", GlobalEventExecutor.INSTANCE);
+    private final ExecutorService workers;
+    private final Counter received;
+    private final Cache<String, Boolean> usedSignatures;
+    private final Cache<String, Boolean> refetched;
+
+    public FederationLinkAcceptor(FederationConfig config, WebSocketConfig webSocketConfig,
+                                  FederationReceiver receiver, FederationDiscovery discovery,
+                                  FederationLinks outboundLinks, MeterRegistry meterRegistry) {
+        this.config = config;
+        this.receiver = receiver;
+        this.discovery = discovery;
+        this.outboundLinks = outboundLinks;
+        this.handshakerFactory = new WebSocketServerHandshakerFactory(config.getLinkAdvertisedUrl(),
+                FederationLinkFrame.SUBPROTOCOL, false, webSocketConfig.getMaxFrameSize());
+        this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("federation-link-in-", 0).factory());
+        // A signature stays usable for the clock skew either side of its timestamp, so it is remembered that long
+        this.usedSignatures = Caffeine.newBuilder()
+                .expireAfterWrite(config.getLinkMaxClockSkew().multipliedBy(2))
+                .maximumSize(100_000)
+                .build();
+        this.refetched = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(1))
+                .maximumSize(10_000)
+                .build();
+        this.received = Counter.builder("federation.link.received")
+                .description("Messages received over links from other servers")
+                .register(meterRegistry);
+        Gauge.builder("federation.link.inbound", links, ChannelGroup::size)
+                .description("Links other servers have open to this one")
+                .register(meterRegistry);
+    }
+
+    public boolean handles(String uri) {
+        return config.isLinkEnabled() && new QueryStringDecoder(uri).path().equals(PATH);
+    }
+
+    /**
+     * Check that the request comes from the server it names, then upgrade it and take the channel over from the client
+     * WebSocket handler. The server must have signed the handshake with the key in its discovery document, which is
+     * fetched from its own domain; anything else is refused before the upgrade. Runs on the event loop.
+     */
+    public void accept(ChannelHandlerContext ctx, FullHttpRequest req) {
+        Channel channel = ctx.channel();
+        String peer = req.headers().get(SERVER_DOMAIN_HEADER);
+        String timestamp = req.headers().get(TIMESTAMP_HEADER);
+        String signature = req.headers().get(SIGNATURE_HEADER);
+
+        if (peer == null || peer.isBlank() || timestamp == null || signature == null) {
+            log.warn("Unsigned federation link request from {}", channel.remoteAddress());
+            refuse(channel);
+            return;
+        }
+        long signedAt;
+        try {
+            signedAt = Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            refuse(channel);
+            return;
+        }
+        if (Math.abs(System.currentTimeMillis() - signedAt) > config.getLinkMaxClockSkew().toMillis()) {
+            log.warn("Federation link request from {} signed too far from now", peer);
+            refuse(channel);
+            return;
+        }
+
+        // The peer's key may have to be fetched, so reads pause until it is checked
+        String handshake = FederationSigningKey.linkHandshake(peer, config.getServerDomain(), signedAt);
+        channel.config().setAutoRead(false);
+        req.retain();
+        verify(peer, handshake, signature, true).whenComplete((endpoint, error) ->
+                channel.eventLoop().execute(() -> {
+                    try {
+                        if (endpoint == null) {
+                            log.warn("Federation link request claiming to be {} failed verification", peer);
+                            refuse(channel);
+                        } else if (usedSignatures.asMap().putIfAbsent(signature, Boolean.TRUE) != null) {
+                            log.warn("Replayed federation link request for {}", peer);
+                            refuse(channel);
+                        } else if (channel.isActive()) {
+                            channel.config().setAutoRead(true);
+                            upgrade(ctx, req, peer);
+                            // A peer that links to this server is likely to be sent to as well
+                            if (outboundLinks.isEnabled() && endpoint.link() != null) {
+                                outboundLinks.open(peer, endpoint.link());
+                            }
+                        }
+                    } finally {
+                        req.release();
+                    }
+                }));
+    }
+
+    /**
+     * The peer's endpoint if the signature was made with the key it advertises, otherwise null. A peer whose signature
+     * fails against a cached key may have rotated it, so its document is fetched again, at most once a minute per peer.
+     */
+    private CompletableFuture<FederationDiscovery.Endpoint> verify(String peer, String handshake, String signature,
+                                                               boolean refetch) {
+        return discovery.resolve(peer).thenCompose(endpoint -> {
+            if (FederationSigningKey.verify(endpoint.linkKey(), handshake, signature)) {
+                return CompletableFuture.completedFuture(endpoint);
+            }
+            if (!refetch || refetched.asMap().putIfAbsent(peer, Boolean.TRUE) != null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            discovery.invalidate(peer);
+            return verify(peer, handshake, signature, false);
+        });
+    }
+
+    private void upgrade(ChannelHandlerContext ctx, FullHttpRequest req, String peer) {
+        Channel channel = ctx.channel();
+        WebSocketServerHandshaker handshaker = handshakerFactory.newHandshaker(req);
+        if (handshaker == null) {
+            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(channel);
+            return;
+        }
+
+        ctx.pipeline().replace(ctx.name(), "federation-link", new InboundLink(peer, handshaker));
+        handshaker.handshake(channel, req).addListener(future -> {
+            if (!future.isSuccess()) {
+                channel.close();
+                return;
+            }
+            links.add(channel);
+            log.info("Federation link opened by {}", peer);
+            write(channel, FederationLinkFrame.credit(config.getLinkWindow()));
+            channel.flush();
+        });
+    }
+
+    private static void refuse(Channel channel) {
+        channel.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.FORBIDDEN))
+                .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    /**
+     * Drop every open link; peers reconnect on their own
+     */
+    public void closeLinks() {
+        links.close();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        closeLinks();
+        workers.shutdown();
+    }
+
+    private static void write(Channel channel, FederationLinkFrame frame) {
+        try {
+            channel.write(FederationLinkCodec.encode(channel.alloc(), frame));
+        } catch (IOException e) {
+            log.error("Could not encode federation link frame: {}", e.getMessage());
+            channel.close();
+        }
+    }
+
+    private final class InboundLink extends SimpleChannelInboundHandler<WebSocketFrame> {
+        private final String peer;
+        private final WebSocketServerHandshaker handshaker;
+        // Only touched on the event loop
+        private int unacked;
+        private boolean flushScheduled;
+
+        private InboundLink(String peer, WebSocketServerHandshaker handshaker) {
+            this.peer = peer;
+            this.handshaker = handshaker;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws IOException {
+            switch (frame) {
+                case BinaryWebSocketFrame binaryFrame -> {
+                    onFrame(ctx.channel(), FederationLinkCodec.decode(binaryFrame));
+                }
+                case PingWebSocketFrame pingFrame -> {
+                    ctx.writeAndFlush(new PongWebSocketFrame(pingFrame.content().retain()));
+                }
+                case CloseWebSocketFrame closeFrame -> {
+                    handshaker.close(ctx.channel(), closeFrame.retain());
+                }
+                default -> {
+                    log.debug("Ignoring {} on federation link from {}", frame.getClass().getSimpleName(), peer);
+                }
+            }
+        }
+
+        private void onFrame(Channel channel, FederationLinkFrame frame) {
+            if (frame.type() != FederationLinkFrame.Type.MESSAGE || frame.seq() == null || frame.message() == null) {
+                log.debug("Ignoring {} frame on federation link from {}", frame.type(), peer);
+                return;
+            }
+            if (++unacked > config.getLinkWindow()) {
+                log.warn("{} sent more than its credit on a federation link, closing it", peer);
+                channel.close();
+                return;
+            }
+            received.increment();
+
+            long seq = frame.seq();
+            FederatedMessageDTO message = frame.message();
+            if (message.getFromServer() != null && !message.getFromServer().equals(peer)) {
+                log.warn("{} sent a message from {} over its federation link", peer, message.getFromServer());
+                unacked--;
+                write(channel, FederationLinkFrame.ack(seq,
+                        FederatedMessageResult.rejected(message.getMessageId(), "Sender does not match link")));
+                scheduleFlush(channel);
+                return;
+            }
+            message.setFromServer(peer);
+            try {
+                // Storing a message may block, so it happens off the event loop
+                workers.execute(() -> receiver.deliver(message, peer).thenAccept(result ->
+                        channel.eventLoop().execute(() -> {
+                            unacked--;
+                            write(channel, FederationLinkFrame.ack(seq, result));
+                            scheduleFlush(channel);
+                        })));
+            } catch (RejectedExecutionException e) {
+                channel.close();
+            }
+        }
+
+        /**
+         * Acks finishing together go out in one flush
+         */
+        private void scheduleFlush(Channel channel) {
+            if (!flushScheduled) {
+                flushScheduled = true;
+                channel.eventLoop().execute(() -> {
+                    flushScheduled = false;
+                    channel.flush();
+                });
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            log.info("Federation link from {} closed", peer);
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.error("Federation link error from {}: {}", peer, cause.getMessage());
+            ctx.close();
+        }
+    }
+}
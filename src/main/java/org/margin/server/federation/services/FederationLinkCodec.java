@@ -0,0 +1,41 @@
+package org.margin.server.federation.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.margin.server.federation.models.FederationLinkFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * CBOR encoding of {@link FederationLinkFrame}s in binary WebSocket frames, shared by both ends of a link
+ */
+final class FederationLinkCodec {
+    private static final ObjectMapper CBOR_MAPPER = new CBORMapper();
+
+    private FederationLinkCodec() {
+    }
+
+    static BinaryWebSocketFrame encode(ByteBufAllocator allocator, FederationLinkFrame frame) throws IOException {
+        ByteBuf buffer = allocator.buffer();
+        try (OutputStream out = new ByteBufOutputStream(buffer)) {
+            CBOR_MAPPER.writeValue(out, frame);
+        } catch (IOException e) {
+            buffer.release();
+            throw e;
+        }
+        return new BinaryWebSocketFrame(buffer);
+    }
+
+    static FederationLinkFrame decode(BinaryWebSocketFrame frame) throws IOException {
+        try (InputStream in = new ByteBufInputStream(frame.content())) {
+            return CBOR_MAPPER.readValue(in, FederationLinkFrame.class);
+        }
+    }
+}
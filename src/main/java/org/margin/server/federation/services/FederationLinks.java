@@ -0,0 +1,154 @@
+package org.margin.server.federation.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.EventLoopGroup;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
+import org.margin.server.websocket.transport.WebSocketTransport;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Persistent links to the peers this server sends to. A link is opened as soon as a peer is found to advertise one,
+ * and is then kept, reconnecting as needed. Messages wait briefly for a link being opened for the first time; whenever
+ * a link is down or fails, they go over HTTP instead, counted by reason in {@code federation.link.fallbacks}.
+ *
+ * <p>At most {@code federation.link.maximum-links} are kept. A link unused for the client keep-alive is closed, and
+ * one that cannot connect for as long gives up; the next send to the peer opens it afresh.
+ */
+@Slf4j
+@Service
+public class FederationLinks {
+    private final FederationConfig config;
+    private final WebSocketTransport transport;
+    private final FederationLink.Settings settings;
+    private final FederationSigningKey signingKey;
+    private final Cache<String, FederationLink> links;
+    private final MeterRegistry meterRegistry;
+    private final Counter sent;
+    private EventLoopGroup group;
+
+    public FederationLinks(FederationConfig config, WebSocketConfig webSocketConfig, FederationSigningKey signingKey,
+                           MeterRegistry meterRegistry) {
+        this.config = config;
+        this.signingKey = signingKey;
+        this.meterRegistry = meterRegistry;
+        this.transport = WebSocketTransport.select(webSocketConfig.getTransport());
+        this.settings = new FederationLink.Settings(
+                config.getServerDomain(),
+                webSocketConfig.getMaxFrameSize(),
+                config.getLinkMaxQueued(),
+                config.getClientConnectTimeout().toMillis(),
+                config.getClientRequestTimeout().toMillis(),
+                config.getLinkReconnectBase().toMillis(),
+                config.getLinkReconnectMax().toMillis(),
+                config.getClientKeepAlive().toMillis());
+        this.links = Caffeine.newBuilder()
+                .expireAfterAccess(config.getClientKeepAlive())
+                .maximumSize(config.getLinkMaximumLinks())
+                .scheduler(Scheduler.systemScheduler())
+                .executor(Runnable::run)
+                .removalListener((String peer, FederationLink link, RemovalCause cause) -> {
+                    // A replaced link is closed where it is replaced
+                    if (link != null && cause != RemovalCause.REPLACED) {
+                        link.close();
+                    }
+                })
+                .build();
+        this.sent = Counter.builder("federation.link.sent")
+                .description("Messages acknowledged by peers over links")
+                .register(meterRegistry);
+        Gauge.builder("federation.link.outbound", links,
+                        open -> open.asMap().values().stream().filter(FederationLink::isOpen).count())
+                .description("Links open from this server to peers")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return config.isLinkEnabled();
+    }
+
+    public boolean isOpen(String peer) {
+        FederationLink link = links.policy().getIfPresentQuietly(peer);
+        return link != null && link.isOpen();
+    }
+
+    /**
+     * Start connecting to the peer's link unless it is already connected or connecting. Only done while there is room,
+     * so links opened in anticipation never push out ones in use.
+     */
+    public void open(String peer, URI linkUri) {
+        if (links.policy().getIfPresentQuietly(peer) != null || links.estimatedSize() < config.getLinkMaximumLinks()) {
+            link(peer, linkUri);
+        }
+    }
+
+    /**
+     * Send over the peer's link, opening it if there is none yet. Fails when the link cannot take the message, in
+     * which case the caller sends it over HTTP.
+     */
+    public CompletableFuture<FederatedMessageResult> send(String peer, URI linkUri, FederatedMessageDTO message) {
+        return link(peer, linkUri).send(message).whenComplete((result, error) -> {
+            if (error != null) {
+                fallback(error);
+            } else {
+                sent.increment();
+            }
+        });
+    }
+
+    private void fallback(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        String reason = cause instanceof FederationLink.LinkException linkException
+                ? linkException.failure().name().toLowerCase()
+                : "error";
+        Counter.builder("federation.link.fallbacks")
+                .description("Messages sent over HTTP because the peer's link was down or failed")
+                .tag("reason", reason)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private FederationLink link(String peer, URI linkUri) {
+        return links.asMap().compute(peer, (name, existing) -> {
+            if (existing != null && !existing.isClosed() && existing.uri().equals(linkUri)) {
+                return existing;
+            }
+            if (existing != null) {
+                existing.close();
+            }
+            FederationLink created = new FederationLink(name, linkUri, settings, eventLoops().next(),
+                    transport.channelClass(), signingKey);
+            created.connect();
+            return created;
+        });
+    }
+
+    private synchronized EventLoopGroup eventLoops() {
+        if (group == null) {
+            group = transport.newEventLoopGroup(1, "federation-link");
+        }
+        return group;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        links.invalidateAll();
+        if (group != null) {
+            group.shutdownGracefully();
+        }
+    }
+}
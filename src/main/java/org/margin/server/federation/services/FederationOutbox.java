@@ -0,0 +1,325 @@
+package org.margin.server.federation.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederationOutboxEntry;
+import org.margin.server.federation.repositories.FederationOutboxRepository;
+import org.margin.server.social.models.DirectMessage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable delivery of federated messages. A message is written to the outbox table before the first attempt and
+ * only deleted once its server has accepted it, so nothing is lost to a failed request or a restart. Each peer has
+ * its own limit of attempts in flight and its own circuit breaker: failed attempts are retried after an exponential
+ * backoff with full jitter, and a peer that keeps failing is left alone for a while, with its messages held back,
+ * instead of tying up delivery to everyone else.
+ */
+@Slf4j
+@Service
+public class FederationOutbox {
+    private static final String OTHER_PEERS = "other";
+
+    /**
+     * Delivery state for one peer, kept while the peer has messages being attempted
+     */
+    private final class Peer {
+        private final String name;
+        private final CircuitBreaker breaker;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final PeerMetrics metrics;
+
+        private Peer(String name) {
+            this.name = name;
+            this.breaker = new CircuitBreaker(config.getOutboxBreakerFailureThreshold(),
+                    config.getOutboxBreakerOpenDuration().toMillis());
+            this.metrics = metrics(metricsTag(name));
+        }
+    }
+
+    /**
+     * Meters for one peer listed in {@code federation.metrics.peers}, or shared by all others under "other"
+     */
+    private final class PeerMetrics {
+        private final AtomicLong depth = new AtomicLong();
+        private final AtomicLong oldestMillis = new AtomicLong();
+        private final Timer lag;
+        private final Counter delivered;
+        private final Counter failed;
+        private final Counter dead;
+
+        private PeerMetrics(String tag) {
+            this.lag = Timer.builder("federation.outbox.delivery.lag")
+                    .description("Time from queueing a federated message to its server accepting it")
+                    .tag("peer", tag)
+                    .register(meterRegistry);
+            this.delivered = Counter.builder("federation.outbox.attempts").tag("peer", tag)
+                    .tag("outcome", "delivered").register(meterRegistry);
+            this.failed = Counter.builder("federation.outbox.attempts").tag("peer", tag)
+                    .tag("outcome", "failed").register(meterRegistry);
+            this.dead = Counter.builder("federation.outbox.dead")
+                    .description("Messages given up on after the maximum number of attempts")
+                    .tag("peer", tag)
+                    .register(meterRegistry);
+
+            Gauge.builder("federation.outbox.depth", depth, AtomicLong::get)
+                    .description("Messages waiting to be delivered to the peer")
+                    .tag("peer", tag)
+                    .register(meterRegistry);
+            Gauge.builder("federation.outbox.oldest.age", oldestMillis,
+                            oldest -> oldest.get() == 0 ? 0 : (System.currentTimeMillis() - oldest.get()) / 1000.0)
+                    .description("Seconds the oldest undelivered message to the peer has been waiting")
+                    .baseUnit("seconds")
+                    .tag("peer", tag)
+                    .register(meterRegistry);
+            Gauge.builder("federation.outbox.circuit.open", peers, known -> known.asMap().values().stream()
+                            .filter(peer -> peer.metrics == this && peer.breaker.state() != CircuitBreaker.State.CLOSED)
+                            .count())
+                    .description("Peers whose circuit is open or half open")
+                    .tag("peer", tag)
+                    .register(meterRegistry);
+        }
+    }
+
+    private final FederationConfig config;
+    private final FederationOutboxRepository repository;
+    private final FederationService federationService;
+    private final ObjectMapper mapper;
+    private final MeterRegistry meterRegistry;
+    private final Cache<String, Peer> peers;
+    private final Map<String, PeerMetrics> metrics = new ConcurrentHashMap<>();
+    private final Set<String> taggedPeers;
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+
+    public FederationOutbox(FederationConfig config,
+                            FederationOutboxRepository repository,
+                            FederationService federationService,
+                            ObjectMapper mapper,
+                            MeterRegistry meterRegistry) {
+        this.config = config;
+        this.repository = repository;
+        this.federationService = federationService;
+        this.mapper = mapper;
+        this.meterRegistry = meterRegistry;
+        // Peers are named by users, so their state is only kept while in use; a peer untouched for longer than the
+        // longest backoff has nothing due, and starts over with a closed circuit
+        this.peers = Caffeine.newBuilder()
+                .expireAfterAccess(config.getOutboxBackoffMax())
+                .maximumSize(config.getDiscoveryMaximumPeers())
+                .build();
+        this.taggedPeers = config.getMetricsPeers() != null ? Set.copyOf(config.getMetricsPeers()) : Set.of();
+        this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("federation-outbox-", 0).factory());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "federation-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PostConstruct
+    public void start() {
+        long interval = config.getOutboxPollInterval().toMillis();
+        scheduler.scheduleWithFixedDelay(this::poll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record the message for delivery and make a first attempt straight away. Queueing the same message twice has
+     * no effect. The future completes once the outbox row is written.
+     */
+    public CompletableFuture<Void> enqueue(DirectMessage message) {
+        return CompletableFuture.runAsync(() -> record(message), workers);
+    }
+
+    private void record(DirectMessage message) {
+        FederatedMessageDTO dto = federationService.toFederatedDTO(message);
+        String payload;
+        try {
+            payload = mapper.writeValueAsString(dto);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Message cannot be serialized", e);
+        }
+
+        Peer peer = peer(message.getToUserServer());
+        FederationOutboxEntry entry = new FederationOutboxEntry(message.getId(), peer.name, payload, Instant.now());
+        if (repository.existsById(entry.getId())) {
+            return;
+        }
+        if (peer.breaker.state() == CircuitBreaker.State.OPEN) {
+            entry.setNextAttemptAt(Instant.ofEpochMilli(Math.max(peer.breaker.openUntil(), System.currentTimeMillis())));
+        }
+        repository.save(entry);
+        peer.metrics.depth.incrementAndGet();
+
+        attempt(entry);
+    }
+
+    private void poll() {
+        try {
+            refreshBacklog();
+
+            for (FederationOutboxEntry entry : repository.findDue(Instant.now(), Limit.of(config.getOutboxBatchSize()))) {
+                attempt(entry);
+            }
+        } catch (Exception e) {
+            log.error("Federation outbox poll failed: {}", e.getMessage());
+        }
+    }
+
+    private void attempt(FederationOutboxEntry candidate) {
+        Peer peer = peer(candidate.getPeer());
+        if (peer.inFlight.get() >= config.getOutboxMaxInFlightPerPeer() || !inFlight.add(candidate.getId())) {
+            return;
+        }
+        // A polled row may have been delivered or retried since it was read, so go by the row as it is now
+        FederationOutboxEntry entry = repository.findById(candidate.getId())
+                .filter(current -> current.getStatus() == FederationOutboxEntry.Status.PENDING
+                        && !current.getNextAttemptAt().isAfter(Instant.now()))
+                .orElse(null);
+        if (entry == null || !peer.breaker.allowRequest(System.currentTimeMillis())) {
+            inFlight.remove(candidate.getId());
+            return;
+        }
+        peer.inFlight.incrementAndGet();
+
+        CompletableFuture<Boolean> delivery;
+        try {
+            FederatedMessageDTO message = mapper.readValue(entry.getPayload(), FederatedMessageDTO.class);
+            delivery = federationService.sendFederatedMessage(entry.getPeer(), message);
+        } catch (Exception e) {
+            delivery = CompletableFuture.failedFuture(e);
+        }
+
+        delivery.whenCompleteAsync((accepted, error) -> {
+            try {
+                if (error == null && accepted) {
+                    onDelivered(peer, entry);
+                } else {
+                    onFailed(peer, entry, error != null ? error.getMessage() : "Refused by peer");
+                }
+            } catch (Exception e) {
+                log.error("Could not record outcome for federated message {}: {}", entry.getId(), e.getMessage());
+            } finally {
+                peer.inFlight.decrementAndGet();
+                inFlight.remove(entry.getId());
+            }
+        }, workers);
+    }
+
+    private void onDelivered(Peer peer, FederationOutboxEntry entry) {
+        repository.deleteById(entry.getId());
+        peer.breaker.onSuccess();
+        peer.metrics.delivered.increment();
+        peer.metrics.depth.updateAndGet(depth -> Math.max(0, depth - 1));
+        peer.metrics.lag.record(Duration.between(entry.getCreatedAt(), Instant.now()));
+    }
+
+    private void onFailed(Peer peer, FederationOutboxEntry entry, String error) {
+        long now = System.currentTimeMillis();
+        peer.metrics.failed.increment();
+
+        boolean opened = peer.breaker.onFailure(now);
+
+        entry.setAttempts(entry.getAttempts() + 1);
+        entry.setLastError(error != null && error.length() > 1000 ? error.substring(0, 1000) : error);
+        if (entry.getAttempts() >= config.getOutboxMaxAttempts()) {
+            log.error("Giving up on federated message {} to {} after {} attempts: {}", entry.getId(), peer.name,
+                    entry.getAttempts(), error);
+            entry.setStatus(FederationOutboxEntry.Status.DEAD);
+            peer.metrics.dead.increment();
+            peer.metrics.depth.updateAndGet(depth -> Math.max(0, depth - 1));
+        } else {
+            long retryAt = now + backoffMillis(entry.getAttempts());
+            if (peer.breaker.state() == CircuitBreaker.State.OPEN) {
+                retryAt = Math.max(retryAt, peer.breaker.openUntil());
+            }
+            entry.setNextAttemptAt(Instant.ofEpochMilli(retryAt));
+        }
+        repository.save(entry);
+
+        if (opened) {
+            log.warn("Circuit to {} opened after repeated failures, holding its messages for {}", peer.name,
+                    config.getOutboxBreakerOpenDuration());
+            repository.deferPeer(peer.name, Instant.ofEpochMilli(peer.breaker.openUntil()));
+        }
+    }
+
+    /**
+     * Full jitter: a uniformly random wait up to the capped exponential delay, so retries from many messages to the
+     * same peer spread out instead of arriving together
+     */
+    private long backoffMillis(int attempts) {
+        long base = config.getOutboxBackoffBase().toMillis();
+        long cap = config.getOutboxBackoffMax().toMillis();
+        long ceiling = Math.min(cap, base * (1L << Math.min(attempts - 1, 30)));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Set the backlog gauges from the table, summing the depth and taking the oldest message across the peers that
+     * share a tag
+     */
+    private void refreshBacklog() {
+        Map<String, Long> depths = new HashMap<>();
+        Map<String, Long> oldest = new HashMap<>();
+        for (FederationOutboxRepository.PeerBacklog backlog : repository.findBacklogByPeer()) {
+            String tag = metricsTag(backlog.getPeer());
+            depths.merge(tag, backlog.getDepth(), Long::sum);
+            if (backlog.getOldest() != null) {
+                oldest.merge(tag, backlog.getOldest().toEpochMilli(), Math::min);
+            }
+        }
+        depths.keySet().forEach(this::metrics);
+        metrics.forEach((tag, peerMetrics) -> {
+            peerMetrics.depth.set(depths.getOrDefault(tag, 0L));
+            peerMetrics.oldestMillis.set(oldest.getOrDefault(tag, 0L));
+        });
+    }
+
+    private Peer peer(String name) {
+        return peers.get(name, Peer::new);
+    }
+
+    private PeerMetrics metrics(String tag) {
+        return metrics.computeIfAbsent(tag, PeerMetrics::new);
+    }
+
+    private String metricsTag(String peer) {
+        return taggedPeers.contains(peer) ? peer : OTHER_PEERS;
+    }
+
+    public List<String> peersWithOpenCircuit() {
+        return peers.asMap().values().stream()
+                .filter(peer -> peer.breaker.state() != CircuitBreaker.State.CLOSED)
+                .map(peer -> peer.name)
+                .toList();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdown();
+    }
+}
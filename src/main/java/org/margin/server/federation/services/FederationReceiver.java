@@ -0,0 +1,98 @@
+package org.margin.server.federation.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
+import org.margin.server.social.models.DirectMessage;
+import org.margin.server.social.services.MessageService;
+import org.margin.server.websocket.services.WebSocketClientService;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores and delivers messages received from other servers, whichever way they arrived
+ */
+@Slf4j
+@Service
+public class FederationReceiver {
+    public static final String INVALID_MESSAGE = "Invalid message";
+    private static final long DELIVERY_TIMEOUT_SECONDS = 30;
+
+    private final WebSocketClientService webSocketClientService;
+    private final MessageService messageService;
+    private final FederationConfig federationConfig;
+
+    public FederationReceiver(WebSocketClientService webSocketClientService, MessageService messageService,
+                              FederationConfig federationConfig) {
+        this.webSocketClientService = webSocketClientService;
+        this.messageService = messageService;
+        this.federationConfig = federationConfig;
+    }
+
+    /**
+     * Store and deliver a received message unless it was received before. A redelivered copy counts as accepted once
+     * the first is stored, and is rejected, to be retried, while the first is still being stored. The future never
+     * completes exceptionally.
+     */
+    public CompletableFuture<FederatedMessageResult> deliver(FederatedMessageDTO messageDTO, String originServer) {
+        Long messageId = messageDTO.getMessageId();
+        if (messageDTO.getToUserId() == null || messageDTO.getMessage() == null || messageDTO.getMessage().isBlank()) {
+            return CompletableFuture.completedFuture(FederatedMessageResult.rejected(messageId, INVALID_MESSAGE));
+        }
+
+        // The server the message came in from is known to the transport; the body only says what the sender claims
+        String fromServer = originServer != null ? originServer : messageDTO.getFromServer();
+        String federatedMessageId = messageId != null ? messageId.toString() : null;
+        try {
+            if (federatedMessageId != null) {
+                switch (messageService.claimFederatedMessage(fromServer, federatedMessageId)) {
+                    case STORED -> {
+                        log.debug("Ignoring redelivered message {} from {}", messageId, fromServer);
+                        return CompletableFuture.completedFuture(FederatedMessageResult.accepted(messageId));
+                    }
+                    case IN_PROGRESS -> {
+                        // The first copy may still fail, so the sender has to keep this one until it can be confirmed
+                        return CompletableFuture.completedFuture(
+                                FederatedMessageResult.rejected(messageId, "Delivery in progress"));
+                    }
+                    case CLAIMED -> {
+                    }
+                }
+            }
+
+            DirectMessage message = toDirectMessage(messageDTO, fromServer);
+            message.setFederatedMessageId(federatedMessageId);
+            return webSocketClientService.sendMessageToUser(message)
+                    .thenApply(saved -> FederatedMessageResult.accepted(messageId))
+                    .exceptionally(e -> {
+                        release(fromServer, federatedMessageId);
+                        return FederatedMessageResult.rejected(messageId, "Message could not be stored");
+                    })
+                    .completeOnTimeout(FederatedMessageResult.rejected(messageId, "Timed out"),
+                            DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("Could not deliver federated message {}: {}", messageId, e.getMessage());
+            release(fromServer, federatedMessageId);
+            return CompletableFuture.completedFuture(FederatedMessageResult.rejected(messageId, e.getMessage()));
+        }
+    }
+
+    private void release(String fromServer, String federatedMessageId) {
+        if (federatedMessageId != null) {
+            messageService.releaseFederatedMessage(fromServer, federatedMessageId);
+        }
+    }
+
+    private DirectMessage toDirectMessage(FederatedMessageDTO messageDTO, String fromServer) {
+        return new DirectMessage(
+                messageDTO.getFromUserId(),
+                messageDTO.getToUserId(),
+                fromServer,
+                federationConfig.getServerDomain(),
+                messageDTO.getMessage()
+        );
+    }
+}
@@ -1,75 +1,93 @@
 package org.margin.server.federation.services;
 
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 import org.margin.server.social.models.DirectMessage;
 import org.margin.server.config.FederationConfig;
 import org.margin.server.federation.models.FederatedMessageDTO;
-import org.margin.server.federation.models.FederationInfo;
+import org.margin.server.federation.models.FederatedMessageResult;
+
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @Service
 public class FederationService {
     private final FederationConfig federationConfig;
-    private RestTemplate restTemplate;
+    private final FederationClient federationClient;
+    private final FederationDiscovery federationDiscovery;
+    private final FederationBatcher federationBatcher;
+    private final FederationLinks federationLinks;
+    private final boolean batchEnabled;
 
-    public FederationService(FederationConfig federationConfig) {
+    public FederationService(FederationConfig federationConfig, FederationClient federationClient,
+                             FederationDiscovery federationDiscovery, FederationBatcher federationBatcher,
+                             FederationLinks federationLinks) {
         this.federationConfig = federationConfig;
+        this.federationClient = federationClient;
+        this.federationDiscovery = federationDiscovery;
+        this.federationBatcher = federationBatcher;
+        this.federationLinks = federationLinks;
+        this.batchEnabled = federationConfig.isBatchEnabled();
     }
 
     /**
-     * Send a message to a user on another server
+     * Send a message to a user on another server. The future completes with whether the peer accepted it and never
+     * completes exceptionally.
      */
-    public boolean sendFederatedMessage(DirectMessage message) {
-        try {
-            String targetServerUrl = discoverServerEndpoint(message.getToUserServer());
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.set("X-Server-Domain", federationConfig.getServerDomain());
-            // TODO: Add authentication
-
-            HttpEntity<FederatedMessageDTO> request = new HttpEntity<>(
-                    toFederatedDTO(message), headers
-            );
-
-            String endpoint = targetServerUrl + "/federation/messages";
-            ResponseEntity<Void> response = restTemplate.postForEntity(
-                    endpoint, request, Void.class
-            );
+    public CompletableFuture<Boolean> sendFederatedMessage(DirectMessage message) {
+        return sendFederatedMessage(message.getToUserServer(), toFederatedDTO(message));
+    }
 
-            return response.getStatusCode().is2xxSuccessful();
+    public CompletableFuture<Boolean> sendFederatedMessage(String targetServer, FederatedMessageDTO message) {
+        return federationDiscovery.resolve(targetServer)
+                .thenCompose(endpoint -> {
+                    if (!endpoint.isReachable()) {
+                        log.warn("Not sending to {}, it was unreachable recently", targetServer);
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    if (federationLinks.isEnabled() && endpoint.link() != null) {
+                        return federationLinks.send(targetServer, endpoint.link(), message)
+                                .thenApply(result -> accepted(targetServer, result))
+                                .exceptionallyCompose(e -> {
+                                    log.debug("Sending to {} over HTTP: {}", targetServer, e.getMessage());
+                                    return sendOverHttp(targetServer, endpoint, message);
+                                });
+                    }
+                    return sendOverHttp(targetServer, endpoint, message);
+                })
+                .exceptionally(e -> {
+                    log.error("Failed to send federated message to {}: {}", targetServer, e.getMessage());
+                    return false;
+                });
+    }
 
-        } catch (Exception e) {
-            log.error("Failed to send federated message to {}: {}",
-                    message.getToUserServer(), e.getMessage());
-            return false;
+    private CompletableFuture<Boolean> sendOverHttp(String targetServer, FederationDiscovery.Endpoint endpoint,
+                                                    FederatedMessageDTO message) {
+        if (batchEnabled && endpoint.batch() != null) {
+            return federationBatcher.submit(endpoint.batch(), message)
+                    .thenApply(result -> accepted(targetServer, result));
         }
+        return federationClient.post(endpoint.messages(), message)
+                .thenApply(response -> {
+                    if (response.statusCode() / 100 != 2) {
+                        log.error("Federated message to {} was refused with status {}",
+                                targetServer, response.statusCode());
+                        return false;
+                    }
+                    return true;
+                });
     }
 
-    /**
-     * Discover the endpoint for a given server domain
-     */
-    private String discoverServerEndpoint(String serverDomain) {
-        // Try well-known endpoint first
-        try {
-            String wellKnownUrl = "https://" + serverDomain + "/.well-known/federation";
-            FederationInfo info = restTemplate.getForObject(wellKnownUrl, FederationInfo.class);
-            if (info != null && info.getEndpoints() != null) {
-                return info.getEndpoints().get("messages");
-            }
-        } catch (Exception e) {
-            log.warn("Could not discover server info for {}, using default", serverDomain);
+    private static boolean accepted(String targetServer, FederatedMessageResult result) {
+        if (!result.accepted()) {
+            log.error("Federated message to {} was refused: {}", targetServer, result.error());
         }
-
-        // Fallback to standard endpoint
-        return "https://" + serverDomain;
+        return result.accepted();
     }
 
-    private FederatedMessageDTO toFederatedDTO(DirectMessage message) {
+    public FederatedMessageDTO toFederatedDTO(DirectMessage message) {
         return FederatedMessageDTO.builder()
+                .messageId(message.getId())
                 .fromUserId(message.getFromUserId())
                 .fromServer(message.getFromUserServer() != null ?
                         message.getFromUserServer() : federationConfig.getServerDomain())
@@ -78,4 +96,4 @@ public class FederationService {
                 .timestamp(System.currentTimeMillis())
                 .build();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+package org.margin.server.federation.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.margin.server.config.FederationConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * This server's Ed25519 key for proving its identity to peers. The public half is published in
+ * {@code /.well-known/federation}, so a peer can check a signature against the key served from the domain the
+ * signer claims to be.
+ */
+@Slf4j
+@Component
+public class FederationSigningKey {
+    private static final String ALGORITHM = "Ed25519";
+    private static final String LINK_HANDSHAKE = "margin-federation-link";
+
+    private final PrivateKey privateKey;
+    private final String publicKey;
+
+    public FederationSigningKey(FederationConfig config) throws GeneralSecurityException {
+        KeyFactory keyFactory = KeyFactory.getInstance(ALGORITHM);
+        String configuredPrivate = config.getLinkPrivateKey();
+        String configuredPublic = config.getLinkPublicKey();
+
+        if (configuredPrivate != null && !configuredPrivate.isBlank()
+                && configuredPublic != null && !configuredPublic.isBlank()) {
+            this.privateKey = keyFactory.generatePrivate(
+                    new PKCS8EncodedKeySpec(Base64.getDecoder().decode(configuredPrivate.trim())));
+            this.publicKey = Base64.getEncoder().encodeToString(keyFactory.generatePublic(
+                    new X509EncodedKeySpec(Base64.getDecoder().decode(configuredPublic.trim()))).getEncoded());
+        } else {
+            log.warn("No federation signing key configured, generating one; peers will refetch it after a restart");
+            KeyPair keyPair = KeyPairGenerator.getInstance(ALGORITHM).generateKeyPair();
+            this.privateKey = keyPair.getPrivate();
+            this.publicKey = Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        }
+    }
+
+    /**
+     * Base64 of the X.509 encoded public key
+     */
+    public String publicKey() {
+        return publicKey;
+    }
+
+    /**
+     * What a server signs to open a link: who it is, which server it connects to and when, so a signature cannot be
+     * used against another server or long after it was made
+     */
+    public static String linkHandshake(String fromServer, String toServer, long timestampMillis) {
+        return LINK_HANDSHAKE + "\n" + fromServer + "\n" + toServer + "\n" + timestampMillis;
+    }
+
+    public String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance(ALGORITHM);
+            signature.initSign(privateKey);
+            signature.update(data.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign federation data", e);
+        }
+    }
+
+    /**
+     * Whether the signature was made over the data with the private half of the given public key. Malformed input
+     * counts as not verified.
+     */
+    public static boolean verify(String publicKey, String data, String signature) {
+        if (publicKey == null || data == null || signature == null) {
+            return false;
+        }
+        try {
+            PublicKey key = KeyFactory.getInstance(ALGORITHM)
+                    .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey)));
+            Signature verifier = Signature.getInstance(ALGORITHM);
+            verifier.initVerify(key);
+            verifier.update(data.getBytes(StandardCharsets.UTF_8));
+            return verifier.verify(Base64.getDecoder().decode(signature));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -1,36 +1,53 @@
 package org.margin.server.social.controllers;
 
+import org.margin.server.authentication.models.JwtPrincipal;
+import org.margin.server.social.models.ChatHistoryPage;
 import org.margin.server.social.models.DirectMessage;
-import org.margin.server.social.repositories.ChatMessageRepository;
+import org.margin.server.social.services.MessageService;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
+/**
+ * Conversations of the signed-in user, who is always taken from the token rather than the request parameters
+ */
 @RestController
 @RequestMapping("/chat_messages")
 public class ChatMessagesController {
-	private final ChatMessageRepository chatMessageRepository;
+	private final MessageService messageService;
 
-	public ChatMessagesController(ChatMessageRepository chatMessageRepository) {
-		this.chatMessageRepository = chatMessageRepository;
+	public ChatMessagesController(MessageService messageService) {
+		this.messageService = messageService;
 	}
 
+	/**
+	 * Full conversation, unpaginated. Prefer {@link #getChatHistoryPage}.
+	 */
+	@Deprecated
 	@GetMapping("get_chat_history")
-	public List<DirectMessage> getChatHistory(@RequestParam Long userId, @RequestParam Long toUserId) {
-		List<DirectMessage> messagesFromUser = chatMessageRepository.findByFromUserIdAndToUserId(userId, toUserId);
-		List<DirectMessage> messagesToUser = chatMessageRepository.findByFromUserIdAndToUserId(toUserId, userId);
-
-		List<DirectMessage> allMessages = new ArrayList<>();
-		allMessages.addAll(messagesFromUser);
-		allMessages.addAll(messagesToUser);
+	public List<DirectMessage> getChatHistory(@AuthenticationPrincipal JwtPrincipal principal,
+											  @RequestParam Long toUserId) {
+		return messageService.getFullConversation(principal.userId(), toUserId, null);
+	}
 
-		allMessages.sort(Comparator.comparing(DirectMessage::getCreatedAt));
+	@GetMapping("history")
+	public ChatHistoryPage getChatHistoryPage(@AuthenticationPrincipal JwtPrincipal principal,
+											  @RequestParam Long toUserId,
+											  @RequestParam(required = false) String toUserServer,
+											  @RequestParam(required = false) Long before,
+											  @RequestParam(required = false) Long after,
+											  @RequestParam(defaultValue = "50") int limit) {
+		return messageService.getChatHistory(principal.userId(), toUserId, toUserServer, before, after, limit);
+	}
 
-		return allMessages;
+	@GetMapping("unread_count")
+	public long getUnreadCount(@AuthenticationPrincipal JwtPrincipal principal,
+							   @RequestParam Long toUserId,
+							   @RequestParam(required = false) String toUserServer) {
+		return messageService.countUnread(principal.userId(), toUserId, toUserServer);
 	}
 }
@@ -0,0 +1,71 @@
+package org.margin.server.social.ids;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Time-ordered 64-bit ids: 41 bits of milliseconds since {@link #EPOCH}, 10 bits of node id and a 12 bit sequence.
+ * Ids from the same node never collide, sort by creation time and are safe to hand to federated servers.
+ */
+public final class Snowflake {
+    // 2025-01-01T00:00:00Z
+    public static final long EPOCH = 1735689600000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIMESTAMP_SHIFT = NODE_BITS + SEQUENCE_BITS;
+
+    private static final Map<Integer, Snowflake> NODES = new ConcurrentHashMap<>();
+
+    private final long nodeBits;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    private Snowflake(int nodeId) {
+        this.nodeBits = (long) nodeId << SEQUENCE_BITS;
+    }
+
+    /**
+     * Every caller on a node must share one instance, otherwise two generators could hand out the same id
+     */
+    public static Snowflake forNode(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        return NODES.computeIfAbsent(nodeId, Snowflake::new);
+    }
+
+    public synchronized long nextId() {
+        long timestamp = System.currentTimeMillis();
+
+        // Never step backwards if the wall clock does
+        if (timestamp < lastTimestamp) {
+            timestamp = lastTimestamp;
+        }
+
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                timestamp = lastTimestamp + 1;
+            }
+        } else {
+            sequence = 0;
+        }
+
+        lastTimestamp = timestamp;
+        return ((timestamp - EPOCH) << TIMESTAMP_SHIFT) | nodeBits | sequence;
+    }
+
+    public static long timestampOf(long id) {
+        return (id >>> TIMESTAMP_SHIFT) + EPOCH;
+    }
+
+    /**
+     * Smallest id that could have been generated at the given time, on any node
+     */
+    public static long lowerBoundFor(long epochMillis) {
+        return Math.max(0, epochMillis - EPOCH) << TIMESTAMP_SHIFT;
+    }
+}
@@ -0,0 +1,36 @@
+package org.margin.server.social.ids;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.hibernate.generator.EventTypeSets;
+import org.margin.server.config.MessagePersistenceConfig;
+
+import java.util.EnumSet;
+
+/**
+ * Instantiated by Hibernate through Spring's bean container, so the node id comes straight from configuration
+ */
+public class SnowflakeIdGenerator implements BeforeExecutionGenerator {
+    private final Snowflake snowflake;
+
+    public SnowflakeIdGenerator(MessagePersistenceConfig config) {
+        this.snowflake = Snowflake.forNode(config.getNodeId());
+    }
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object owner, Object currentValue,
+                           EventType eventType) {
+        return currentValue != null ? currentValue : snowflake.nextId();
+    }
+
+    @Override
+    public EnumSet<EventType> getEventTypes() {
+        return EventTypeSets.INSERT_ONLY;
+    }
+
+    @Override
+    public boolean allowAssignedIdentifiers() {
+        return true;
+    }
+}
@@ -7,6 +7,7 @@ import jakarta.validation.constraints.Size;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.margin.server.social.ids.SnowflakeId;
 import org.margin.server.users.models.User;
 
 import java.util.Date;
@@ -18,7 +19,7 @@ import java.util.Date;
 @Table(name = "channel_messages")
 public class ChannelMessage {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @SnowflakeId
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -0,0 +1,19 @@
+package org.margin.server.social.models;
+
+import java.util.Date;
+
+public record ChannelMessageDTO(
+        Long id,
+        Long channelId,
+        Long spaceId,
+        Long fromUserId,
+        String fromUserServer,
+        String message,
+        Date createdAt
+) {
+    public ChannelMessageDTO(ChannelMessage message) {
+        this(message.getId(), message.getChannelId().getId(), message.getSpace().getId(),
+                message.getFromUserId().getId(), message.getFromUserServer(), message.getMessage(),
+                message.getCreatedAt());
+    }
+}
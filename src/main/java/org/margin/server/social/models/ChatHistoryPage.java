@@ -0,0 +1,13 @@
+package org.margin.server.social.models;
+
+import java.util.List;
+
+/**
+ * One page of a conversation in chronological order. Pass {@code before} or {@code after} back to load the next page.
+ */
+public record ChatHistoryPage(
+        List<DirectMessage> messages,
+        Long before,
+        Long after,
+        boolean hasMore
+) {}
@@ -0,0 +1,20 @@
+package org.margin.server.social.models;
+
+/**
+ * Canonical key of a 1:1 conversation: both participants as {@code server/userId}, ordered so either direction
+ * yields the same key. V8__add_direct_messages_conversation_key.sql builds the same value for existing rows.
+ */
+public final class ConversationKey {
+
+    private ConversationKey() {
+    }
+
+    public static String of(Long userId, String userServer, Long otherUserId, String otherUserServer) {
+        String participant = userServer + "/" + userId;
+        String otherParticipant = otherUserServer + "/" + otherUserId;
+
+        return participant.compareTo(otherParticipant) <= 0
+                ? participant + "|" + otherParticipant
+                : otherParticipant + "|" + participant;
+    }
+}
@@ -1,5 +1,6 @@
 package org.margin.server.social.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
@@ -7,6 +8,7 @@ import jakarta.validation.constraints.Size;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.margin.server.social.ids.SnowflakeId;
 
 import java.util.Date;
 
@@ -17,7 +19,7 @@ import java.util.Date;
 @Table(name = "direct_messages")
 public class DirectMessage {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @SnowflakeId
     private Long id;
 
     @NotNull
@@ -34,6 +36,13 @@ public class DirectMessage {
     @Column(name = "to_user_server")
     private String toUserServer;
 
+    /**
+     * See {@link ConversationKey}
+     */
+    @JsonIgnore
+    @Column(name = "conversation_key", length = 600)
+    private String conversationKey;
+
     @NotBlank
     @Size(min = 1, max = 5000)
     private String message;
@@ -42,6 +51,13 @@ public class DirectMessage {
     private Boolean isEdited = false;
     private Date createdAt;
 
+    /**
+     * Id the message has on the server it came from, for messages received over federation
+     */
+    @JsonIgnore
+    @Column(name = "federated_message_id")
+    private String federatedMessageId;
+
     public DirectMessage(Long fromUserId,
                          Long toUserId,
                          String fromUserServer,
@@ -0,0 +1,15 @@
+package org.margin.server.social.repositories;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.margin.server.social.models.Channel;
+
+import java.util.Optional;
+
+@Repository
+public interface ChannelsRepository extends JpaRepository<Channel, Long> {
+    @Query("SELECT c.space.id FROM Channel c WHERE c.id = :channelId")
+    Optional<Long> findSpaceIdById(@Param("channelId") Long channelId);
+}
@@ -1,5 +1,6 @@
 package org.margin.server.social.repositories;
 
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.margin.server.social.models.DirectMessage;
@@ -8,6 +9,9 @@ import org.springframework.stereotype.Repository;
 
 import java.util.List;
 
+/**
+ * Conversation history reads go through conversation_key so each one is a range scan on (conversation_key, id)
+ */
 @Repository
 public interface ChatMessageRepository extends JpaRepository<DirectMessage, Long> {
 	@Query("""
@@ -19,4 +23,52 @@ public interface ChatMessageRepository extends JpaRepository<DirectMessage, Long
 			""")
 	List<DirectMessage> findByFromUserIdAndToUserId(@Param("fromUserId") Long fromUserId,
                                                     @Param("toUserId") Long toUserId);
+
+	@Query("""
+			SELECT dm
+			FROM DirectMessage dm
+			WHERE dm.conversationKey = :conversationKey
+			ORDER BY dm.id ASC
+			""")
+	List<DirectMessage> findConversation(@Param("conversationKey") String conversationKey);
+
+	/**
+	 * The newest messages with an id below {@code before}, newest first
+	 */
+	@Query("""
+			SELECT dm
+			FROM DirectMessage dm
+			WHERE dm.conversationKey = :conversationKey
+			  AND dm.id < :before
+			ORDER BY dm.id DESC
+			""")
+	List<DirectMessage> findConversationBefore(@Param("conversationKey") String conversationKey,
+											   @Param("before") Long before,
+											   Limit limit);
+
+	/**
+	 * The oldest messages with an id above {@code after}, oldest first
+	 */
+	@Query("""
+			SELECT dm
+			FROM DirectMessage dm
+			WHERE dm.conversationKey = :conversationKey
+			  AND dm.id > :after
+			ORDER BY dm.id ASC
+			""")
+	List<DirectMessage> findConversationAfter(@Param("conversationKey") String conversationKey,
+											  @Param("after") Long after,
+											  Limit limit);
+
+	@Query("""
+			SELECT COUNT(dm)
+			FROM DirectMessage dm
+			WHERE dm.conversationKey = :conversationKey
+			  AND dm.toUserId = :userId
+			  AND dm.isRead = false
+			""")
+	long countUnread(@Param("conversationKey") String conversationKey,
+					 @Param("userId") Long userId);
+
+	boolean existsByFromUserServerAndFederatedMessageId(String fromUserServer, String federatedMessageId);
 }
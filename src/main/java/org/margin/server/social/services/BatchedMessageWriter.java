@@ -0,0 +1,191 @@
+package org.margin.server.social.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.margin.server.config.MessagePersistenceConfig;
+import org.margin.server.social.ids.Snowflake;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind pipeline for messages: callers enqueue and get a future that completes once the row is committed,
+ * while a dedicated writer thread groups queued messages into JDBC batch inserts.
+ */
+@Slf4j
+public abstract class BatchedMessageWriter<T> {
+
+    private record PendingWrite<T>(T message, CompletableFuture<T> durable) {
+    }
+
+    protected final Snowflake snowflake;
+
+    private final String name;
+    private final String insertSql;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final BlockingQueue<PendingWrite<T>> queue;
+    private final Queue<Runnable> drainCallbacks = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private final long lingerNanos;
+    private final int highWaterMark;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    protected BatchedMessageWriter(String name,
+                                   String insertSql,
+                                   JdbcTemplate jdbcTemplate,
+                                   PlatformTransactionManager transactionManager,
+                                   MessagePersistenceConfig config) {
+        this.name = name;
+        this.insertSql = insertSql;
+        this.jdbcTemplate = jdbcTemplate;
+        this.snowflake = Snowflake.forNode(config.getNodeId());
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+        this.batchSize = config.getBatchSize();
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.getLingerMs());
+        this.highWaterMark = Math.min(config.getHighWaterMark(), config.getQueueCapacity());
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::run, name.replace(' ', '-') + "-writer");
+        writerThread.start();
+    }
+
+    public CompletableFuture<T> enqueue(T message) {
+        CompletableFuture<T> durable = new CompletableFuture<>();
+
+        assignId(message);
+
+        if (!running || !queue.offer(new PendingWrite<>(message, durable))) {
+            durable.completeExceptionally(new RejectedExecutionException("Write queue for " + name + " is full"));
+        }
+        return durable;
+    }
+
+    public boolean isSaturated() {
+        return queue.size() >= highWaterMark;
+    }
+
+    /**
+     * Run the callback once the queue has drained below half the high-water mark
+     */
+    public void whenDrained(Runnable callback) {
+        drainCallbacks.add(callback);
+        if (isDrained()) {
+            runDrainCallbacks();
+        }
+    }
+
+    private boolean isDrained() {
+        return queue.size() <= highWaterMark / 2;
+    }
+
+    private void run() {
+        List<PendingWrite<T>> batch = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    fillBatch(batch);
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            } finally {
+                batch.clear();
+            }
+
+            if (isDrained()) {
+                runDrainCallbacks();
+            }
+        }
+    }
+
+    private void fillBatch(List<PendingWrite<T>> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + lingerNanos;
+
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+
+            PendingWrite<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<PendingWrite<T>> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.batchUpdate(insertSql,
+                    new BatchPreparedStatementSetter() {
+                        @Override
+                        public void setValues(PreparedStatement ps, int i) throws SQLException {
+                            bind(ps, batch.get(i).message());
+                        }
+
+                        @Override
+                        public int getBatchSize() {
+                            return batch.size();
+                        }
+                    }));
+
+            batch.forEach(pending -> pending.durable().complete(pending.message()));
+            log.debug("Persisted batch of {} {}", batch.size(), name);
+        } catch (Exception e) {
+            log.error("Failed to persist batch of {} {}: {}", batch.size(), name, e.getMessage());
+            batch.forEach(pending -> pending.durable().completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Give the message its id before it is queued, unless it already has one
+     */
+    protected abstract void assignId(T message);
+
+    protected abstract void bind(PreparedStatement ps, T message) throws SQLException;
+
+    private void runDrainCallbacks() {
+        Runnable callback;
+        while ((callback = drainCallbacks.poll()) != null) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.warn("Drain callback failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        if (writerThread != null) {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        runDrainCallbacks();
+    }
+}
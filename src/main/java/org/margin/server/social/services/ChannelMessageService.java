@@ -0,0 +1,88 @@
+package org.margin.server.social.services;
+
+import org.springframework.stereotype.Service;
+import org.margin.server.social.models.Channel;
+import org.margin.server.social.models.ChannelMessage;
+import org.margin.server.social.models.Space;
+import org.margin.server.social.repositories.ChannelsRepository;
+import org.margin.server.social.repositories.SpacesRepository;
+import org.margin.server.users.models.User;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+public class ChannelMessageService {
+    private final ChannelMessageWriter channelMessageWriter;
+    private final ChannelsRepository channelsRepository;
+    private final SpacesRepository spacesRepository;
+    // A channel never moves between spaces, so the mapping is looked up once per channel
+    private final Map<Long, Long> spaceByChannel = new ConcurrentHashMap<>();
+
+    public ChannelMessageService(ChannelMessageWriter channelMessageWriter,
+                                 ChannelsRepository channelsRepository,
+                                 SpacesRepository spacesRepository) {
+        this.channelMessageWriter = channelMessageWriter;
+        this.channelsRepository = channelsRepository;
+        this.spacesRepository = spacesRepository;
+    }
+
+    public boolean channelExists(long channelId) {
+        return spaceOf(channelId).isPresent();
+    }
+
+    public boolean spaceExists(long spaceId) {
+        return spacesRepository.existsById(spaceId);
+    }
+
+    public ChannelMessage newMessage(User from, long channelId, String text) {
+        Long spaceId = spaceOf(channelId)
+                .orElseThrow(() -> new IllegalArgumentException("Unknown channel " + channelId));
+
+        ChannelMessage message = new ChannelMessage(from, reference(channelId, spaceId), space(spaceId), text, null);
+        message.setFromUserServer(from.getServerDomain());
+        return message;
+    }
+
+    /**
+     * Queue the message for a batched insert. The message has its id as soon as this returns; the future completes
+     * once the row is committed.
+     */
+    public CompletableFuture<ChannelMessage> saveMessage(ChannelMessage message) {
+        return channelMessageWriter.enqueue(message);
+    }
+
+    public boolean isPersistenceSaturated() {
+        return channelMessageWriter.isSaturated();
+    }
+
+    public void whenPersistenceDrained(Runnable callback) {
+        channelMessageWriter.whenDrained(callback);
+    }
+
+    private Optional<Long> spaceOf(long channelId) {
+        Long spaceId = spaceByChannel.get(channelId);
+        if (spaceId != null) {
+            return Optional.of(spaceId);
+        }
+
+        Optional<Long> found = channelsRepository.findSpaceIdById(channelId);
+        found.ifPresent(id -> spaceByChannel.put(channelId, id));
+        return found;
+    }
+
+    private static Channel reference(long channelId, long spaceId) {
+        Channel channel = new Channel();
+        channel.setId(channelId);
+        channel.setSpace(space(spaceId));
+        return channel;
+    }
+
+    private static Space space(long spaceId) {
+        Space space = new Space();
+        space.setId(spaceId);
+        return space;
+    }
+}
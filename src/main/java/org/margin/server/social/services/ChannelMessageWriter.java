@@ -0,0 +1,46 @@
+package org.margin.server.social.services;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.margin.server.config.MessagePersistenceConfig;
+import org.margin.server.social.models.ChannelMessage;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+@Service
+public class ChannelMessageWriter extends BatchedMessageWriter<ChannelMessage> {
+    private static final String INSERT_SQL = """
+            INSERT INTO channel_messages (id, user_id, channel_id, space_id, from_user_server, message,
+                                          is_edited, created_at, federated_message_id)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)
+            """;
+
+    public ChannelMessageWriter(JdbcTemplate jdbcTemplate,
+                                PlatformTransactionManager transactionManager,
+                                MessagePersistenceConfig config) {
+        super("channel messages", INSERT_SQL, jdbcTemplate, transactionManager, config);
+    }
+
+    @Override
+    protected void assignId(ChannelMessage message) {
+        if (message.getId() == null) {
+            message.setId(snowflake.nextId());
+        }
+    }
+
+    @Override
+    protected void bind(PreparedStatement ps, ChannelMessage message) throws SQLException {
+        ps.setLong(1, message.getId());
+        ps.setLong(2, message.getFromUserId().getId());
+        ps.setLong(3, message.getChannelId().getId());
+        ps.setLong(4, message.getSpace().getId());
+        ps.setString(5, message.getFromUserServer());
+        ps.setString(6, message.getMessage());
+        ps.setBoolean(7, Boolean.TRUE.equals(message.getIsEdited()));
+        ps.setTimestamp(8, new Timestamp(message.getCreatedAt().getTime()));
+        ps.setString(9, message.getFederatedMessageId());
+    }
+}
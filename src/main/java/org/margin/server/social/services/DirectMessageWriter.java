@@ -0,0 +1,70 @@
+package org.margin.server.social.services;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.margin.server.config.MessagePersistenceConfig;
+import org.margin.server.social.models.DirectMessage;
+
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+@Service
+public class DirectMessageWriter extends BatchedMessageWriter<DirectMessage> {
+    private static final String INSERT_SQL = """
+            INSERT INTO direct_messages (id, from_user_id, to_user_id, from_user_server, to_user_server,
+                                         conversation_key, message, is_read, is_edited, created_at,
+                                         federated_message_id)
+            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+            """;
+    // A federated message stored by an earlier delivery is skipped instead of failing the rest of its batch
+    private static final String SKIP_STORED_FEDERATED = """
+            ON CONFLICT (from_user_server, federated_message_id) WHERE federated_message_id IS NOT NULL DO NOTHING
+            """;
+
+    public DirectMessageWriter(JdbcTemplate jdbcTemplate,
+                               PlatformTransactionManager transactionManager,
+                               MessagePersistenceConfig config) {
+        super("direct messages", insertSql(jdbcTemplate), jdbcTemplate, transactionManager, config);
+    }
+
+    /**
+     * Only PostgreSQL has the unique federated message index and the conflict clause for it; other databases, like the
+     * in-memory one in tests, get the plain insert
+     */
+    private static String insertSql(JdbcTemplate jdbcTemplate) {
+        try {
+            String product = JdbcUtils.extractDatabaseMetaData(jdbcTemplate.getDataSource(),
+                    DatabaseMetaData::getDatabaseProductName);
+            return "PostgreSQL".equals(product) ? INSERT_SQL + SKIP_STORED_FEDERATED : INSERT_SQL;
+        } catch (MetaDataAccessException e) {
+            return INSERT_SQL;
+        }
+    }
+
+    @Override
+    protected void assignId(DirectMessage message) {
+        if (message.getId() == null) {
+            message.setId(snowflake.nextId());
+        }
+    }
+
+    @Override
+    protected void bind(PreparedStatement ps, DirectMessage message) throws SQLException {
+        ps.setLong(1, message.getId());
+        ps.setLong(2, message.getFromUserId());
+        ps.setLong(3, message.getToUserId());
+        ps.setString(4, message.getFromUserServer());
+        ps.setString(5, message.getToUserServer());
+        ps.setString(6, message.getConversationKey());
+        ps.setString(7, message.getMessage());
+        ps.setBoolean(8, Boolean.TRUE.equals(message.getIsRead()));
+        ps.setBoolean(9, Boolean.TRUE.equals(message.getIsEdited()));
+        ps.setTimestamp(10, new Timestamp(message.getCreatedAt().getTime()));
+        ps.setString(11, message.getFederatedMessageId());
+    }
+}
@@ -1,21 +1,137 @@
 package org.margin.server.social.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.social.models.ChatHistoryPage;
+import org.margin.server.social.models.ConversationKey;
 import org.margin.server.social.models.DirectMessage;
 import org.margin.server.social.repositories.ChatMessageRepository;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class MessageService {
+	private static final int MAX_PAGE_SIZE = 200;
+
+	private final DirectMessageWriter messageWriter;
 	private final ChatMessageRepository messageRepository;
+	private final FederationConfig federationConfig;
+	// Federated messages being stored or stored lately, so retries racing each other are caught before the first
+	// copy is committed
+	private final Cache<String, Boolean> recentFederatedMessages = Caffeine.newBuilder()
+			.maximumSize(100_000)
+			.expireAfterWrite(Duration.ofHours(1))
+			.build();
 
-	public MessageService(ChatMessageRepository messageRepository) {
+	public MessageService(DirectMessageWriter messageWriter,
+						  ChatMessageRepository messageRepository,
+						  FederationConfig federationConfig) {
+		this.messageWriter = messageWriter;
 		this.messageRepository = messageRepository;
+		this.federationConfig = federationConfig;
 	}
 
-	public void saveMessage(DirectMessage message) {
+	/**
+	 * Queue the message for persistence. The returned future completes once the row is committed.
+	 */
+	public CompletableFuture<DirectMessage> saveMessage(DirectMessage message) {
 		message.setCreatedAt(new Date());
-		messageRepository.save(message);
+		message.setConversationKey(conversationKey(message.getFromUserId(), message.getFromUserServer(),
+				message.getToUserId(), message.getToUserServer()));
+		return messageWriter.enqueue(message);
+	}
+
+	public enum FederatedMessageClaim {
+		/**
+		 * The caller is now the one storing the message
+		 */
+		CLAIMED,
+		/**
+		 * The message is already stored
+		 */
+		STORED,
+		/**
+		 * Another delivery of the message is still being stored and may yet fail
+		 */
+		IN_PROGRESS
+	}
+
+	/**
+	 * Claim a message received over federation, so a peer retrying a delivery does not store or deliver it twice.
+	 * Only a committed row counts as stored.
+	 */
+	public FederatedMessageClaim claimFederatedMessage(String fromServer, String federatedMessageId) {
+		String key = fromServer + "/" + federatedMessageId;
+		boolean claimed = recentFederatedMessages.asMap().putIfAbsent(key, Boolean.TRUE) == null;
+		if (messageRepository.existsByFromUserServerAndFederatedMessageId(fromServer, federatedMessageId)) {
+			return FederatedMessageClaim.STORED;
+		}
+		return claimed ? FederatedMessageClaim.CLAIMED : FederatedMessageClaim.IN_PROGRESS;
+	}
+
+	/**
+	 * Give up a claim whose message could not be stored, so the peer's retry is accepted
+	 */
+	public void releaseFederatedMessage(String fromServer, String federatedMessageId) {
+		recentFederatedMessages.invalidate(fromServer + "/" + federatedMessageId);
+	}
+
+	public boolean isPersistenceSaturated() {
+		return messageWriter.isSaturated();
+	}
+
+	public void whenPersistenceDrained(Runnable callback) {
+		messageWriter.whenDrained(callback);
+	}
+
+	/**
+	 * Keyset-paginated conversation history. Without cursors the latest page is returned.
+	 */
+	public ChatHistoryPage getChatHistory(Long userId, Long otherUserId, String otherUserServer,
+										  Long before, Long after, int pageSize) {
+		String conversationKey = conversationKey(userId, null, otherUserId, otherUserServer);
+		int limit = Math.clamp(pageSize, 1, MAX_PAGE_SIZE);
+
+		if (after != null) {
+			List<DirectMessage> messages = messageRepository.findConversationAfter(conversationKey, after,
+					Limit.of(limit + 1));
+			boolean hasMore = messages.size() > limit;
+			return toPage(hasMore ? messages.subList(0, limit) : messages, hasMore);
+		}
+
+		long upperBound = before != null ? before : Long.MAX_VALUE;
+		List<DirectMessage> messages = messageRepository.findConversationBefore(conversationKey, upperBound,
+				Limit.of(limit + 1));
+		boolean hasMore = messages.size() > limit;
+		return toPage((hasMore ? messages.subList(0, limit) : messages).reversed(), hasMore);
+	}
+
+	public List<DirectMessage> getFullConversation(Long userId, Long otherUserId, String otherUserServer) {
+		return messageRepository.findConversation(conversationKey(userId, null, otherUserId, otherUserServer));
+	}
+
+	public long countUnread(Long userId, Long otherUserId, String otherUserServer) {
+		return messageRepository.countUnread(conversationKey(userId, null, otherUserId, otherUserServer), userId);
+	}
+
+	private String conversationKey(Long userId, String userServer, Long otherUserId, String otherUserServer) {
+		return ConversationKey.of(userId, localIfMissing(userServer), otherUserId, localIfMissing(otherUserServer));
+	}
+
+	private String localIfMissing(String server) {
+		return server == null || server.isEmpty() ? federationConfig.getServerDomain() : server;
+	}
+
+	private ChatHistoryPage toPage(List<DirectMessage> messages, boolean hasMore) {
+		if (messages.isEmpty()) {
+			return new ChatHistoryPage(messages, null, null, false);
+		}
+		return new ChatHistoryPage(messages, messages.getFirst().getId(), messages.getLast().getId(), hasMore);
 	}
 }
@@ -1,19 +1,51 @@
 package org.margin.server.users;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.stereotype.Service;
+import org.margin.server.config.UserCacheConfig;
 import org.margin.server.users.models.User;
 import org.margin.server.users.repositories.UserRepository;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
 @Service
 public class UserService {
 	private final UserRepository userRepository;
+	// Cached users are shared between threads; never modify one, load from the repository before updating
+	private final Cache<Long, User> usersById;
 
-	public UserService(UserRepository userRepository) {
+	public UserService(UserRepository userRepository, UserCacheConfig cacheConfig, MeterRegistry meterRegistry) {
 		this.userRepository = userRepository;
+		this.usersById = Caffeine.newBuilder()
+				.maximumSize(cacheConfig.getMaximumSize())
+				.expireAfterWrite(cacheConfig.getExpireAfterWrite())
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, usersById, "users");
 	}
 
 	public User getById(Long id) {
-		return userRepository.findById(id).orElseThrow(() -> new RuntimeException("User not found"));
+		User user = usersById.get(id, key -> userRepository.findById(key).orElse(null));
+		if (user == null) {
+			throw new RuntimeException("User not found");
+		}
+		return user;
+	}
+
+	/**
+	 * Users for all the given ids that exist, loading every cache miss in a single query
+	 */
+	public List<User> getByIds(Collection<Long> ids) {
+		Map<Long, User> users = usersById.getAll(ids, missing -> userRepository.findAllById(List.copyOf(missing)).stream()
+				.collect(Collectors.toMap(User::getId, Function.identity())));
+		return List.copyOf(users.values());
 	}
 
     public User getByUsername(String username) {
@@ -21,9 +53,17 @@ public class UserService {
     }
 
     public void savePublicPrivateKeysForUser(Long userId, String publicKey, String encryptedPrivateKey) {
-        User user = getById(userId);
+        User user = userRepository.findById(userId).orElseThrow(() -> new RuntimeException("User not found"));
         user.setPublicKey(publicKey);
         user.setEncryptedPrivateKey(encryptedPrivateKey);
         userRepository.save(user);
+        evict(userId);
     }
+
+	/**
+	 * Call after any write to a user row so the next lookup reloads it
+	 */
+	public void evict(Long userId) {
+		usersById.invalidate(userId);
+	}
 }
@@ -5,6 +5,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.margin.server.authentication.models.JwtPrincipal;
 import org.margin.server.users.UserService;
 import org.margin.server.users.models.User;
 import org.margin.server.users.models.UserDTO;
@@ -31,27 +32,24 @@ public class UserController {
 	@GetMapping("get_all_users")
 	public List<UserDTO> getAllOnlineUsersOnServer(Authentication authentication) {
         String username = authentication.getName();
-		return webSocketClientService.getAllClients()
-                .keySet()
+		return userService.getByIds(webSocketClientService.getOnlineUserIds())
                 .stream()
-                .map(userService::getById)
                 .filter(user -> !user.getUsername().equals(username))
                 .map(UserDTO::new)
                 .toList();
 	}
 
     @GetMapping("/me")
-    public UserDTO getCurrentUser(Authentication authentication) {
-        String username = authentication.getName();
-        return new UserDTO(userService.getByUsername(username));
+    public UserDTO getCurrentUser(@AuthenticationPrincipal JwtPrincipal principal) {
+        return new UserDTO(userService.getById(principal.userId()));
     }
 
     @PostMapping("/{userId}/keys")
     public ResponseEntity<Void> uploadKeys(
             @PathVariable Long userId,
             @RequestBody KeyUploadRequest request,
-            @AuthenticationPrincipal User authenticatedUser) {
-        if (!authenticatedUser.getId().equals(userId)) {
+            @AuthenticationPrincipal JwtPrincipal principal) {
+        if (!principal.userId().equals(userId)) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         }
 
@@ -68,7 +66,8 @@ public class UserController {
 
     @GetMapping("/me/private-key")
     public ResponseEntity<PrivateKeyResponse> getEncryptedPrivateKey(
-            @AuthenticationPrincipal User user) {
+            @AuthenticationPrincipal JwtPrincipal principal) {
+        User user = userService.getById(principal.userId());
 
         if (user.getEncryptedPrivateKey() == null) {
             return ResponseEntity.notFound().build();
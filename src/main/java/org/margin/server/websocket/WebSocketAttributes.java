@@ -3,9 +3,27 @@ package org.margin.server.websocket;
 import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import io.netty.util.AttributeKey;
 import org.margin.server.users.models.User;
+import org.margin.server.websocket.models.Heartbeat;
+import org.margin.server.websocket.models.PendingPresence;
+import org.margin.server.websocket.models.WebSocketFrameFormat;
+import org.margin.server.websocket.services.SubscriptionIndex;
+
+import java.util.Set;
 
 public class WebSocketAttributes {
     public static final AttributeKey<User> USER = AttributeKey.valueOf("user");
     public static final AttributeKey<WebSocketServerHandshaker> HANDSHAKER =
             AttributeKey.valueOf("handshaker");
+    public static final AttributeKey<WebSocketFrameFormat> FRAME_FORMAT =
+            AttributeKey.valueOf("frameFormat");
+    public static final AttributeKey<PendingPresence> PENDING_PRESENCE =
+            AttributeKey.valueOf("pendingPresence");
+    public static final AttributeKey<Heartbeat> HEARTBEAT = AttributeKey.valueOf("heartbeat");
+    public static final AttributeKey<Set<SubscriptionIndex.Topic>> SUBSCRIPTIONS =
+            AttributeKey.valueOf("subscriptions");
+    /**
+     * Set when the channel negotiated permessage-deflate without server context takeover at the full window size,
+     * so it can be sent frames compressed once for many channels
+     */
+    public static final AttributeKey<Boolean> SHARED_DEFLATE = AttributeKey.valueOf("sharedDeflate");
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package org.margin.server.websocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+import org.margin.server.websocket.services.SlowConsumerGuard;
+import org.margin.server.websocket.services.WebSocketClientService;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Outbound queue depth per connected client. The gauges summarise all channels; the actuator endpoint, for admins
+ * only, lists the clients with the largest backlogs so slow consumers can be identified.
+ */
+@Component
+@Endpoint(id = "websocketbacklog")
+public class WebSocketBacklogEndpoint {
+    private static final int TOP_CLIENTS = 20;
+
+    private final WebSocketClientService clientService;
+
+    public WebSocketBacklogEndpoint(WebSocketClientService clientService, MeterRegistry meterRegistry) {
+        this.clientService = clientService;
+
+        Gauge.builder("websocket.outbound.backlog.max.bytes", clientService, service -> service.getSessions()
+                        .channels().stream().mapToLong(SlowConsumerGuard::backlogBytes).max().orElse(0))
+                .description("Largest number of bytes queued for any single WebSocket channel")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.unwritable.channels", clientService, service -> service.getSessions()
+                        .channels().stream().filter(channel -> !channel.isWritable()).count())
+                .description("Channels above their write-buffer high water mark")
+                .register(meterRegistry);
+    }
+
+    public record ClientBacklog(Long userId, String remoteAddress, long bytes, boolean writable) {
+    }
+
+    @ReadOperation
+    public List<ClientBacklog> largestBacklogs() {
+        return largestBacklogs(TOP_CLIENTS);
+    }
+
+    private List<ClientBacklog> largestBacklogs(int limit) {
+        List<ClientBacklog> backlogs = new ArrayList<>();
+        clientService.getSessions().forEach((userId, channel) -> backlogs.add(backlog(userId, channel)));
+
+        return backlogs.stream()
+                .filter(backlog -> backlog.bytes() > 0)
+                .sorted(Comparator.comparingLong(ClientBacklog::bytes).reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    private ClientBacklog backlog(long userId, Channel channel) {
+        return new ClientBacklog(userId, String.valueOf(channel.remoteAddress()),
+                SlowConsumerGuard.backlogBytes(channel), channel.isWritable());
+    }
+}
@@ -1,7 +1,10 @@
 package org.margin.server.websocket;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -9,32 +12,55 @@ import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.websocketx.*;
 import lombok.extern.slf4j.Slf4j;
 import org.margin.server.authentication.services.JwtService;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.federation.services.FederationLinkAcceptor;
 import org.margin.server.social.models.DirectMessage;
 import org.margin.server.users.UserService;
 import org.margin.server.users.models.User;
-import org.margin.server.websocket.models.WebSocketTextFrameTypes;
+import org.margin.server.websocket.models.IncomingWebSocketMessage;
+import org.margin.server.websocket.models.WebSocketFrameFormat;
+import org.margin.server.websocket.services.HeartbeatMonitor;
+import org.margin.server.websocket.services.SubscriptionIndex;
+import org.margin.server.websocket.services.UserTaskDispatcher;
 import org.margin.server.websocket.services.WebSocketClientService;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 @ChannelHandler.Sharable
 public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
     private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectMapper CBOR_MAPPER = new CBORMapper();
     private final JwtService jwtService;
     private final WebSocketClientService clientService;
     private final UserService userService;
+    private final UserTaskDispatcher dispatcher;
+    private final FederationLinkAcceptor linkAcceptor;
+    private final WebSocketServerHandshakerFactory handshakerFactory;
 
     public WebSocketHandler(JwtService jwtService,
                             WebSocketClientService clientService,
-                            UserService userService) {
+                            UserService userService,
+                            UserTaskDispatcher dispatcher,
+                            FederationLinkAcceptor linkAcceptor,
+                            WebSocketConfig config) {
         this.jwtService = jwtService;
         this.clientService = clientService;
         this.userService = userService;
+        this.dispatcher = dispatcher;
+        this.linkAcceptor = linkAcceptor;
+        this.handshakerFactory = new WebSocketServerHandshakerFactory(
+                config.getAdvertisedUrl(), WebSocketFrameFormat.supportedSubprotocols(), true,
+                config.getMaxFrameSize());
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Object message) {
+        HeartbeatMonitor.touch(ctx.channel());
+
         switch (message) {
             case FullHttpRequest httpRequest -> handleHttpRequest(ctx, httpRequest);
             case WebSocketFrame webSocketFrame -> handleWebSocketFrame(ctx, webSocketFrame);
@@ -50,35 +76,62 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
         }
 
         String uri = req.uri();
+        if (linkAcceptor.handles(uri)) {
+            linkAcceptor.accept(ctx, req);
+            return;
+        }
         if (!uri.startsWith("/ws")) {
             log.warn("Invalid WebSocket path: {}", uri);
             ctx.close();
             return;
         }
 
-        Optional<User> optionalUser = jwtService.extractAndValidateJwtTokenFromWebSocket(uri);
+        // Token validation and the user lookup may block, so they run off the event loop; reads pause meanwhile
+        Channel channel = ctx.channel();
+        channel.config().setAutoRead(false);
+        req.retain();
 
-        if (optionalUser.isEmpty()) {
+        try {
+            dispatcher.execute(() -> {
+                Optional<User> user = jwtService.extractAndValidateJwtTokenFromWebSocket(uri);
+                channel.eventLoop().execute(() -> {
+                    try {
+                        completeHandshake(channel, req, user);
+                    } finally {
+                        req.release();
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            req.release();
             ctx.close();
+        }
+    }
+
+    private void completeHandshake(Channel channel, FullHttpRequest req, Optional<User> optionalUser) {
+        if (optionalUser.isEmpty() || !channel.isActive()) {
+            channel.close();
             return;
         }
 
         User user = optionalUser.get();
-        ctx.channel().attr(WebSocketAttributes.USER).set(user);
+        channel.attr(WebSocketAttributes.USER).set(user);
+        channel.config().setAutoRead(true);
 
-        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(
-                "ws://localhost:8081/ws", null, true, 65536);
-        WebSocketServerHandshaker handshaker = wsFactory.newHandshaker(req);
+        WebSocketServerHandshaker handshaker = handshakerFactory.newHandshaker(req);
 
         if (handshaker == null) {
-            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(ctx.channel());
+            WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(channel);
         } else {
-            ctx.channel().attr(WebSocketAttributes.HANDSHAKER).set(handshaker);
+            channel.attr(WebSocketAttributes.HANDSHAKER).set(handshaker);
 
-            handshaker.handshake(ctx.channel(), req).addListener(future -> {
+            handshaker.handshake(channel, req).addListener(future -> {
                 if (future.isSuccess()) {
-                    clientService.addClient(user.getId(), ctx.channel());
-                    clientService.broadcastUserLogin(user);
+                    channel.attr(WebSocketAttributes.FRAME_FORMAT)
+                            .set(WebSocketFrameFormat.fromSubprotocol(handshaker.selectedSubprotocol()));
+                    if (clientService.addClient(user.getId(), channel)) {
+                        clientService.broadcastUserLogin(user);
+                    }
                 }
             });
         }
@@ -96,52 +149,112 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
             case PingWebSocketFrame pingFrame -> {
                 ctx.writeAndFlush(new PongWebSocketFrame(pingFrame.content().retain()));
             }
+            case PongWebSocketFrame pongFrame -> {
+                // Answer to a heartbeat ping; reading it was enough
+            }
             case TextWebSocketFrame textFrame -> {
-                handleTextWebSocketFrame(ctx, textFrame);
+                handleDataWebSocketFrame(ctx, textFrame, MAPPER);
+            }
+            case BinaryWebSocketFrame binaryFrame -> {
+                handleDataWebSocketFrame(ctx, binaryFrame, CBOR_MAPPER);
             }
             default -> throw new IllegalStateException("Unexpected value: " + frame);
         }
     }
 
-    private void handleTextWebSocketFrame(ChannelHandlerContext ctx, TextWebSocketFrame frame) {
+    private void handleDataWebSocketFrame(ChannelHandlerContext ctx, WebSocketFrame frame, ObjectMapper mapper) {
         User user = ctx.channel().attr(WebSocketAttributes.USER).get();
-        String payload = frame.text();
-        log.debug("Received message from {}: {}", user, payload);
+        log.debug("Received {} byte frame from {}", frame.content().readableBytes(), user);
 
         try {
-            JsonNode message = parseMessage(payload);
-            WebSocketTextFrameTypes type = getMessageType(message);
+            IncomingWebSocketMessage message = parseMessage(frame, mapper);
 
-            switch (type) {
-                case SEND_DIRECT_MESSAGE -> handleDirectMessage(user, message);
-                case SEND_CHANNEL_MESSAGE -> handleChannelMessage(user, message);
+            if (message.type() == null) {
+                throw new IllegalArgumentException("Missing message type");
             }
 
-        } catch (IllegalArgumentException e) {
+            dispatch(ctx.channel(), user, message);
+
+        } catch (IllegalArgumentException | InvalidFormatException e) {
             log.warn("Unknown message type from user {}: {}", user.getId(), e.getMessage());
         } catch (Exception e) {
             log.error("Error handling message from user {}: {}", user.getId(), e.getMessage());
         }
     }
 
-    private JsonNode parseMessage(String payload) throws Exception {
-        return MAPPER.readTree(payload);
+    /**
+     * Hand the decoded message to the user's serial executor. Handling may block on lookups, persistence or a
+     * federated peer; anything written back to the client is scheduled on the channel's event loop.
+     */
+    private void dispatch(Channel channel, User user, IncomingWebSocketMessage message) {
+        boolean accepted = dispatcher.submit(user.getId(), () -> {
+            try {
+                handleMessage(channel, user, message);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid {} from user {}: {}", message.type(), user.getId(), e.getMessage());
+            } catch (Exception e) {
+                log.error("Error handling {} from user {}: {}", message.type(), user.getId(), e.getMessage());
+            }
+        });
+
+        if (!accepted) {
+            log.warn("User {} has too many pending messages, refusing {}", user.getId(), message.type());
+            if (message.clientMessageId() != null) {
+                clientService.acknowledgeMessage(channel, message.clientMessageId(), null,
+                        new RejectedExecutionException("Too many pending messages"));
+            }
+        }
+    }
+
+    private void handleMessage(Channel channel, User user, IncomingWebSocketMessage message) {
+        switch (message.type()) {
+            case SEND_DIRECT_MESSAGE -> handleDirectMessage(channel, user, message);
+            case SEND_CHANNEL_MESSAGE -> handleChannelMessage(channel, user, message);
+            case SUBSCRIBE_CHANNEL -> subscribe(channel, SubscriptionIndex.Kind.CHANNEL, message.channelId());
+            case SUBSCRIBE_SPACE -> subscribe(channel, SubscriptionIndex.Kind.SPACE, message.spaceId());
+            case UNSUBSCRIBE_CHANNEL -> clientService.unsubscribe(channel, SubscriptionIndex.Kind.CHANNEL,
+                    requireId(message.channelId()));
+            case UNSUBSCRIBE_SPACE -> clientService.unsubscribe(channel, SubscriptionIndex.Kind.SPACE,
+                    requireId(message.spaceId()));
+        }
+    }
+
+    private IncomingWebSocketMessage parseMessage(WebSocketFrame frame, ObjectMapper mapper) throws IOException {
+        try (InputStream in = new ByteBufInputStream(frame.content())) {
+            return mapper.readValue(in, IncomingWebSocketMessage.class);
+        }
     }
 
-    private WebSocketTextFrameTypes getMessageType(JsonNode message) {
-        return WebSocketTextFrameTypes.valueOf(message.get("type").asText());
+    private void handleDirectMessage(Channel channel, User user, IncomingWebSocketMessage message) {
+        DirectMessage directMessage = getChatMessage(user, message.toUserId(), message.message());
+
+        clientService.sendMessageToUser(directMessage).whenComplete((saved, error) ->
+                clientService.acknowledgeMessage(channel, message.clientMessageId(),
+                        saved != null ? saved.getId() : null, error));
+        clientService.applyPersistenceBackpressure(channel);
     }
 
-    private void handleDirectMessage(User user, JsonNode message) {
-        String toUserIdIdentifier = message.get("toUserId").asText();
-        String messageText = message.get("message").asText();
+    private void handleChannelMessage(Channel channel, User user, IncomingWebSocketMessage message) {
+        long channelId = requireId(message.channelId());
 
-        DirectMessage directMessage = getChatMessage(user, toUserIdIdentifier, messageText);
-        clientService.sendMessageToUser(directMessage);
+        clientService.sendChannelMessage(channel, user, channelId, message.message()).whenComplete((saved, error) ->
+                clientService.acknowledgeMessage(channel, message.clientMessageId(),
+                        saved != null ? saved.getId() : null, error));
+        clientService.applyPersistenceBackpressure(channel);
     }
 
-    private void handleChannelMessage(User user, JsonNode message) {
-        log.info("Received channel message from {}", user);
+    private void subscribe(Channel channel, SubscriptionIndex.Kind kind, Long id) {
+        if (!clientService.subscribe(channel, kind, requireId(id))) {
+            log.warn("User {} tried to subscribe to unknown {} {}", channel.attr(WebSocketAttributes.USER).get(),
+                    kind, id);
+        }
+    }
+
+    private static long requireId(Long id) {
+        if (id == null) {
+            throw new IllegalArgumentException("Missing channel or space id");
+        }
+        return id;
     }
 
     private DirectMessage getChatMessage(User user, String toUserIdIdentifier, String messageText) {
@@ -162,12 +275,19 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<Object> {
     public void channelInactive(ChannelHandlerContext ctx) {
         User user = ctx.channel().attr(WebSocketAttributes.USER).get();
         if (user != null) {
-            clientService.removeClient(user.getId());
-            clientService.broadcastUserLogout(user);
+            if (clientService.removeClient(user.getId(), ctx.channel())) {
+                clientService.broadcastUserLogout(user);
+            }
             log.info("User {} disconnected", user);
         }
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        clientService.onWritabilityChanged(ctx.channel());
+        ctx.fireChannelWritabilityChanged();
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         User user = ctx.channel().attr(WebSocketAttributes.USER).get();
@@ -2,43 +2,54 @@ package org.margin.server.websocket;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import org.margin.server.authentication.services.JwtService;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.federation.services.FederationLinkAcceptor;
 import org.margin.server.users.UserService;
+import org.margin.server.websocket.compression.WebSocketCompression;
+import org.margin.server.websocket.services.HeartbeatMonitor;
+import org.margin.server.websocket.services.UserTaskDispatcher;
 import org.margin.server.websocket.services.WebSocketClientService;
+import org.margin.server.websocket.transport.WebSocketTransport;
+
+import java.util.ArrayList;
+import java.util.List;
 
 @Slf4j
 @Component
 public class WebSocketServer {
 
-    @Value("${websocket.port:8081}")
-    private int port;
-
-    private final JwtService jwtService;
     private final WebSocketClientService clientService;
-    private final UserService userService;
+    private final WebSocketConfig config;
+    private final WebSocketHandler webSocketHandler;
+    private final WebSocketCompression compression;
 
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
-    private Channel serverChannel;
+    private final List<Channel> serverChannels = new ArrayList<>();
 
     public WebSocketServer(JwtService jwtService,
                            WebSocketClientService clientService,
-                           UserService userService) {
-        this.jwtService = jwtService;
+                           UserService userService,
+                           UserTaskDispatcher dispatcher,
+                           FederationLinkAcceptor linkAcceptor,
+                           WebSocketConfig config,
+                           WebSocketCompression compression) {
         this.clientService = clientService;
-        this.userService = userService;
+        this.config = config;
+        this.compression = compression;
+        this.webSocketHandler = new WebSocketHandler(jwtService, clientService, userService, dispatcher, linkAcceptor,
+                config);
     }
 
     @EventListener(ApplicationReadyEvent.class)
@@ -48,29 +59,54 @@ public class WebSocketServer {
     }
 
     private void run() {
-        bossGroup = new NioEventLoopGroup(1);
-        workerGroup = new NioEventLoopGroup();
+        WebSocketTransport transport = WebSocketTransport.select(config.getTransport());
+        boolean reusePort = config.isReusePort() && transport.supportsReusePort();
+        int acceptors = reusePort ? Math.max(1, config.getBossThreads()) : 1;
+
+        boolean tracksWrites = !config.getHeartbeatPingInterval().isZero()
+                && !config.getHeartbeatWriterIdleInterval().isZero();
+
+        bossGroup = transport.newEventLoopGroup(config.getBossThreads(), "websocket-boss");
+        workerGroup = transport.newEventLoopGroup(config.getWorkerThreads(), "websocket-worker");
 
         try {
             ServerBootstrap bootstrap = new ServerBootstrap()
                     .group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) {
                             ch.pipeline()
                                     .addLast(new HttpServerCodec())
-                                    .addLast(new HttpObjectAggregator(65536))
-                                    .addLast(createWebSocketHandler());
+                                    .addLast(new HttpObjectAggregator(config.getMaxFrameSize()));
+                            if (tracksWrites) {
+                                ch.pipeline().addLast(HeartbeatMonitor.WriteTracker.INSTANCE);
+                            }
+                            if (compression.isEnabled()) {
+                                ch.pipeline().addLast(compression.newExtensionHandler());
+                            }
+                            ch.pipeline().addLast(webSocketHandler);
                         }
                     })
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
-
-            serverChannel = bootstrap.bind(port).sync().channel();
-            log.info("WebSocket server started on port {}", port);
-
-            serverChannel.closeFuture().sync();
+                    .option(ChannelOption.SO_BACKLOG, config.getBacklog())
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay())
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                            config.getWriteBufferLowWaterMark(), config.getWriteBufferHighWaterMark()));
+
+            if (reusePort) {
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+
+            for (int i = 0; i < acceptors; i++) {
+                serverChannels.add(bootstrap.bind(config.getPort()).sync().channel());
+            }
+            log.info("WebSocket server started on port {} using {} transport ({} acceptor(s))",
+                    config.getPort(), transport, acceptors);
+
+            for (Channel serverChannel : serverChannels) {
+                serverChannel.closeFuture().sync();
+            }
 
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
@@ -82,15 +118,11 @@ public class WebSocketServer {
         }
     }
 
-    private WebSocketHandler createWebSocketHandler() {
-        return new WebSocketHandler(jwtService, clientService, userService);
-    }
-
     @PreDestroy
     public void shutdown() {
         log.info("Shutting down WebSocket server...");
 
-        if (serverChannel != null) {
+        for (Channel serverChannel : serverChannels) {
             serverChannel.close();
         }
         if (bossGroup != null) {
@@ -103,4 +135,4 @@ public class WebSocketServer {
         clientService.clearAllClients();
         log.info("WebSocket server shut down");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package org.margin.server.websocket.compression;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionUtil;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import org.margin.server.websocket.WebSocketAttributes;
+
+/**
+ * Records on the channel whether the negotiated deflate settings allow it to share pre-compressed frames.
+ */
+class NegotiatingExtensionHandler extends WebSocketServerExtensionHandler {
+    private static final String FULL_WINDOW = "15";
+
+    NegotiatingExtensionHandler(WebSocketServerExtensionHandshaker handshaker) {
+        super(handshaker);
+    }
+
+    @Override
+    protected void onHttpResponseWrite(ChannelHandlerContext ctx, HttpResponse response, ChannelPromise promise)
+            throws Exception {
+        super.onHttpResponseWrite(ctx, response, promise);
+
+        String extensions = response.headers().get(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+        if (extensions == null) {
+            return;
+        }
+
+        for (WebSocketExtensionData extension : WebSocketExtensionUtil.extractExtensions(extensions)) {
+            if (WebSocketCompression.PERMESSAGE_DEFLATE.equals(extension.name())) {
+                String serverWindow = extension.parameters().get(WebSocketCompression.SERVER_MAX_WINDOW);
+                boolean shared = extension.parameters().containsKey(WebSocketCompression.SERVER_NO_CONTEXT)
+                        && (serverWindow == null || FULL_WINDOW.equals(serverWindow));
+                ctx.channel().attr(WebSocketAttributes.SHARED_DEFLATE).set(shared);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.margin.server.websocket.compression;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+import lombok.Getter;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.WebSocketAttributes;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate (RFC 7692) for the WebSocket server. Negotiation and per-channel compression are Netty's; on top
+ * of that, channels that agreed to server_no_context_takeover can be sent frames compressed once per broadcast, since
+ * each of their messages is compressed independently of the ones before it.
+ */
+@Service
+public class WebSocketCompression {
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    static final String SERVER_NO_CONTEXT = "server_no_context_takeover";
+    static final String SERVER_MAX_WINDOW = "server_max_window_bits";
+    private static final byte[] DEFLATE_TAIL = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    @Getter
+    private final boolean enabled;
+    private final int level;
+    private final int minSize;
+    private final WebSocketServerExtensionHandshaker handshaker;
+
+    public WebSocketCompression(WebSocketConfig config) {
+        this.enabled = config.isCompressionEnabled();
+        this.level = config.getCompressionLevel();
+        this.minSize = config.getCompressionMinSize();
+        this.handshaker = enabled ? newHandshaker(config) : null;
+    }
+
+    private WebSocketServerExtensionHandshaker newHandshaker(WebSocketConfig config) {
+        WebSocketExtensionFilter belowMinSize = frame -> frame.content().readableBytes() < minSize;
+        WebSocketExtensionFilterProvider filters = new WebSocketExtensionFilterProvider() {
+            @Override
+            public WebSocketExtensionFilter encoderFilter() {
+                return belowMinSize;
+            }
+
+            @Override
+            public WebSocketExtensionFilter decoderFilter() {
+                return WebSocketExtensionFilter.NEVER_SKIP;
+            }
+        };
+
+        WebSocketServerExtensionHandshaker deflate = new PerMessageDeflateServerExtensionHandshaker(
+                level, true, config.getCompressionClientWindowBits(), true, false, filters);
+        return config.isCompressionServerNoContextTakeover() ? withServerNoContext(deflate) : deflate;
+    }
+
+    /**
+     * A new extension handler for one connection; it sits between the HTTP codec and the WebSocket handler.
+     */
+    public ChannelHandler newExtensionHandler() {
+        return new NegotiatingExtensionHandler(handshaker);
+    }
+
+    public boolean isSharedDeflate(Channel channel) {
+        return Boolean.TRUE.equals(channel.attr(WebSocketAttributes.SHARED_DEFLATE).get());
+    }
+
+    /**
+     * Compress a data frame as one permessage-deflate message, or return null if it is below the size threshold.
+     * The result has RSV1 set, so the channel's own deflate encoder passes it through untouched.
+     */
+    public WebSocketFrame precompress(WebSocketFrame frame) {
+        ByteBuf content = frame.content();
+        if (!enabled || content.readableBytes() < minSize) {
+            return null;
+        }
+
+        byte[] input = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), input);
+
+        Deflater deflater = new Deflater(level, true);
+        ByteBuf compressed = ByteBufAllocator.DEFAULT.buffer(input.length / 2 + DEFLATE_TAIL.length);
+        try {
+            deflater.setInput(input);
+            byte[] chunk = new byte[Math.max(64, Math.min(input.length, 8192))];
+            int written;
+            do {
+                written = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                compressed.writeBytes(chunk, 0, written);
+            } while (written == chunk.length);
+        } finally {
+            deflater.end();
+        }
+
+        // A sync flush always ends with an empty stored block, which RFC 7692 says to strip
+        compressed.writerIndex(compressed.writerIndex() - DEFLATE_TAIL.length);
+
+        return frame instanceof TextWebSocketFrame
+                ? new TextWebSocketFrame(true, WebSocketExtension.RSV1, compressed)
+                : new BinaryWebSocketFrame(true, WebSocketExtension.RSV1, compressed);
+    }
+
+    /**
+     * Accept permessage-deflate offers as though the client had asked for server_no_context_takeover, which a server
+     * may add on its own (RFC 7692 section 7.1.1.1).
+     */
+    private static WebSocketServerExtensionHandshaker withServerNoContext(WebSocketServerExtensionHandshaker deflate) {
+        return data -> {
+            if (!PERMESSAGE_DEFLATE.equals(data.name())) {
+                return deflate.handshakeExtension(data);
+            }
+
+            Map<String, String> parameters = new HashMap<>(data.parameters());
+            parameters.putIfAbsent(SERVER_NO_CONTEXT, null);
+            return deflate.handshakeExtension(new WebSocketExtensionData(data.name(), parameters));
+        };
+    }
+}
@@ -2,20 +2,37 @@ package org.margin.server.websocket.factories;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.stereotype.Component;
+import org.margin.server.social.models.ChannelMessageDTO;
 import org.margin.server.social.models.DirectMessage;
 import org.margin.server.users.UserService;
 import org.margin.server.users.models.User;
+import org.margin.server.websocket.models.MessageAck;
+import org.margin.server.websocket.models.PresenceDiff;
+import org.margin.server.websocket.models.WebSocketEnvelope;
+import org.margin.server.websocket.models.WebSocketFrameFormat;
 import org.margin.server.websocket.models.WebSocketMessage;
 import org.margin.server.websocket.models.WebSocketMessageType;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 @Component
 public class WebSocketMessageFactory {
 	private final ObjectMapper mapper;
+	private final ObjectMapper cborMapper;
 	private final UserService userService;
 
 	public WebSocketMessageFactory(ObjectMapper mapper, UserService userService) {
 		this.mapper = mapper;
+		this.cborMapper = Jackson2ObjectMapperBuilder.cbor().build();
 		this.userService = userService;
 	}
 
@@ -31,4 +48,62 @@ public class WebSocketMessageFactory {
 				mapper.writeValueAsString(directMessage));
 		return mapper.writeValueAsString(message);
 	}
+
+	public WebSocketFrame createUserActivityFrame(WebSocketFrameFormat format, WebSocketMessageType type, User user)
+			throws IOException {
+		return switch (format) {
+			case JSON -> new TextWebSocketFrame(createUserActivity(type, user));
+			case CBOR -> new BinaryWebSocketFrame(
+					writeCbor(new WebSocketEnvelope(type, user, System.currentTimeMillis(), null)));
+		};
+	}
+
+	public WebSocketFrame createChatMessageFrame(WebSocketFrameFormat format, DirectMessage directMessage)
+			throws IOException {
+		return switch (format) {
+			case JSON -> new TextWebSocketFrame(createWebSocketChatMessage(directMessage));
+			case CBOR -> new BinaryWebSocketFrame(writeCbor(new WebSocketEnvelope(WebSocketMessageType.SEND_MESSAGE,
+					userService.getById(directMessage.getToUserId()), System.currentTimeMillis(), directMessage)));
+		};
+	}
+
+	public WebSocketFrame createPresenceDiffFrame(WebSocketFrameFormat format, PresenceDiff diff) throws IOException {
+		return switch (format) {
+			case JSON -> new TextWebSocketFrame(mapper.writeValueAsString(new WebSocketMessage(
+					WebSocketMessageType.PRESENCE_DIFF, null, System.currentTimeMillis(), mapper.writeValueAsString(diff))));
+			case CBOR -> new BinaryWebSocketFrame(writeCbor(new WebSocketEnvelope(WebSocketMessageType.PRESENCE_DIFF,
+					null, System.currentTimeMillis(), diff)));
+		};
+	}
+
+	public WebSocketFrame createMessageAckFrame(WebSocketFrameFormat format, MessageAck ack) throws IOException {
+		return switch (format) {
+			case JSON -> new TextWebSocketFrame(mapper.writeValueAsString(new WebSocketMessage(
+					WebSocketMessageType.MESSAGE_ACK, null, System.currentTimeMillis(), mapper.writeValueAsString(ack))));
+			case CBOR -> new BinaryWebSocketFrame(writeCbor(new WebSocketEnvelope(WebSocketMessageType.MESSAGE_ACK,
+					null, System.currentTimeMillis(), ack)));
+		};
+	}
+
+	public WebSocketFrame createChannelMessageFrame(WebSocketFrameFormat format, ChannelMessageDTO channelMessage)
+			throws IOException {
+		return switch (format) {
+			case JSON -> new TextWebSocketFrame(mapper.writeValueAsString(new WebSocketMessage(
+					WebSocketMessageType.CHANNEL_MESSAGE, null, System.currentTimeMillis(),
+					mapper.writeValueAsString(channelMessage))));
+			case CBOR -> new BinaryWebSocketFrame(writeCbor(new WebSocketEnvelope(WebSocketMessageType.CHANNEL_MESSAGE,
+					null, System.currentTimeMillis(), channelMessage)));
+		};
+	}
+
+	private ByteBuf writeCbor(WebSocketEnvelope envelope) throws IOException {
+		ByteBuf buffer = ByteBufAllocator.DEFAULT.buffer();
+		try (OutputStream out = new ByteBufOutputStream(buffer)) {
+			cborMapper.writeValue(out, envelope);
+			return buffer;
+		} catch (IOException | RuntimeException e) {
+			buffer.release();
+			throw e;
+		}
+	}
 }
@@ -0,0 +1,26 @@
+package org.margin.server.websocket.models;
+
+/**
+ * When a channel last received and last sent anything. Written by the channel's event loop, read by the heartbeat
+ * timer.
+ */
+public class Heartbeat {
+	private volatile long lastReadNanos = System.nanoTime();
+	private volatile long lastWriteNanos = lastReadNanos;
+
+	public void touch() {
+		lastReadNanos = System.nanoTime();
+	}
+
+	public void wrote() {
+		lastWriteNanos = System.nanoTime();
+	}
+
+	public long idleNanos(long now) {
+		return now - lastReadNanos;
+	}
+
+	public long writerIdleNanos(long now) {
+		return now - lastWriteNanos;
+	}
+}
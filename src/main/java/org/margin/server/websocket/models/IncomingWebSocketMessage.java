@@ -0,0 +1,13 @@
+package org.margin.server.websocket.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record IncomingWebSocketMessage(
+        WebSocketTextFrameTypes type,
+        String toUserId,
+        Long channelId,
+        Long spaceId,
+        String message,
+        String clientMessageId
+) {}
@@ -0,0 +1,8 @@
+package org.margin.server.websocket.models;
+
+public record MessageAck(
+		String clientMessageId,
+		Long messageId,
+		boolean durable,
+		String error
+) {}
@@ -0,0 +1,38 @@
+package org.margin.server.websocket.models;
+
+import org.margin.server.users.models.User;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Presence updates held back from a channel that cannot keep up, merged so only each user's latest state is sent.
+ * Only touched from the channel's event loop.
+ */
+public class PendingPresence {
+	private final Map<Long, User> online = new LinkedHashMap<>();
+	private final Map<Long, User> offline = new LinkedHashMap<>();
+
+	public void merge(PresenceDiff diff) {
+		for (User user : diff.online()) {
+			offline.remove(user.getId());
+			online.put(user.getId(), user);
+		}
+		for (User user : diff.offline()) {
+			online.remove(user.getId());
+			offline.put(user.getId(), user);
+		}
+	}
+
+	public boolean isEmpty() {
+		return online.isEmpty() && offline.isEmpty();
+	}
+
+	public PresenceDiff drain() {
+		PresenceDiff diff = new PresenceDiff(new ArrayList<>(online.values()), new ArrayList<>(offline.values()));
+		online.clear();
+		offline.clear();
+		return diff;
+	}
+}
@@ -0,0 +1,14 @@
+package org.margin.server.websocket.models;
+
+import org.margin.server.users.models.User;
+
+import java.util.List;
+
+public record PresenceDiff(
+		List<User> online,
+		List<User> offline
+) {
+	public boolean isEmpty() {
+		return online.isEmpty() && offline.isEmpty();
+	}
+}
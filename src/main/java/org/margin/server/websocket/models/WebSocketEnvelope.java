@@ -0,0 +1,11 @@
+package org.margin.server.websocket.models;
+
+/**
+ * Binary counterpart of {@link WebSocketMessage}: user and payload are nested objects rather than embedded JSON strings
+ */
+public record WebSocketEnvelope(
+		WebSocketMessageType type,
+		Object user,
+		Long timestamp,
+		Object payload
+) {}
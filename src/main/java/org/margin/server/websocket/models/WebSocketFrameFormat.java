@@ -0,0 +1,31 @@
+package org.margin.server.websocket.models;
+
+import lombok.Getter;
+
+@Getter
+public enum WebSocketFrameFormat {
+	JSON("margin.json"),
+	CBOR("margin.cbor");
+
+	private final String subprotocol;
+
+	WebSocketFrameFormat(String subprotocol) {
+		this.subprotocol = subprotocol;
+	}
+
+	/**
+	 * Clients that don't negotiate a subprotocol get the legacy JSON text frames
+	 */
+	public static WebSocketFrameFormat fromSubprotocol(String subprotocol) {
+		for (WebSocketFrameFormat format : values()) {
+			if (format.subprotocol.equals(subprotocol)) {
+				return format;
+			}
+		}
+		return JSON;
+	}
+
+	public static String supportedSubprotocols() {
+		return CBOR.subprotocol + "," + JSON.subprotocol;
+	}
+}
@@ -1,5 +1,5 @@
 package org.margin.server.websocket.models;
 
 public enum WebSocketMessageType {
-	USER_LOGIN, USER_LOGOUT, SEND_MESSAGE,
+	USER_LOGIN, USER_LOGOUT, SEND_MESSAGE, PRESENCE_DIFF, MESSAGE_ACK, CHANNEL_MESSAGE,
 }
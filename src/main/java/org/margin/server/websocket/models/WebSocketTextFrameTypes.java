@@ -3,4 +3,8 @@ package org.margin.server.websocket.models;
 public enum WebSocketTextFrameTypes {
     SEND_DIRECT_MESSAGE,
     SEND_CHANNEL_MESSAGE,
+    SUBSCRIBE_CHANNEL,
+    UNSUBSCRIBE_CHANNEL,
+    SUBSCRIBE_SPACE,
+    UNSUBSCRIBE_SPACE,
 }
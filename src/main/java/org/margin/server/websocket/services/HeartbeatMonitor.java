@@ -0,0 +1,136 @@
+package org.margin.server.websocket.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.WebSocketAttributes;
+import org.margin.server.websocket.models.Heartbeat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connections honest without a scheduled task per channel: every registered channel gets a timeout on one
+ * shared timer wheel. When it fires, a channel that has been quiet for the ping interval, or not written to for the
+ * writer idle interval, is pinged, and one that has not answered within the reader idle timeout is closed. Writes are
+ * only seen by channels whose pipeline has the {@link WriteTracker}.
+ */
+@Slf4j
+@Service
+public class HeartbeatMonitor {
+    private static final long TICK_MILLIS = 500;
+
+    private final long pingIntervalNanos;
+    private final long readerIdleNanos;
+    private final long writerIdleNanos;
+    private final Timer timer;
+    private final Counter pings;
+    private final Counter reaped;
+
+    public HeartbeatMonitor(WebSocketConfig config, MeterRegistry meterRegistry) {
+        this.pingIntervalNanos = config.getHeartbeatPingInterval().toNanos();
+        this.readerIdleNanos = Math.max(config.getHeartbeatReaderIdleTimeout().toNanos(), pingIntervalNanos);
+        this.writerIdleNanos = config.getHeartbeatWriterIdleInterval().toNanos();
+        this.timer = new HashedWheelTimer(runnable -> {
+            Thread thread = new Thread(runnable, "websocket-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        }, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        this.pings = Counter.builder("websocket.heartbeat.pings").register(meterRegistry);
+        this.reaped = Counter.builder("websocket.heartbeat.reaped")
+                .description("Connections closed because the client stopped responding")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return pingIntervalNanos > 0;
+    }
+
+    public void register(Channel channel) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        channel.attr(WebSocketAttributes.HEARTBEAT).set(new Heartbeat());
+        timer.newTimeout(timeout -> check(timeout, channel), pingIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Record inbound traffic; called for every frame the channel reads.
+     */
+    public static void touch(Channel channel) {
+        Heartbeat heartbeat = channel.attr(WebSocketAttributes.HEARTBEAT).get();
+        if (heartbeat != null) {
+            heartbeat.touch();
+        }
+    }
+
+    private void check(Timeout timeout, Channel channel) {
+        if (!channel.isActive()) {
+            return;
+        }
+
+        Heartbeat heartbeat = channel.attr(WebSocketAttributes.HEARTBEAT).get();
+        long now = System.nanoTime();
+        long idle = heartbeat.idleNanos(now);
+        long writerIdle = writerIdleNanos > 0 ? heartbeat.writerIdleNanos(now) : 0;
+
+        if (idle >= readerIdleNanos) {
+            reaped.increment();
+            log.info("Closing unresponsive connection for {} after {}s idle",
+                    channel.attr(WebSocketAttributes.USER).get(), TimeUnit.NANOSECONDS.toSeconds(idle));
+            channel.close();
+            return;
+        }
+
+        boolean ping = idle >= pingIntervalNanos || (writerIdleNanos > 0 && writerIdle >= writerIdleNanos);
+        if (ping) {
+            pings.increment();
+            channel.writeAndFlush(new PingWebSocketFrame(), channel.voidPromise());
+        }
+
+        long untilNextPing = idle >= pingIntervalNanos ? pingIntervalNanos : pingIntervalNanos - idle;
+        if (writerIdleNanos > 0) {
+            untilNextPing = Math.min(untilNextPing, ping ? writerIdleNanos : writerIdleNanos - writerIdle);
+        }
+        long untilReap = readerIdleNanos - idle;
+        timeout.timer().newTimeout(next -> check(next, channel), Math.min(untilNextPing, untilReap),
+                TimeUnit.NANOSECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.stop();
+    }
+
+    /**
+     * Records outbound traffic for the writer idle interval; one instance serves every channel
+     */
+    @ChannelHandler.Sharable
+    public static final class WriteTracker extends ChannelOutboundHandlerAdapter {
+        public static final WriteTracker INSTANCE = new WriteTracker();
+
+        private WriteTracker() {
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            Heartbeat heartbeat = ctx.channel().attr(WebSocketAttributes.HEARTBEAT).get();
+            if (heartbeat != null) {
+                heartbeat.wrote();
+            }
+            ctx.write(msg, promise);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.margin.server.websocket.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.users.models.User;
+import org.margin.server.websocket.models.PresenceDiff;
+import org.margin.server.websocket.models.WebSocketMessageType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Holds USER_LOGIN / USER_LOGOUT changes for one window and hands the net result to a listener once per tick.
+ * A logout followed by a login (or the reverse) within the same window cancels out and is never sent.
+ */
+@Slf4j
+@Service
+public class PresenceAggregator {
+
+    private record PendingPresence(WebSocketMessageType type, User user) {
+    }
+
+    private final Map<Long, PendingPresence> pending = new ConcurrentHashMap<>();
+    private final long windowMs;
+    private final Counter suppressedEvents;
+    private final Counter emittedEvents;
+    private ScheduledExecutorService ticker;
+
+    public PresenceAggregator(WebSocketConfig config, MeterRegistry meterRegistry) {
+        this.windowMs = config.getPresenceWindowMs();
+        this.suppressedEvents = meterRegistry.counter("websocket.presence.events.suppressed");
+        this.emittedEvents = meterRegistry.counter("websocket.presence.events.emitted");
+    }
+
+    public boolean isEnabled() {
+        return windowMs > 0;
+    }
+
+    public synchronized void start(Consumer<PresenceDiff> listener) {
+        if (!isEnabled() || ticker != null) {
+            return;
+        }
+
+        ticker = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("presence-aggregator", true));
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                PresenceDiff diff = drain();
+                if (!diff.isEmpty()) {
+                    listener.accept(diff);
+                }
+            } catch (Exception e) {
+                log.error("Error flushing presence changes: {}", e.getMessage());
+            }
+        }, windowMs, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void record(WebSocketMessageType type, User user) {
+        pending.compute(user.getId(), (id, existing) -> {
+            if (existing == null) {
+                return new PendingPresence(type, user);
+            }
+
+            if (existing.type() != type) {
+                suppressedEvents.increment(2);
+                return null;
+            }
+
+            suppressedEvents.increment();
+            return new PendingPresence(type, user);
+        });
+    }
+
+    public PresenceDiff drain() {
+        List<User> online = new ArrayList<>();
+        List<User> offline = new ArrayList<>();
+
+        for (Long userId : pending.keySet()) {
+            PendingPresence presence = pending.remove(userId);
+            if (presence == null) {
+                continue;
+            }
+
+            if (presence.type() == WebSocketMessageType.USER_LOGIN) {
+                online.add(presence.user());
+            } else {
+                offline.add(presence.user());
+            }
+        }
+
+        emittedEvents.increment(online.size() + offline.size());
+        return new PresenceDiff(online, offline);
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.margin.server.websocket.services;
+
+import io.netty.channel.Channel;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Connected sessions by user id, any number per user. Users are spread over lock stripes, each a primitive
+ * {@code long}-keyed map, so lookups never box the id. A user's sessions are an immutable array replaced on every
+ * change: add and remove are atomic per user, and readers can iterate what they got without holding a lock.
+ */
+public class SessionRegistry {
+    private static final Channel[] NO_SESSIONS = new Channel[0];
+    private static final int STRIPES = 64;
+
+    @FunctionalInterface
+    public interface SessionConsumer {
+        void accept(long userId, Channel channel);
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public SessionRegistry() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Returns true if this is the user's first session, i.e. the user just came online.
+     */
+    public boolean add(long userId, Channel channel) {
+        Stripe stripe = stripe(userId);
+        stripe.lock.writeLock().lock();
+        try {
+            Channel[] sessions = stripe.sessions.get(userId);
+            if (sessions == null) {
+                stripe.sessions.put(userId, new Channel[]{channel});
+                return true;
+            }
+            if (indexOf(sessions, channel) < 0) {
+                Channel[] grown = Arrays.copyOf(sessions, sessions.length + 1);
+                grown[sessions.length] = channel;
+                stripe.sessions.put(userId, grown);
+            }
+            return false;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if the channel was the user's last session, i.e. the user just went offline.
+     */
+    public boolean remove(long userId, Channel channel) {
+        Stripe stripe = stripe(userId);
+        stripe.lock.writeLock().lock();
+        try {
+            Channel[] sessions = stripe.sessions.get(userId);
+            int index = sessions == null ? -1 : indexOf(sessions, channel);
+            if (index < 0) {
+                return false;
+            }
+            if (sessions.length == 1) {
+                stripe.sessions.remove(userId);
+                return true;
+            }
+
+            Channel[] shrunk = new Channel[sessions.length - 1];
+            System.arraycopy(sessions, 0, shrunk, 0, index);
+            System.arraycopy(sessions, index + 1, shrunk, index, sessions.length - index - 1);
+            stripe.sessions.put(userId, shrunk);
+            return false;
+        } finally {
+            stripe.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * A snapshot of the user's sessions; empty if the user is offline. Must not be modified.
+     */
+    public Channel[] sessions(long userId) {
+        Stripe stripe = stripe(userId);
+        stripe.lock.readLock().lock();
+        try {
+            Channel[] sessions = stripe.sessions.get(userId);
+            return sessions != null ? sessions : NO_SESSIONS;
+        } finally {
+            stripe.lock.readLock().unlock();
+        }
+    }
+
+    public boolean isOnline(long userId) {
+        return sessions(userId).length > 0;
+    }
+
+    public void forEach(SessionConsumer consumer) {
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                for (LongObjectMap.PrimitiveEntry<Channel[]> entry : stripe.sessions.entries()) {
+                    for (Channel channel : entry.value()) {
+                        consumer.accept(entry.key(), channel);
+                    }
+                }
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+    }
+
+    public List<Channel> channels() {
+        List<Channel> channels = new ArrayList<>();
+        forEach((userId, channel) -> channels.add(channel));
+        return channels;
+    }
+
+    public List<Long> userIds() {
+        List<Long> userIds = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                for (LongObjectMap.PrimitiveEntry<Channel[]> entry : stripe.sessions.entries()) {
+                    userIds.add(entry.key());
+                }
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return userIds;
+    }
+
+    public int userCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.readLock().lock();
+            try {
+                count += stripe.sessions.size();
+            } finally {
+                stripe.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    public int sessionCount() {
+        int[] count = new int[1];
+        forEach((userId, channel) -> count[0]++);
+        return count[0];
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+            try {
+                stripe.sessions.clear();
+            } finally {
+                stripe.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private Stripe stripe(long userId) {
+        long hash = userId * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (hash >>> 58)];
+    }
+
+    private static int indexOf(Channel[] sessions, Channel channel) {
+        for (int i = 0; i < sessions.length; i++) {
+            if (sessions[i] == channel) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Stripe {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final LongObjectHashMap<Channel[]> sessions = new LongObjectHashMap<>();
+    }
+}
@@ -0,0 +1,119 @@
+package org.margin.server.websocket.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOutboundBuffer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.WebSocketAttributes;
+import org.margin.server.websocket.factories.WebSocketMessageFactory;
+import org.margin.server.websocket.models.PendingPresence;
+import org.margin.server.websocket.models.PresenceDiff;
+
+import java.io.IOException;
+
+/**
+ * Decides what a channel that is not keeping up still gets written. Netty marks a channel unwritable once its outbound
+ * buffer passes the high water mark; from then on presence updates are dropped or coalesced, while chat messages and
+ * acks are still queued until the backlog limit, at which point the client is disconnected and has to resync.
+ * All methods must be called from the channel's event loop.
+ */
+@Slf4j
+@Service
+public class SlowConsumerGuard {
+
+    public enum PresencePolicy {
+        DROP, COALESCE
+    }
+
+    private final WebSocketMessageFactory messageFactory;
+    private final PresencePolicy presencePolicy;
+    private final long maxBacklogBytes;
+    private final Counter presenceDropped;
+    private final Counter presenceCoalesced;
+    private final Counter disconnects;
+
+    public SlowConsumerGuard(WebSocketConfig config,
+                             WebSocketMessageFactory messageFactory,
+                             MeterRegistry meterRegistry) {
+        this.messageFactory = messageFactory;
+        this.presencePolicy = PresencePolicy.valueOf(config.getSlowConsumerPresencePolicy().trim().toUpperCase());
+        this.maxBacklogBytes = config.getSlowConsumerMaxBacklogBytes();
+        this.presenceDropped = Counter.builder("websocket.slow-consumer.presence")
+                .tag("action", "dropped")
+                .register(meterRegistry);
+        this.presenceCoalesced = Counter.builder("websocket.slow-consumer.presence")
+                .tag("action", "coalesced")
+                .register(meterRegistry);
+        this.disconnects = Counter.builder("websocket.slow-consumer.disconnects")
+                .description("Channels closed because their outbound backlog exceeded the limit")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Whether a frame that must not be lost may be written. Over the backlog limit the channel is closed instead.
+     */
+    public boolean admit(Channel channel) {
+        if (!channel.isActive()) {
+            return false;
+        }
+        if (channel.isWritable() || maxBacklogBytes <= 0) {
+            return true;
+        }
+
+        long backlog = backlogBytes(channel);
+        if (backlog <= maxBacklogBytes) {
+            return true;
+        }
+
+        disconnects.increment();
+        log.warn("Disconnecting slow consumer {} ({}) with {} bytes queued",
+                channel.attr(WebSocketAttributes.USER).get(), channel.remoteAddress(), backlog);
+        channel.close();
+        return false;
+    }
+
+    /**
+     * Whether a presence update may be written now. Updates held back under the coalesce policy are sent by
+     * {@link #onWritable(Channel)}.
+     */
+    public boolean admitPresence(Channel channel, PresenceDiff diff) {
+        if (channel.isWritable()) {
+            return channel.isActive();
+        }
+
+        if (presencePolicy == PresencePolicy.COALESCE) {
+            PendingPresence pending = channel.attr(WebSocketAttributes.PENDING_PRESENCE).get();
+            if (pending == null) {
+                pending = new PendingPresence();
+                channel.attr(WebSocketAttributes.PENDING_PRESENCE).set(pending);
+            }
+            pending.merge(diff);
+            presenceCoalesced.increment();
+        } else {
+            presenceDropped.increment();
+        }
+        return false;
+    }
+
+    public void onWritable(Channel channel) {
+        PendingPresence pending = channel.attr(WebSocketAttributes.PENDING_PRESENCE).get();
+        if (pending == null || pending.isEmpty() || !channel.isActive()) {
+            return;
+        }
+
+        try {
+            channel.writeAndFlush(messageFactory.createPresenceDiffFrame(
+                    WebSocketBroadcaster.frameFormat(channel), pending.drain()), channel.voidPromise());
+        } catch (IOException e) {
+            log.error("Error sending coalesced presence: {}", e.getMessage());
+        }
+    }
+
+    public static long backlogBytes(Channel channel) {
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return outboundBuffer != null ? outboundBuffer.totalPendingWriteBytes() : 0;
+    }
+}
@@ -0,0 +1,86 @@
+package org.margin.server.websocket.services;
+
+import io.netty.channel.Channel;
+import org.margin.server.websocket.WebSocketAttributes;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local sessions subscribed to each channel and space. Lookups go through the same striped, copy-on-write registry
+ * as user sessions, and every session remembers its own topics so a disconnect only touches what it subscribed to.
+ */
+public class SubscriptionIndex {
+
+    public enum Kind {
+        CHANNEL, SPACE
+    }
+
+    public record Topic(Kind kind, long id) {
+    }
+
+    private final SessionRegistry byChannel = new SessionRegistry();
+    private final SessionRegistry bySpace = new SessionRegistry();
+
+    public void subscribe(Channel session, Kind kind, long id) {
+        if (topics(session).add(new Topic(kind, id))) {
+            registry(kind).add(id, session);
+        }
+    }
+
+    public void unsubscribe(Channel session, Kind kind, long id) {
+        if (topics(session).remove(new Topic(kind, id))) {
+            registry(kind).remove(id, session);
+        }
+    }
+
+    public void unsubscribeAll(Channel session) {
+        Set<Topic> topics = session.attr(WebSocketAttributes.SUBSCRIPTIONS).getAndSet(null);
+        if (topics == null) {
+            return;
+        }
+
+        for (Topic topic : topics) {
+            registry(topic.kind()).remove(topic.id(), session);
+        }
+    }
+
+    /**
+     * Sessions subscribed to the channel or to the space it belongs to, each listed once
+     */
+    public Collection<Channel> subscribers(long channelId, long spaceId) {
+        Channel[] channelSubscribers = byChannel.sessions(channelId);
+        Channel[] spaceSubscribers = bySpace.sessions(spaceId);
+
+        if (spaceSubscribers.length == 0) {
+            return Arrays.asList(channelSubscribers);
+        }
+        if (channelSubscribers.length == 0) {
+            return Arrays.asList(spaceSubscribers);
+        }
+
+        Set<Channel> union = new LinkedHashSet<>(Arrays.asList(channelSubscribers));
+        union.addAll(Arrays.asList(spaceSubscribers));
+        return union;
+    }
+
+    public int subscriptionCount() {
+        return byChannel.sessionCount() + bySpace.sessionCount();
+    }
+
+    private SessionRegistry registry(Kind kind) {
+        return kind == Kind.CHANNEL ? byChannel : bySpace;
+    }
+
+    private static Set<Topic> topics(Channel session) {
+        Set<Topic> topics = session.attr(WebSocketAttributes.SUBSCRIPTIONS).get();
+        if (topics == null) {
+            Set<Topic> created = ConcurrentHashMap.newKeySet();
+            topics = session.attr(WebSocketAttributes.SUBSCRIPTIONS).setIfAbsent(created);
+            if (topics == null) {
+                topics = created;
+            }
+        }
+        return topics;
+    }
+}
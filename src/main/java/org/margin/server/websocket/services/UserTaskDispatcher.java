@@ -0,0 +1,123 @@
+package org.margin.server.websocket.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.WebSocketConfig;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Runs blocking work for WebSocket clients on virtual threads so it never holds up an event loop. Tasks submitted for
+ * the same user run one after another in submission order, while different users proceed independently: a user stuck
+ * on a slow database call or federated peer only delays their own messages.
+ * <p>
+ * Each user with pending work has a mailbox. State changes to a mailbox happen inside {@link Map#compute} on its key,
+ * so a mailbox is either scheduled with a drainer or absent from the map, never idle with tasks left in it.
+ */
+@Slf4j
+@Service
+public class UserTaskDispatcher {
+
+    private static final class Mailbox {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private int pending;
+    }
+
+    private final ConcurrentHashMap<Long, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final int maxPendingPerUser;
+    private final Counter rejected;
+
+    public UserTaskDispatcher(WebSocketConfig config, MeterRegistry meterRegistry) {
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("websocket-task-", 0).factory());
+        this.maxPendingPerUser = config.getDispatchMaxPendingPerUser();
+        this.rejected = Counter.builder("websocket.dispatch.rejected")
+                .description("Tasks refused because the user already had too many pending")
+                .register(meterRegistry);
+
+        Gauge.builder("websocket.dispatch.busy.users", mailboxes, Map::size)
+                .description("Users with tasks queued or running")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queue a task behind the user's earlier ones. Returns false, without running it, if the user already has the
+     * maximum number of tasks pending.
+     */
+    public boolean submit(long userId, Runnable task) {
+        boolean[] accepted = {false};
+        boolean[] start = {false};
+
+        mailboxes.compute(userId, (id, mailbox) -> {
+            if (mailbox == null) {
+                mailbox = new Mailbox();
+                start[0] = true;
+            } else if (mailbox.pending >= maxPendingPerUser) {
+                return mailbox;
+            }
+            mailbox.tasks.add(task);
+            mailbox.pending++;
+            accepted[0] = true;
+            return mailbox;
+        });
+
+        if (!accepted[0]) {
+            rejected.increment();
+            return false;
+        }
+        if (start[0]) {
+            try {
+                executor.execute(() -> drain(userId));
+            } catch (RejectedExecutionException e) {
+                log.warn("Dispatcher is shut down, dropping tasks for user {}", userId);
+                mailboxes.remove(userId);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run blocking work that is not tied to a user yet, such as authenticating a handshake
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    private void drain(long userId) {
+        Mailbox mailbox = mailboxes.get(userId);
+
+        while (mailbox != null) {
+            int ran = 0;
+            Runnable task;
+            while ((task = mailbox.tasks.poll()) != null) {
+                ran++;
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("Task for user {} failed: {}", userId, e.getMessage(), e);
+                }
+            }
+
+            int finished = ran;
+            mailbox = mailboxes.compute(userId, (id, current) -> {
+                current.pending -= finished;
+                return current.tasks.isEmpty() ? null : current;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.margin.server.websocket.services;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.WebSocketAttributes;
+import org.margin.server.websocket.compression.WebSocketCompression;
+import org.margin.server.websocket.models.PresenceDiff;
+import org.margin.server.websocket.models.WebSocketFrameFormat;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Fans a frame out to many channels: each wire format is encoded once (and deflated once for channels that can share
+ * compressed frames) and shared as retained duplicates, and writes are grouped so every event loop receives a single
+ * task per broadcast.
+ */
+@Slf4j
+@Service
+public class WebSocketBroadcaster {
+
+    public enum FlushMode {
+        IMMEDIATE, BATCHED, COALESCED
+    }
+
+    @FunctionalInterface
+    public interface FrameEncoder {
+        WebSocketFrame encode(WebSocketFrameFormat format) throws IOException;
+    }
+
+    private record FrameKey(WebSocketFrameFormat format, boolean deflated) {
+    }
+
+    private final SlowConsumerGuard slowConsumerGuard;
+    private final WebSocketCompression compression;
+    private final FlushMode flushMode;
+    private final long flushIntervalMs;
+    // Each set is only touched from its own event loop
+    private final Map<EventLoop, Set<Channel>> pendingFlushes = new ConcurrentHashMap<>();
+
+    public WebSocketBroadcaster(WebSocketConfig config,
+                                SlowConsumerGuard slowConsumerGuard,
+                                WebSocketCompression compression) {
+        this.slowConsumerGuard = slowConsumerGuard;
+        this.compression = compression;
+        this.flushMode = FlushMode.valueOf(config.getBroadcastFlushMode().trim().toUpperCase());
+        this.flushIntervalMs = config.getBroadcastFlushIntervalMs();
+    }
+
+    public void broadcast(Collection<Channel> channels, Channel excluded, FrameEncoder encoder) throws IOException {
+        broadcast(channels, excluded, encoder, slowConsumerGuard::admit);
+    }
+
+    /**
+     * Broadcast a presence update, which channels that are not keeping up may drop or coalesce.
+     */
+    public void broadcastPresence(Collection<Channel> channels, Channel excluded, PresenceDiff diff,
+                                  FrameEncoder encoder) throws IOException {
+        broadcast(channels, excluded, encoder, channel -> slowConsumerGuard.admitPresence(channel, diff));
+    }
+
+    private void broadcast(Collection<Channel> channels, Channel excluded, FrameEncoder encoder,
+                           Predicate<Channel> admission) throws IOException {
+        Map<FrameKey, WebSocketFrame> frames = new HashMap<>();
+        Map<EventLoop, List<Channel>> channelsByLoop = new IdentityHashMap<>();
+
+        try {
+            for (Channel channel : channels) {
+                if (channel == excluded || !channel.isActive()) {
+                    continue;
+                }
+
+                WebSocketFrameFormat format = frameFormat(channel);
+                FrameKey plain = new FrameKey(format, false);
+                if (!frames.containsKey(plain)) {
+                    frames.put(plain, encoder.encode(format));
+                }
+
+                FrameKey deflated = new FrameKey(format, true);
+                if (compression.isSharedDeflate(channel) && !frames.containsKey(deflated)) {
+                    WebSocketFrame precompressed = compression.precompress(frames.get(plain));
+                    if (precompressed != null) {
+                        frames.put(deflated, precompressed);
+                    }
+                }
+                channelsByLoop.computeIfAbsent(channel.eventLoop(), loop -> new ArrayList<>()).add(channel);
+            }
+
+            channelsByLoop.forEach((loop, loopChannels) -> dispatch(loop, loopChannels, frames, admission));
+        } finally {
+            frames.values().forEach(WebSocketFrame::release);
+        }
+    }
+
+    public static WebSocketFrameFormat frameFormat(Channel channel) {
+        WebSocketFrameFormat format = channel.attr(WebSocketAttributes.FRAME_FORMAT).get();
+        return format != null ? format : WebSocketFrameFormat.JSON;
+    }
+
+    private void dispatch(EventLoop loop, List<Channel> channels, Map<FrameKey, WebSocketFrame> frames,
+                          Predicate<Channel> admission) {
+        frames.values().forEach(WebSocketFrame::retain);
+
+        Runnable task = () -> {
+            try {
+                writeAll(loop, channels, frames, admission);
+            } finally {
+                frames.values().forEach(WebSocketFrame::release);
+            }
+        };
+
+        if (loop.inEventLoop()) {
+            task.run();
+            return;
+        }
+
+        try {
+            loop.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.warn("Event loop rejected broadcast to {} channels: {}", channels.size(), e.getMessage());
+            frames.values().forEach(WebSocketFrame::release);
+        }
+    }
+
+    private void writeAll(EventLoop loop, List<Channel> channels, Map<FrameKey, WebSocketFrame> frames,
+                          Predicate<Channel> admission) {
+        List<Channel> written = new ArrayList<>(channels.size());
+
+        for (Channel channel : channels) {
+            if (!admission.test(channel)) {
+                continue;
+            }
+
+            WebSocketFrame frame = frameFor(channel, frames).retainedDuplicate();
+
+            if (flushMode == FlushMode.IMMEDIATE) {
+                channel.writeAndFlush(frame, channel.voidPromise());
+            } else {
+                channel.write(frame, channel.voidPromise());
+            }
+            written.add(channel);
+        }
+
+        switch (flushMode) {
+            case BATCHED -> written.forEach(Channel::flush);
+            case COALESCED -> scheduleFlush(loop, written);
+            case IMMEDIATE -> {
+            }
+        }
+    }
+
+    /**
+     * The pre-compressed frame for channels that can take it, otherwise the plain one
+     */
+    private WebSocketFrame frameFor(Channel channel, Map<FrameKey, WebSocketFrame> frames) {
+        WebSocketFrameFormat format = frameFormat(channel);
+        if (compression.isSharedDeflate(channel)) {
+            WebSocketFrame deflated = frames.get(new FrameKey(format, true));
+            if (deflated != null) {
+                return deflated;
+            }
+        }
+        return frames.get(new FrameKey(format, false));
+    }
+
+    private void scheduleFlush(EventLoop loop, List<Channel> channels) {
+        if (channels.isEmpty()) {
+            return;
+        }
+
+        Set<Channel> pending = pendingFlushes.computeIfAbsent(loop, key -> new HashSet<>());
+
+        if (pending.isEmpty()) {
+            loop.schedule(() -> flushPending(pending), flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        pending.addAll(channels);
+    }
+
+    private void flushPending(Set<Channel> pending) {
+        for (Channel channel : pending) {
+            channel.flush();
+        }
+        pending.clear();
+    }
+}
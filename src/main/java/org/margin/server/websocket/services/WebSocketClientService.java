@@ -1,141 +1,294 @@
 package org.margin.server.websocket.services;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.netty.channel.Channel;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import org.margin.server.social.models.ChannelMessage;
+import org.margin.server.social.models.ChannelMessageDTO;
 import org.margin.server.social.models.DirectMessage;
+import org.margin.server.social.services.ChannelMessageService;
 import org.margin.server.social.services.MessageService;
 import org.margin.server.config.FederationConfig;
-import org.margin.server.federation.services.FederationService;
+import org.margin.server.federation.services.FederationOutbox;
 import org.margin.server.users.models.User;
 import org.margin.server.websocket.factories.WebSocketMessageFactory;
+import org.margin.server.websocket.models.MessageAck;
+import org.margin.server.websocket.models.PresenceDiff;
 import org.margin.server.websocket.models.WebSocketMessageType;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @Service
 public class WebSocketClientService {
-	private final Map<Long, Channel> clients = new ConcurrentHashMap<>();
+	private final SessionRegistry sessions = new SessionRegistry();
+	private final SubscriptionIndex subscriptions = new SubscriptionIndex();
 	private final WebSocketMessageFactory messageFactory;
+	private final WebSocketBroadcaster broadcaster;
+	private final SlowConsumerGuard slowConsumerGuard;
+	private final HeartbeatMonitor heartbeatMonitor;
+	private final PresenceAggregator presenceAggregator;
 	private final MessageService messageService;
+	private final ChannelMessageService channelMessageService;
     private final FederationConfig federationConfig;
-    private final FederationService federationService;
+    private final FederationOutbox federationOutbox;
 
 	public WebSocketClientService(WebSocketMessageFactory messageFactory,
+                                  WebSocketBroadcaster broadcaster,
+                                  SlowConsumerGuard slowConsumerGuard,
+                                  HeartbeatMonitor heartbeatMonitor,
+                                  PresenceAggregator presenceAggregator,
                                   MessageService messageService,
+                                  ChannelMessageService channelMessageService,
                                   FederationConfig federationConfig,
-                                  FederationService federationService) {
+                                  FederationOutbox federationOutbox,
+                                  MeterRegistry meterRegistry) {
 		this.messageFactory = messageFactory;
+		this.broadcaster = broadcaster;
+		this.slowConsumerGuard = slowConsumerGuard;
+		this.heartbeatMonitor = heartbeatMonitor;
+		this.presenceAggregator = presenceAggregator;
 		this.messageService = messageService;
+		this.channelMessageService = channelMessageService;
         this.federationConfig = federationConfig;
-        this.federationService = federationService;
+        this.federationOutbox = federationOutbox;
+
+		Gauge.builder("websocket.clients.registered", sessions, SessionRegistry::sessionCount)
+				.description("Sessions in the registry, including any whose connection has died unnoticed")
+				.register(meterRegistry);
+		Gauge.builder("websocket.clients.live", sessions, registry -> registry.channels().stream()
+						.filter(Channel::isActive).count())
+				.description("Registered sessions whose channel is still active")
+				.register(meterRegistry);
+		Gauge.builder("websocket.clients.users", sessions, SessionRegistry::userCount)
+				.description("Users with at least one session")
+				.register(meterRegistry);
+		Gauge.builder("websocket.subscriptions", subscriptions, SubscriptionIndex::subscriptionCount)
+				.description("Channel and space subscriptions held by local sessions")
+				.register(meterRegistry);
 	}
 
-	public void addClient(Long id, Channel channel) {
-		clients.put(id, channel);
+	/**
+	 * Presence diffs are broadcast once the service is fully constructed, and stop before the beans they use go away
+	 */
+	@PostConstruct
+	public void startPresence() {
+		presenceAggregator.start(this::broadcastPresenceDiff);
+	}
+
+	@PreDestroy
+	public void stopPresence() {
+		presenceAggregator.shutdown();
+	}
+
+	/**
+	 * Returns true if this is the user's first session, in which case the user has just come online.
+	 */
+	public boolean addClient(long id, Channel channel) {
+		boolean firstSession = sessions.add(id, channel);
+		heartbeatMonitor.register(channel);
 		log.info("User {} has connected", id);
+		return firstSession;
 	}
 
-	public void removeClient(Long id) {
-		clients.remove(id);
+	/**
+	 * Returns true if this was the user's last session, in which case the user has just gone offline.
+	 */
+	public boolean removeClient(long id, Channel channel) {
+		boolean lastSession = sessions.remove(id, channel);
+		subscriptions.unsubscribeAll(channel);
 		log.info("User {} has disconnected", id);
+		return lastSession;
+	}
+
+	public SessionRegistry getSessions() {
+		return sessions;
+	}
+
+	public List<Long> getOnlineUserIds() {
+		return sessions.userIds();
 	}
 
-	public Map<Long, Channel> getAllClients() {
-		return clients;
+	/**
+	 * Subscribe the session to a channel or space. Returns false if there is no such channel or space.
+	 */
+	public boolean subscribe(Channel channel, SubscriptionIndex.Kind kind, long id) {
+		boolean exists = kind == SubscriptionIndex.Kind.CHANNEL
+				? channelMessageService.channelExists(id)
+				: channelMessageService.spaceExists(id);
+		if (exists) {
+			subscriptions.subscribe(channel, kind, id);
+			// Runs off the event loop, so the session may have closed and been unsubscribed from everything meanwhile;
+			// a channel is inactive before that happens, so checking after adding cannot miss it
+			if (!channel.isActive()) {
+				subscriptions.unsubscribe(channel, kind, id);
+			}
+		}
+		return exists;
 	}
 
-	public Channel getClientChannel(Long toUserId) {
-		return clients.get(toUserId);
+	public void unsubscribe(Channel channel, SubscriptionIndex.Kind kind, long id) {
+		subscriptions.unsubscribe(channel, kind, id);
 	}
 
     public void broadcastUserLogin(User loggedInUser) {
-        try {
-            String messageJson = messageFactory.createUserActivity(WebSocketMessageType.USER_LOGIN, loggedInUser);
-            TextWebSocketFrame frame = new TextWebSocketFrame(messageJson);
+        broadcastUserActivity(WebSocketMessageType.USER_LOGIN, loggedInUser);
+    }
 
-            Channel loggedInUserChannel = clients.get(loggedInUser.getId());
+    public void broadcastUserLogout(User loggedOutUser) {
+        broadcastUserActivity(WebSocketMessageType.USER_LOGOUT, loggedOutUser);
+    }
 
-            for (Channel channel : clients.values()) {
-                if (channel.isActive() && channel != loggedInUserChannel) {
-                    channel.writeAndFlush(frame.copy());
-                }
-            }
+    private void broadcastUserActivity(WebSocketMessageType type, User user) {
+        if (presenceAggregator.isEnabled()) {
+            presenceAggregator.record(type, user);
+            return;
+        }
 
-            frame.release();
+        PresenceDiff diff = type == WebSocketMessageType.USER_LOGIN
+                ? new PresenceDiff(List.of(user), List.of())
+                : new PresenceDiff(List.of(), List.of(user));
+
+        try {
+            List<Channel> others = sessions.channels();
+            others.removeAll(Arrays.asList(sessions.sessions(user.getId())));
+            broadcaster.broadcastPresence(others, null, diff,
+                    format -> messageFactory.createUserActivityFrame(format, type, user));
         } catch (Exception e) {
-            log.error("Error broadcasting user login: {}", e.getMessage());
+            log.error("Error broadcasting {} for user {}: {}", type, user.getId(), e.getMessage());
         }
     }
 
-    public void broadcastUserLogout(User loggedOutUser) {
+    private void broadcastPresenceDiff(PresenceDiff diff) {
         try {
-            String messageJson = messageFactory.createUserActivity(WebSocketMessageType.USER_LOGOUT, loggedOutUser);
-            TextWebSocketFrame frame = new TextWebSocketFrame(messageJson);
-
-            Channel loggedOutUserChannel = clients.get(loggedOutUser.getId());
-
-            for (Channel channel : clients.values()) {
-                if (channel.isActive() && channel != loggedOutUserChannel) {
-                    channel.writeAndFlush(frame.copy());
-                }
-            }
-
-            frame.release();
+            broadcaster.broadcastPresence(sessions.channels(), null, diff,
+                    format -> messageFactory.createPresenceDiffFrame(format, diff));
         } catch (Exception e) {
-            log.error("Error broadcasting user logout: {}", e.getMessage());
+            log.error("Error broadcasting presence diff: {}", e.getMessage());
         }
     }
 
-    public void sendMessageToUser(DirectMessage directMessage) {
+    /**
+     * Deliver the message and queue it for persistence. The returned future completes once the message is durable.
+     */
+    public CompletableFuture<DirectMessage> sendMessageToUser(DirectMessage directMessage) {
         String recipientServer = parseServerFromUserId(directMessage.getToUserServer());
 
         if (isLocalUser(recipientServer)) {
-            deliverLocalMessage(directMessage);
+            return deliverLocalMessage(directMessage);
         } else {
-            deliverFederatedMessage(directMessage, recipientServer);
+            return deliverFederatedMessage(directMessage, recipientServer);
+        }
+    }
+
+    /**
+     * Persist the channel message and deliver it to every local session subscribed to the channel or its space,
+     * except the one it came from. The frame is encoded once per wire format for all subscribers.
+     */
+    public CompletableFuture<ChannelMessage> sendChannelMessage(Channel origin, User from, long channelId, String text) {
+        ChannelMessage message = channelMessageService.newMessage(from, channelId, text);
+        CompletableFuture<ChannelMessage> durable = channelMessageService.saveMessage(message);
+        if (durable.isCompletedExceptionally()) {
+            return durable;
+        }
+
+        ChannelMessageDTO dto = new ChannelMessageDTO(message);
+        try {
+            broadcaster.broadcast(subscriptions.subscribers(channelId, dto.spaceId()), origin,
+                    format -> messageFactory.createChannelMessageFrame(format, dto));
+        } catch (Exception e) {
+            log.error("Error delivering message to channel {}: {}", channelId, e.getMessage());
+        }
+        return durable;
+    }
+
+    public void acknowledgeMessage(Channel channel, String clientMessageId, Long messageId, Throwable error) {
+        MessageAck ack = error == null
+                ? new MessageAck(clientMessageId, messageId, true, null)
+                : new MessageAck(clientMessageId, null, false, "Message could not be stored");
+
+        channel.eventLoop().execute(() -> {
+            if (!slowConsumerGuard.admit(channel)) {
+                return;
+            }
+
+            try {
+                channel.writeAndFlush(messageFactory.createMessageAckFrame(WebSocketBroadcaster.frameFormat(channel), ack));
+            } catch (IOException e) {
+                log.error("Error sending message ack: {}", e.getMessage());
+            }
+        });
+    }
+
+    public void onWritabilityChanged(Channel channel) {
+        if (channel.isWritable()) {
+            slowConsumerGuard.onWritable(channel);
+        }
+    }
+
+    /**
+     * Stop reading from the sender while the persistence queue is saturated
+     */
+    public void applyPersistenceBackpressure(Channel channel) {
+        if (!channel.config().isAutoRead()) {
+            return;
+        }
+
+        if (messageService.isPersistenceSaturated()) {
+            log.debug("Persistence queue saturated, pausing reads from {}", channel.remoteAddress());
+            channel.config().setAutoRead(false);
+            messageService.whenPersistenceDrained(() -> channel.config().setAutoRead(true));
+        } else if (channelMessageService.isPersistenceSaturated()) {
+            log.debug("Channel message queue saturated, pausing reads from {}", channel.remoteAddress());
+            channel.config().setAutoRead(false);
+            channelMessageService.whenPersistenceDrained(() -> channel.config().setAutoRead(true));
         }
     }
 
 	public void clearAllClients() {
-		clients.clear();
+		sessions.clear();
 	}
 
 
-    private void deliverLocalMessage(DirectMessage directMessage) {
-        Channel targetChannel = getClientChannel(directMessage.getToUserId());
+    private CompletableFuture<DirectMessage> deliverLocalMessage(DirectMessage directMessage) {
+        CompletableFuture<DirectMessage> durable = messageService.saveMessage(directMessage);
+        if (durable.isCompletedExceptionally()) {
+            // Refused before it was queued, so the sender will retry it
+            return durable;
+        }
+        Channel[] targetChannels = sessions.sessions(directMessage.getToUserId());
 
-        if (targetChannel == null) {
+        if (targetChannels.length == 0) {
             log.debug("User {} is not connected, storing message for later", directMessage.getToUserId());
             // TODO: Send push notification for offline user
-            messageService.saveMessage(directMessage);
-            return;
+            return durable;
         }
 
-        try {
-            String messageJson = messageFactory.createWebSocketChatMessage(directMessage);
-            TextWebSocketFrame frame = new TextWebSocketFrame(messageJson);
-
-            if (targetChannel.isActive()) {
-                targetChannel.writeAndFlush(frame.copy());
-                messageService.saveMessage(directMessage);
-            } else {
-                log.debug("Channel inactive for user {}", directMessage.getToUserId());
-                // TODO: Send push notification for offline user
-                messageService.saveMessage(directMessage);
-            }
+        for (Channel targetChannel : targetChannels) {
+            targetChannel.eventLoop().execute(() -> {
+                if (!slowConsumerGuard.admit(targetChannel)) {
+                    return;
+                }
 
-            frame.release();
-        } catch (JsonProcessingException e) {
-            log.error("Error sending message: {}", e.getMessage());
+                try {
+                    targetChannel.writeAndFlush(messageFactory.createChatMessageFrame(
+                            WebSocketBroadcaster.frameFormat(targetChannel), directMessage));
+                } catch (IOException e) {
+                    log.error("Error sending message: {}", e.getMessage());
+                }
+            });
         }
+        return durable;
     }
 
-    private void deliverFederatedMessage(DirectMessage directMessage, String targetServer) {
+    private CompletableFuture<DirectMessage> deliverFederatedMessage(DirectMessage directMessage, String targetServer) {
         log.info("Routing message to federated server: {}", targetServer);
 
         if (directMessage.getFromUserServer() == null) {
@@ -143,13 +296,10 @@ public class WebSocketClientService {
         }
         directMessage.setToUserServer(targetServer);
 
-        messageService.saveMessage(directMessage);
-
-        boolean success = federationService.sendFederatedMessage(directMessage);
-        if (!success) {
-            log.error("Failed to deliver federated message to {}", targetServer);
-            // TODO: Mark message as failed, implement retry logic or callback the error to client
-        }
+        // Queued for the peer only once stored here, so both servers' histories hold the same messages. The outbox
+        // retries until the peer accepts it; the sender's ack only reflects local persistence.
+        return messageService.saveMessage(directMessage)
+                .thenCompose(saved -> federationOutbox.enqueue(saved).thenApply(queued -> saved));
     }
 
     private boolean isLocalUser(String serverDomain) {
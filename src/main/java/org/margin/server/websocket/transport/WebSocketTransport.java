@@ -0,0 +1,92 @@
+package org.margin.server.websocket.transport;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public enum WebSocketTransport {
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, String name) {
+            return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> channelClass() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return true;
+        }
+    },
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads, String name) {
+            return new NioEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> channelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return false;
+        }
+    };
+
+    public abstract EventLoopGroup newEventLoopGroup(int threads, String name);
+
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /**
+     * Channel type for outgoing connections
+     */
+    public abstract Class<? extends Channel> channelClass();
+
+    public abstract boolean supportsReusePort();
+
+    /**
+     * Resolve the configured transport name, falling back to NIO when the native transport can't be loaded
+     */
+    public static WebSocketTransport select(String preference) {
+        String name = preference == null ? "auto" : preference.trim().toLowerCase();
+
+        return switch (name) {
+            case "nio" -> NIO;
+            case "epoll" -> {
+                if (!Epoll.isAvailable()) {
+                    log.warn("Epoll transport requested but unavailable, falling back to NIO: {}",
+                            Epoll.unavailabilityCause().getMessage());
+                    yield NIO;
+                }
+                yield EPOLL;
+            }
+            case "auto" -> Epoll.isAvailable() ? EPOLL : NIO;
+            default -> throw new IllegalArgumentException("Unknown websocket transport: " + preference);
+        };
+    }
+}
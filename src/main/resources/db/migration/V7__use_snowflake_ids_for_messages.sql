@@ -0,0 +1,7 @@
+-- Message ids are now generated by the application (time-ordered Snowflake ids) so inserts can be batched.
+-- Existing identity values are far below the Snowflake range, so old and new ids never collide and keep sorting by time.
+ALTER TABLE direct_messages
+    ALTER COLUMN id DROP IDENTITY IF EXISTS;
+
+ALTER TABLE channel_messages
+    ALTER COLUMN id DROP IDENTITY IF EXISTS;
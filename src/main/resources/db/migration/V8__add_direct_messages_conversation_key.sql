@@ -0,0 +1,32 @@
+-- Runs outside a transaction (CREATE INDEX CONCURRENTLY, spring.flyway.mixed=true) so the backfill can commit in
+-- batches and the table stays writable throughout.
+ALTER TABLE direct_messages
+    ADD COLUMN IF NOT EXISTS conversation_key VARCHAR(600);
+
+-- Must match ConversationKey.of: "server/userId" pairs in byte order, a missing server meaning this server
+DO
+$$
+    DECLARE
+        updated INTEGER;
+    BEGIN
+        LOOP
+            UPDATE direct_messages dm
+            SET conversation_key = LEAST(keys.from_participant, keys.to_participant) || '|' ||
+                                   GREATEST(keys.from_participant, keys.to_participant)
+            FROM (SELECT id,
+                         (COALESCE(from_user_server, '${local_server_domain}') || '/' || from_user_id) COLLATE "C" AS from_participant,
+                         (COALESCE(to_user_server, '${local_server_domain}') || '/' || to_user_id) COLLATE "C"     AS to_participant
+                  FROM direct_messages
+                  WHERE conversation_key IS NULL
+                  LIMIT 10000) keys
+            WHERE dm.id = keys.id;
+
+            GET DIAGNOSTICS updated = ROW_COUNT;
+            EXIT WHEN updated = 0;
+            COMMIT;
+        END LOOP;
+    END
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_direct_messages_conversation_key_id
+    ON direct_messages (conversation_key, id);
@@ -0,0 +1,27 @@
+-- Runs outside a transaction (CREATE INDEX CONCURRENTLY, spring.flyway.mixed=true) so direct_messages stays writable.
+
+-- Federated messages waiting to be delivered to their server. The id is the message id, so a message is queued at
+-- most once and the receiving server can recognise retries of it. Delivered rows are deleted.
+CREATE TABLE IF NOT EXISTS federation_outbox
+(
+    id              BIGINT                   NOT NULL,
+    peer            VARCHAR(255)             NOT NULL,
+    payload         VARCHAR(8192)            NOT NULL,
+    status          VARCHAR(16)              NOT NULL,
+    attempts        INTEGER                  NOT NULL DEFAULT 0,
+    next_attempt_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    created_at      TIMESTAMP WITH TIME ZONE NOT NULL,
+    last_error      VARCHAR(1000),
+    CONSTRAINT pk_federation_outbox PRIMARY KEY (id)
+);
+
+CREATE INDEX IF NOT EXISTS idx_federation_outbox_status_next_attempt
+    ON federation_outbox (status, next_attempt_at);
+
+-- Id a received message had on its origin server. Unique per origin, so a redelivered copy is never stored twice
+ALTER TABLE direct_messages
+    ADD COLUMN IF NOT EXISTS federated_message_id VARCHAR(255);
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS idx_direct_messages_federated_message_id
+    ON direct_messages (from_user_server, federated_message_id)
+    WHERE federated_message_id IS NOT NULL;
@@ -43,7 +43,7 @@ class AuthenticationControllerTest {
     @Test
     void login_WithValidCredentials_ReturnsAuthResponse() throws Exception {
         AuthResponse mockResponse = new AuthResponse(true, "Login successful", "user", "token123");
-        when(authService.authenticateUser("testuser", "password123"))
+        when(authService.authenticateUser("testuser", "password123", "127.0.0.1"))
                 .thenReturn(mockResponse);
 
         var request = new AuthenticationController.LoginRequest("testuser", "password123");
@@ -57,13 +57,13 @@ class AuthenticationControllerTest {
                 .andExpect(jsonPath("$.token").value("token123"))
                 .andExpect(jsonPath("$.username").value("user"));
 
-        verify(authService).authenticateUser("testuser", "password123");
+        verify(authService).authenticateUser("testuser", "password123", "127.0.0.1");
     }
 
     @Test
     void login_WithInvalidCredentials_ReturnsAuthResponse() throws Exception {
         AuthResponse mockResponse = new AuthResponse(false, "Invalid credentials", null, null);
-        when(authService.authenticateUser("testuser", "wrongpassword"))
+        when(authService.authenticateUser("testuser", "wrongpassword", "127.0.0.1"))
                 .thenReturn(mockResponse);
 
         var request = new AuthenticationController.LoginRequest("testuser", "wrongpassword");
@@ -75,15 +75,13 @@ class AuthenticationControllerTest {
                 .andExpect(jsonPath("$.success").value(false))
                 .andExpect(jsonPath("$.message").value("Invalid credentials"));
 
-        verify(authService).authenticateUser("testuser", "wrongpassword");
+        verify(authService).authenticateUser("testuser", "wrongpassword", "127.0.0.1");
     }
 
     @Test
     void register_WithValidData_ReturnsCreatedAndAuthResponse() throws Exception {
-        doNothing().when(authService).registerUser("newuser", "newuser@example.com", "password123");
-
         AuthResponse mockResponse = new AuthResponse(true, "Registration successful", "newuser", "token456");
-        when(authService.authenticateUser("newuser", "password123"))
+        when(authService.registerUser("newuser", "newuser@example.com", "password123"))
                 .thenReturn(mockResponse);
 
         var request = new AuthenticationController.RegisterRequest(
@@ -99,7 +97,7 @@ class AuthenticationControllerTest {
                 .andExpect(jsonPath("$.username").value("newuser"));
 
         verify(authService).registerUser("newuser", "newuser@example.com", "password123");
-        verify(authService).authenticateUser("newuser", "password123");
+        verify(authService, never()).authenticateUser(anyString(), anyString(), anyString());
     }
 
     @Test
@@ -118,7 +116,7 @@ class AuthenticationControllerTest {
                 .andExpect(jsonPath("$.message").value("Username already exists"));
 
         verify(authService).registerUser("existinguser", "test@example.com", "password123");
-        verify(authService, never()).authenticateUser(anyString(), anyString());
+        verify(authService, never()).authenticateUser(anyString(), anyString(), anyString());
     }
 
     @Test
@@ -0,0 +1,91 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.compression.WebSocketCompression;
+import org.margin.server.websocket.factories.WebSocketMessageFactory;
+import org.margin.server.websocket.services.SlowConsumerGuard;
+import org.margin.server.websocket.services.SubscriptionIndex;
+import org.margin.server.websocket.services.WebSocketBroadcaster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Slf4j
+class ChannelFanOutTest {
+
+    private static final long CHANNEL = 7L;
+    private static final long SPACE = 3L;
+
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+
+    @Test
+    void channelMessage_ReachesEveryMemberOfALargeChannelWithOneEncode() throws Exception {
+        List<EmbeddedChannel> members = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            EmbeddedChannel member = new EmbeddedChannel();
+            // A tenth follow the whole space instead; one also follows the channel and must get a single copy
+            subscriptions.subscribe(member, i % 10 == 0 ? SubscriptionIndex.Kind.SPACE : SubscriptionIndex.Kind.CHANNEL,
+                    i % 10 == 0 ? SPACE : CHANNEL);
+            members.add(member);
+        }
+        subscriptions.subscribe(members.get(0), SubscriptionIndex.Kind.CHANNEL, CHANNEL);
+        EmbeddedChannel sender = members.get(1);
+
+        AtomicInteger encodes = new AtomicInteger();
+        long start = System.nanoTime();
+        broadcaster().broadcast(subscriptions.subscribers(CHANNEL, SPACE), sender, format -> {
+            encodes.incrementAndGet();
+            return new TextWebSocketFrame("hello channel");
+        });
+        long elapsed = System.nanoTime() - start;
+        log.info("Fanned out to {} members in {} us", members.size(), TimeUnit.NANOSECONDS.toMicros(elapsed));
+
+        assertEquals(1, encodes.get());
+        assertNull(sender.readOutbound());
+        for (EmbeddedChannel member : members.subList(2, members.size())) {
+            WebSocketFrame frame = member.readOutbound();
+            assertNotNull(frame);
+            frame.release();
+        }
+        WebSocketFrame first = members.get(0).readOutbound();
+        first.release();
+        assertNull(members.get(0).readOutbound(), "channel and space subscriber received the message twice");
+    }
+
+    @Test
+    void disconnect_DropsEverySubscriptionOfTheSession() {
+        Channel session = new EmbeddedChannel();
+        Channel other = new EmbeddedChannel();
+        subscriptions.subscribe(session, SubscriptionIndex.Kind.CHANNEL, CHANNEL);
+        subscriptions.subscribe(session, SubscriptionIndex.Kind.SPACE, SPACE);
+        subscriptions.subscribe(other, SubscriptionIndex.Kind.CHANNEL, CHANNEL);
+
+        subscriptions.unsubscribeAll(session);
+
+        assertEquals(List.of(other), List.copyOf(subscriptions.subscribers(CHANNEL, SPACE)));
+        assertEquals(1, subscriptions.subscriptionCount());
+    }
+
+    private WebSocketBroadcaster broadcaster() {
+        WebSocketConfig config = mock(WebSocketConfig.class);
+        when(config.getBroadcastFlushMode()).thenReturn("batched");
+        when(config.getSlowConsumerPresencePolicy()).thenReturn("coalesce");
+        when(config.getSlowConsumerMaxBacklogBytes()).thenReturn(1048576L);
+        SlowConsumerGuard guard = new SlowConsumerGuard(config, mock(WebSocketMessageFactory.class),
+                new SimpleMeterRegistry());
+        return new WebSocketBroadcaster(config, guard, new WebSocketCompression(config));
+    }
+}
@@ -0,0 +1,69 @@
+package org.margin.server;
+
+import org.junit.jupiter.api.Test;
+import org.margin.server.social.models.Channel;
+import org.margin.server.social.models.ChannelMessage;
+import org.margin.server.social.models.Space;
+import org.margin.server.social.repositories.ChannelsRepository;
+import org.margin.server.social.repositories.SpacesRepository;
+import org.margin.server.social.services.ChannelMessageService;
+import org.margin.server.users.models.User;
+import org.margin.server.users.repositories.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class ChannelMessageWriterTest {
+
+    @Autowired
+    private ChannelMessageService channelMessageService;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private SpacesRepository spacesRepository;
+
+    @Autowired
+    private ChannelsRepository channelsRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void saveMessage_PersistsChannelMessagesInBatches() throws Exception {
+        User author = new User();
+        author.setUsername("channel-author");
+        author.setEmail("channel-author@example.com");
+        author.setPassword("secret");
+        author = userRepository.save(author);
+        Space space = spacesRepository.save(new Space(9001L, "space", "a space"));
+        channelsRepository.save(new Channel(9002L, "general", "a channel", space));
+
+        assertTrue(channelMessageService.channelExists(9002L));
+        assertFalse(channelMessageService.channelExists(9999L));
+
+        List<CompletableFuture<ChannelMessage>> pending = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ChannelMessage message = channelMessageService.newMessage(author, 9002L, "message " + i);
+            pending.add(channelMessageService.saveMessage(message));
+            assertNotNull(message.getId(), "id is assigned before the message is delivered");
+        }
+
+        CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+        assertEquals(50, jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM channel_messages WHERE channel_id = ? AND space_id = ?", Integer.class,
+                9002L, 9001L));
+    }
+}
@@ -0,0 +1,56 @@
+package org.margin.server;
+
+import org.junit.jupiter.api.Test;
+import org.margin.server.social.models.ChatHistoryPage;
+import org.margin.server.social.models.DirectMessage;
+import org.margin.server.social.services.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class ChatHistoryTest {
+
+    @Autowired
+    private MessageService messageService;
+
+    @Test
+    void getChatHistory_PagesBackwardsThroughBothDirections() {
+        List<CompletableFuture<DirectMessage>> pending = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            DirectMessage message = i % 2 == 0
+                    ? new DirectMessage(300L, 400L, null, null, "message " + i)
+                    : new DirectMessage(400L, 300L, null, null, "message " + i);
+            pending.add(messageService.saveMessage(message));
+        }
+        pending.add(messageService.saveMessage(new DirectMessage(300L, 500L, null, null, "other conversation")));
+        pending.forEach(CompletableFuture::join);
+
+        ChatHistoryPage latest = messageService.getChatHistory(300L, 400L, null, null, null, 10);
+        assertEquals(10, latest.messages().size());
+        assertTrue(latest.hasMore());
+        assertEquals("message 15", latest.messages().getFirst().getMessage());
+        assertEquals("message 24", latest.messages().getLast().getMessage());
+
+        ChatHistoryPage older = messageService.getChatHistory(300L, 400L, null, latest.before(), null, 10);
+        assertEquals("message 5", older.messages().getFirst().getMessage());
+        assertEquals("message 14", older.messages().getLast().getMessage());
+
+        ChatHistoryPage oldest = messageService.getChatHistory(400L, 300L, null, older.before(), null, 10);
+        assertEquals(5, oldest.messages().size());
+        assertFalse(oldest.hasMore());
+
+        ChatHistoryPage newer = messageService.getChatHistory(300L, 400L, null, null, oldest.after(), 10);
+        assertEquals(older.messages().stream().map(DirectMessage::getId).toList(),
+                newer.messages().stream().map(DirectMessage::getId).toList());
+        assertTrue(newer.hasMore());
+        assertEquals(25, messageService.getFullConversation(400L, 300L, null).size());
+    }
+}
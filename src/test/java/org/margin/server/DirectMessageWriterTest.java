@@ -0,0 +1,42 @@
+package org.margin.server;
+
+import org.junit.jupiter.api.Test;
+import org.margin.server.social.models.DirectMessage;
+import org.margin.server.social.repositories.ChatMessageRepository;
+import org.margin.server.social.services.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class DirectMessageWriterTest {
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Test
+    void saveMessage_CompletesOnceBatchIsCommitted() throws Exception {
+        List<CompletableFuture<DirectMessage>> pending = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            pending.add(messageService.saveMessage(new DirectMessage(100L, 200L, null, null, "message " + i)));
+        }
+
+        CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+
+        for (CompletableFuture<DirectMessage> future : pending) {
+            assertNotNull(future.join().getId());
+        }
+        assertEquals(50, chatMessageRepository.findByFromUserIdAndToUserId(100L, 200L).size());
+    }
+}
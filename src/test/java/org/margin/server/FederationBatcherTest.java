@@ -0,0 +1,197 @@
+package org.margin.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederatedMessageResult;
+import org.margin.server.federation.services.FederationBatcher;
+import org.margin.server.federation.services.FederationClient;
+import org.margin.server.federation.services.FederationDiscovery;
+import org.margin.server.federation.services.FederationLinks;
+import org.margin.server.federation.services.FederationService;
+import org.margin.server.social.models.DirectMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Slf4j
+class FederationBatcherTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicInteger singleRequests = new AtomicInteger();
+    private final AtomicInteger batchRequests = new AtomicInteger();
+    private final AtomicInteger delivered = new AtomicInteger();
+
+    private HttpServer peer;
+    private String peerDomain;
+    private FederationClient client;
+    private FederationBatcher batcher;
+
+    @BeforeEach
+    void startPeer() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        peerDomain = "127.0.0.1:" + peer.getAddress().getPort();
+
+        peer.createContext("/.well-known/federation", exchange -> respond(exchange, """
+                {"endpoints":{"messages":"http://%1$s/federation/messages",
+                              "messages_batch":"http://%1$s/federation/messages/batch"}}
+                """.formatted(peerDomain)));
+        peer.createContext("/federation/messages", exchange -> {
+            if (exchange.getRequestURI().getPath().endsWith("/batch")) {
+                batchRequests.incrementAndGet();
+                ArrayNode messages = (ArrayNode) mapper.readTree(exchange.getRequestBody());
+                List<FederatedMessageResult> results = new ArrayList<>();
+                for (var message : messages) {
+                    delivered.incrementAndGet();
+                    long id = message.get("messageId").asLong();
+                    // The peer refuses odd ids so per-message results can be checked
+                    results.add(id % 2 == 0
+                            ? FederatedMessageResult.accepted(id)
+                            : FederatedMessageResult.rejected(id, "Unknown user"));
+                }
+                respond(exchange, mapper.writeValueAsString(results));
+            } else {
+                singleRequests.incrementAndGet();
+                exchange.getRequestBody().readAllBytes();
+                delivered.incrementAndGet();
+                respond(exchange, "");
+            }
+        });
+        peer.start();
+    }
+
+    @AfterEach
+    void stopPeer() {
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        if (client != null) {
+            client.shutdown();
+        }
+        peer.stop(0);
+    }
+
+    @Test
+    void batchedSend_GroupsMessagesAndReportsEachResult() throws Exception {
+        FederationConfig config = config(true, 10, Duration.ofMillis(50));
+        client = new FederationClient(config, mapper, new SimpleMeterRegistry());
+        batcher = new FederationBatcher(config, client, mapper, new SimpleMeterRegistry());
+        URI endpoint = client.peerUri(peerDomain, "/federation/messages/batch");
+
+        List<CompletableFuture<FederatedMessageResult>> results = new ArrayList<>();
+        for (long id = 0; id < 25; id++) {
+            results.add(batcher.submit(endpoint, FederatedMessageDTO.builder().messageId(id).message("m").build()));
+        }
+
+        for (int id = 0; id < 25; id++) {
+            FederatedMessageResult result = results.get(id).get(5, TimeUnit.SECONDS);
+            assertEquals(id, result.messageId());
+            assertEquals(id % 2 == 0, result.accepted());
+        }
+        assertEquals(3, batchRequests.get(), "two full batches and one flushed after the linger");
+    }
+
+    @Test
+    void batchedPath_VersusSingleMessagePath() throws Exception {
+        int messages = 1000;
+
+        long singleMillis = sendThroughService(false, messages);
+        int singles = singleRequests.get();
+        long batchedMillis = sendThroughService(true, messages);
+
+        log.info("{} federated messages: single path {} requests in {} ms, batched path {} requests in {} ms",
+                messages, singles, singleMillis, batchRequests.get(), batchedMillis);
+        assertEquals(messages, singles);
+        assertTrue(batchRequests.get() <= messages / 10, "batches should carry many messages each");
+        assertEquals(messages, delivered.get());
+    }
+
+    private long sendThroughService(boolean batched, int messages) throws Exception {
+        FederationConfig config = config(batched, 100, Duration.ofMillis(5));
+        FederationClient serviceClient = new FederationClient(config, mapper, new SimpleMeterRegistry());
+        FederationBatcher serviceBatcher = new FederationBatcher(config, serviceClient, mapper,
+                new SimpleMeterRegistry());
+        FederationService service = new FederationService(config, serviceClient,
+                new FederationDiscovery(config, serviceClient, mapper, new SimpleMeterRegistry()), serviceBatcher,
+                mock(FederationLinks.class));
+
+        try {
+            service.sendFederatedMessage(message(-2)).get(5, TimeUnit.SECONDS);
+            singleRequests.set(0);
+            batchRequests.set(0);
+            delivered.set(0);
+
+            long start = System.nanoTime();
+            List<CompletableFuture<Boolean>> sends = new ArrayList<>(messages);
+            for (int i = 0; i < messages; i++) {
+                sends.add(service.sendFederatedMessage(message(i * 2L)));
+            }
+            for (CompletableFuture<Boolean> send : sends) {
+                assertTrue(send.get(30, TimeUnit.SECONDS));
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            serviceBatcher.shutdown();
+            serviceClient.shutdown();
+        }
+    }
+
+    private DirectMessage message(long id) {
+        DirectMessage message = new DirectMessage(1L, 2L, null, peerDomain, "hello");
+        message.setId(id);
+        return message;
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+
+    private static FederationConfig config(boolean batched, int batchSize, Duration linger) {
+        FederationConfig config = mock(FederationConfig.class);
+        when(config.getServerDomain()).thenReturn("local.test");
+        when(config.getClientScheme()).thenReturn("http");
+        when(config.getClientConnectTimeout()).thenReturn(Duration.ofSeconds(2));
+        when(config.getClientRequestTimeout()).thenReturn(Duration.ofSeconds(15));
+        when(config.getClientKeepAlive()).thenReturn(Duration.ofMinutes(1));
+        when(config.getClientMaxRequestsPerPeer()).thenReturn(32);
+        when(config.getClientMaxQueuedPerPeer()).thenReturn(10_000);
+        when(config.getDiscoveryDefaultTtl()).thenReturn(Duration.ofHours(1));
+        when(config.getDiscoveryMaxTtl()).thenReturn(Duration.ofHours(24));
+        when(config.getDiscoveryStaleWhileRevalidate()).thenReturn(Duration.ofHours(1));
+        when(config.getDiscoveryNegativeTtl()).thenReturn(Duration.ofMinutes(1));
+        when(config.getDiscoveryMaximumPeers()).thenReturn(100L);
+        when(config.isBatchEnabled()).thenReturn(batched);
+        when(config.getBatchMaxSize()).thenReturn(batchSize);
+        when(config.getBatchLinger()).thenReturn(linger);
+        return config;
+    }
+}
@@ -0,0 +1,200 @@
+package org.margin.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.services.FederationBatcher;
+import org.margin.server.federation.services.FederationClient;
+import org.margin.server.federation.services.FederationDiscovery;
+import org.margin.server.federation.services.FederationLinks;
+import org.margin.server.federation.services.FederationService;
+import org.margin.server.social.models.DirectMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Slf4j
+class FederationClientTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Queue<FederatedMessageDTO> received = new ConcurrentLinkedQueue<>();
+    private final Queue<String> originHeaders = new ConcurrentLinkedQueue<>();
+    private volatile int messageStatus = 200;
+    private volatile CountDownLatch holdMessages = new CountDownLatch(0);
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private HttpServer peer;
+    private String peerDomain;
+    private FederationClient client;
+
+    @BeforeEach
+    void startPeer() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        peerDomain = "127.0.0.1:" + peer.getAddress().getPort();
+
+        peer.createContext("/.well-known/federation", exchange -> respond(exchange, 200, """
+                {"serverDomain":"%s","version":"1.0","endpoints":{"messages":"http://%s/federation/messages"}}
+                """.formatted(peerDomain, peerDomain)));
+        peer.createContext("/federation/messages", exchange -> {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                holdMessages.await(10, TimeUnit.SECONDS);
+                originHeaders.add(exchange.getRequestHeaders().getFirst("X-Server-Domain"));
+                received.add(mapper.readValue(exchange.getRequestBody(), FederatedMessageDTO.class));
+                respond(exchange, messageStatus, "");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        });
+        peer.start();
+    }
+
+    @AfterEach
+    void stopPeer() {
+        holdMessages.countDown();
+        if (client != null) {
+            client.shutdown();
+        }
+        peer.stop(0);
+    }
+
+    @Test
+    void sendFederatedMessage_DiscoversEndpointAndPostsMessage() throws Exception {
+        client = client(4, 100);
+        FederationService service = service(client);
+
+        DirectMessage message = new DirectMessage(1L, 2L, null, peerDomain, "hello there");
+        assertTrue(service.sendFederatedMessage(message).get(5, TimeUnit.SECONDS));
+
+        FederatedMessageDTO dto = received.poll();
+        assertNotNull(dto);
+        assertEquals("hello there", dto.getMessage());
+        assertEquals(2L, dto.getToUserId());
+        assertEquals("local.test", dto.getFromServer());
+        assertEquals("local.test", originHeaders.poll());
+    }
+
+    @Test
+    void sendFederatedMessage_ReportsRefusalWithoutThrowing() throws Exception {
+        client = client(4, 100);
+        FederationService service = service(client);
+        messageStatus = 503;
+
+        assertFalse(service.sendFederatedMessage(new DirectMessage(1L, 2L, null, peerDomain, "hi"))
+                .get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void requestsToOnePeer_AreLimitedAndQueueIsBounded() throws Exception {
+        client = client(4, 10);
+        holdMessages = new CountDownLatch(1);
+        URI endpoint = client.peerUri(peerDomain, "/federation/messages");
+
+        List<CompletableFuture<HttpResponse<String>>> sends = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            sends.add(client.post(endpoint, FederatedMessageDTO.builder().message("m" + i).build()));
+        }
+
+        long rejected = sends.stream().filter(CompletableFuture::isCompletedExceptionally).count();
+        assertEquals(6, rejected, "4 in flight and 10 queued, the rest refused");
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (concurrent.get() < 4 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        holdMessages.countDown();
+        for (CompletableFuture<HttpResponse<String>> send : sends) {
+            if (!send.isCompletedExceptionally()) {
+                assertEquals(200, send.get(5, TimeUnit.SECONDS).statusCode());
+            }
+        }
+        assertEquals(4, maxConcurrent.get());
+        assertEquals(14, received.size());
+    }
+
+    @Test
+    void throughputToOnePeer() throws Exception {
+        client = client(32, 10_000);
+        URI endpoint = client.peerUri(peerDomain, "/federation/messages");
+        int messages = 1000;
+
+        long start = System.nanoTime();
+        List<CompletableFuture<HttpResponse<String>>> sends = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            sends.add(client.post(endpoint, FederatedMessageDTO.builder().toUserId((long) i).message("m").build()));
+        }
+        CompletableFuture.allOf(sends.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        log.info("Sent {} federated messages to one peer in {} ms ({} msg/s)", messages, elapsedMillis,
+                messages * 1000L / elapsedMillis);
+        assertEquals(messages, received.size());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+
+    private FederationService service(FederationClient client) {
+        FederationConfig config = config(4, 100);
+        return new FederationService(config, client,
+                new FederationDiscovery(config, client, mapper, new SimpleMeterRegistry()),
+                new FederationBatcher(config, client, mapper, new SimpleMeterRegistry()),
+                mock(FederationLinks.class));
+    }
+
+    private FederationClient client(int maxPerPeer, int maxQueued) {
+        return new FederationClient(config(maxPerPeer, maxQueued), mapper, new SimpleMeterRegistry());
+    }
+
+    private static FederationConfig config(int maxPerPeer, int maxQueued) {
+        FederationConfig config = mock(FederationConfig.class);
+        when(config.getServerDomain()).thenReturn("local.test");
+        when(config.getClientScheme()).thenReturn("http");
+        when(config.isClientHttp2()).thenReturn(true);
+        when(config.getClientConnectTimeout()).thenReturn(Duration.ofSeconds(2));
+        when(config.getClientRequestTimeout()).thenReturn(Duration.ofSeconds(15));
+        when(config.getClientKeepAlive()).thenReturn(Duration.ofMinutes(1));
+        when(config.getClientMaxRequestsPerPeer()).thenReturn(maxPerPeer);
+        when(config.getClientMaxQueuedPerPeer()).thenReturn(maxQueued);
+        when(config.getDiscoveryDefaultTtl()).thenReturn(Duration.ofHours(1));
+        when(config.getDiscoveryMaxTtl()).thenReturn(Duration.ofHours(24));
+        when(config.getDiscoveryStaleWhileRevalidate()).thenReturn(Duration.ofHours(1));
+        when(config.getDiscoveryNegativeTtl()).thenReturn(Duration.ofMinutes(1));
+        when(config.getDiscoveryMaximumPeers()).thenReturn(100L);
+        when(config.getBatchMaxSize()).thenReturn(100);
+        when(config.getBatchLinger()).thenReturn(Duration.ofMillis(5));
+        return config;
+    }
+}
@@ -0,0 +1,209 @@
+package org.margin.server;
+
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.config.SecurityConfig;
+import org.margin.server.config.TestSecurityConfig;
+import org.margin.server.config.filters.JwtAuthenticationFilter;
+import org.margin.server.federation.controllers.FederationController;
+import org.margin.server.federation.services.FederationReceiver;
+import org.margin.server.federation.services.FederationSigningKey;
+import org.margin.server.social.models.DirectMessage;
+import org.margin.server.social.services.MessageService;
+import org.margin.server.users.UserService;
+import org.margin.server.websocket.services.WebSocketClientService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.margin.server.social.services.MessageService.FederatedMessageClaim.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(
+        controllers = FederationController.class,
+        excludeFilters = @ComponentScan.Filter(
+                type = FilterType.ASSIGNABLE_TYPE,
+                classes = {SecurityConfig.class, JwtAuthenticationFilter.class}
+        )
+)
+@Import({TestSecurityConfig.class, FederationReceiver.class})
+class FederationControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockitoBean
+    private WebSocketClientService webSocketClientService;
+
+    @MockitoBean
+    private UserService userService;
+
+    @MockitoBean
+    private FederationConfig federationConfig;
+
+    @MockitoBean
+    private MessageService messageService;
+
+    @MockitoBean
+    private FederationSigningKey signingKey;
+
+    @Test
+    void federationInfo_IsCacheableAndRevalidatedWithEtag() throws Exception {
+        when(federationConfig.getServerDomain()).thenReturn("example.org");
+        when(federationConfig.getPublicEndpoint()).thenReturn("https://example.org");
+        when(federationConfig.getDiscoveryAdvertisedMaxAge()).thenReturn(Duration.ofHours(1));
+        when(federationConfig.getDiscoveryStaleWhileRevalidate()).thenReturn(Duration.ofMinutes(10));
+
+        String etag = mockMvc.perform(get("/.well-known/federation"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Cache-Control", containsString("max-age=3600")))
+                .andExpect(header().string("Cache-Control", containsString("stale-while-revalidate=600")))
+                .andExpect(jsonPath("$.endpoints.messages").value("https://example.org/federation/messages"))
+                .andReturn().getResponse().getHeader("ETag");
+
+        mockMvc.perform(get("/.well-known/federation").header("If-None-Match", etag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", etag));
+    }
+
+    @Test
+    void receiveBatch_DeliversEachMessageAndReportsPerMessageResults() throws Exception {
+        when(federationConfig.getServerDomain()).thenReturn("example.org");
+        when(federationConfig.getBatchMaxReceiveSize()).thenReturn(1000);
+        when(messageService.claimFederatedMessage(anyString(), anyString())).thenReturn(CLAIMED);
+        when(webSocketClientService.sendMessageToUser(argThat(message -> message != null && message.getToUserId() == 2L)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(invocation.getArgument(0)));
+        when(webSocketClientService.sendMessageToUser(argThat(message -> message != null && message.getToUserId() == 3L)))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("disk full")));
+
+        mockMvc.perform(post("/federation/messages/batch")
+                        .header("X-Server-Domain", "peer.org")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                [{"messageId":11,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"},
+                                 {"messageId":12,"fromUserId":1,"fromServer":"peer.org","toUserId":3,"message":"hi"},
+                                 {"messageId":13,"fromUserId":1,"fromServer":"peer.org","message":"no recipient"}]
+                                """))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].messageId").value(11))
+                .andExpect(jsonPath("$[0].accepted").value(true))
+                .andExpect(jsonPath("$[1].accepted").value(false))
+                .andExpect(jsonPath("$[2].messageId").value(13))
+                .andExpect(jsonPath("$[2].accepted").value(false));
+
+        verify(webSocketClientService, times(2)).sendMessageToUser(any(DirectMessage.class));
+        verify(messageService).releaseFederatedMessage("peer.org", "12");
+    }
+
+    @Test
+    void receiveBatch_RefusesOversizedBatchesAndRejectsNullElements() throws Exception {
+        when(federationConfig.getServerDomain()).thenReturn("example.org");
+        when(federationConfig.getBatchMaxReceiveSize()).thenReturn(2);
+        when(messageService.claimFederatedMessage(anyString(), anyString())).thenReturn(CLAIMED);
+        when(webSocketClientService.sendMessageToUser(any(DirectMessage.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(invocation.getArgument(0)));
+
+        mockMvc.perform(post("/federation/messages/batch")
+                        .header("X-Server-Domain", "peer.org")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                [null,
+                                 {"messageId":51,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"}]
+                                """))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath("$[0].accepted").value(false))
+                .andExpect(jsonPath("$[1].messageId").value(51))
+                .andExpect(jsonPath("$[1].accepted").value(true));
+
+        mockMvc.perform(post("/federation/messages/batch")
+                        .header("X-Server-Domain", "peer.org")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                [{"messageId":52,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"},
+                                 {"messageId":53,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"},
+                                 {"messageId":54,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"},
+                                 not even json]
+                                """))
+                .andExpect(status().isPayloadTooLarge());
+
+        verify(messageService, never()).claimFederatedMessage("peer.org", "54");
+    }
+
+    @Test
+    void receiveMessage_RedeliveredMessageIsAcceptedButNotStoredAgain() throws Exception {
+        when(federationConfig.getServerDomain()).thenReturn("example.org");
+        when(messageService.claimFederatedMessage("peer.org", "21")).thenReturn(CLAIMED, STORED);
+        when(webSocketClientService.sendMessageToUser(any(DirectMessage.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(invocation.getArgument(0)));
+
+        for (int i = 0; i < 2; i++) {
+            mockMvc.perform(post("/federation/messages")
+                            .header("X-Server-Domain", "peer.org")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("""
+                                    {"messageId":21,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"}
+                                    """))
+                    .andExpect(status().isOk());
+        }
+
+        verify(webSocketClientService, times(1))
+                .sendMessageToUser(argThat(message -> "21".equals(message.getFederatedMessageId())));
+    }
+
+    @Test
+    void receiveMessage_FailedStoreIsReportedSoTheSenderRetries() throws Exception {
+        when(federationConfig.getServerDomain()).thenReturn("example.org");
+        when(messageService.claimFederatedMessage("peer.org", "31")).thenReturn(CLAIMED);
+        when(webSocketClientService.sendMessageToUser(any(DirectMessage.class)))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("disk full")));
+
+        mockMvc.perform(post("/federation/messages")
+                        .header("X-Server-Domain", "peer.org")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {"messageId":31,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"}
+                                """))
+                .andExpect(status().isServiceUnavailable());
+
+        mockMvc.perform(post("/federation/messages")
+                        .header("X-Server-Domain", "peer.org")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {"messageId":32,"fromUserId":1,"fromServer":"peer.org","message":"no recipient"}
+                                """))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void receiveMessage_CopyOfAMessageStillBeingStoredIsRetriedLater() throws Exception {
+        when(federationConfig.getServerDomain()).thenReturn("example.org");
+        when(messageService.claimFederatedMessage("peer.org", "41")).thenReturn(IN_PROGRESS);
+
+        mockMvc.perform(post("/federation/messages")
+                        .header("X-Server-Domain", "peer.org")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("""
+                                {"messageId":41,"fromUserId":1,"fromServer":"peer.org","toUserId":2,"message":"hi"}
+                                """))
+                .andExpect(status().isServiceUnavailable());
+
+        verify(webSocketClientService, never()).sendMessageToUser(any(DirectMessage.class));
+    }
+}
@@ -0,0 +1,161 @@
+package org.margin.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.services.FederationClient;
+import org.margin.server.federation.services.FederationDiscovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FederationDiscoveryTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final Queue<String> conditionalRequests = new ConcurrentLinkedQueue<>();
+    private volatile CountDownLatch holdResponses = new CountDownLatch(0);
+
+    private HttpServer peer;
+    private String peerDomain;
+    private FederationClient client;
+    private FederationDiscovery discovery;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        peerDomain = "127.0.0.1:" + peer.getAddress().getPort();
+        peer.createContext("/.well-known/federation", exchange -> {
+            fetches.incrementAndGet();
+            try {
+                holdResponses.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=60");
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                conditionalRequests.add(ifNoneMatch);
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = """
+                        {"serverDomain":"%s","endpoints":{"messages":"http://%s/inbox"}}
+                        """.formatted(peerDomain, peerDomain).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        peer.start();
+
+        FederationConfig config = config();
+        client = new FederationClient(config, new ObjectMapper(), new SimpleMeterRegistry());
+        discovery = new FederationDiscovery(config, client, new ObjectMapper(), new SimpleMeterRegistry(), now::get);
+    }
+
+    @AfterEach
+    void tearDown() {
+        holdResponses.countDown();
+        client.shutdown();
+        peer.stop(0);
+    }
+
+    @Test
+    void burstToNewPeer_TriggersOneFetch() throws Exception {
+        holdResponses = new CountDownLatch(1);
+        List<CompletableFuture<FederationDiscovery.Endpoint>> lookups = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            lookups.add(discovery.resolve(peerDomain));
+        }
+        holdResponses.countDown();
+
+        for (CompletableFuture<FederationDiscovery.Endpoint> lookup : lookups) {
+            assertEquals(URI.create("http://" + peerDomain + "/inbox"), lookup.get(5, TimeUnit.SECONDS).messages());
+        }
+        assertEquals(1, fetches.get());
+
+        discovery.resolve(peerDomain).get(5, TimeUnit.SECONDS);
+        assertEquals(1, fetches.get(), "fresh entry is served from the cache");
+    }
+
+    @Test
+    void expiredEntry_IsServedStaleWhileOneRevalidationRuns() throws Exception {
+        FederationDiscovery.Endpoint first = discovery.resolve(peerDomain).get(5, TimeUnit.SECONDS);
+        now.addAndGet(TimeUnit.SECONDS.toMillis(61));
+
+        CompletableFuture<FederationDiscovery.Endpoint> stale = discovery.resolve(peerDomain);
+        assertTrue(stale.isDone(), "stale entry must not wait for the network");
+        assertSame(first, stale.get());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (conditionalRequests.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("\"v1\"", conditionalRequests.peek());
+
+        while (discovery.resolve(peerDomain).get() == first && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        FederationDiscovery.Endpoint revalidated = discovery.resolve(peerDomain).get();
+        assertEquals(first.messages(), revalidated.messages());
+        assertTrue(revalidated.freshUntil() > now.get());
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    void unreachablePeer_IsCachedNegatively() throws Exception {
+        String deadPeer;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            deadPeer = "127.0.0.1:" + socket.getLocalPort();
+        }
+
+        assertFalse(discovery.resolve(deadPeer).get(5, TimeUnit.SECONDS).isReachable());
+
+        CompletableFuture<FederationDiscovery.Endpoint> again = discovery.resolve(deadPeer);
+        assertTrue(again.isDone(), "negative entry answers without another attempt");
+        assertFalse(again.get().isReachable());
+
+        now.addAndGet(TimeUnit.MINUTES.toMillis(2));
+        assertFalse(discovery.resolve(deadPeer).isDone(), "retried once the negative entry expires");
+    }
+
+    private static FederationConfig config() {
+        FederationConfig config = mock(FederationConfig.class);
+        when(config.getServerDomain()).thenReturn("local.test");
+        when(config.getClientScheme()).thenReturn("http");
+        when(config.isClientHttp2()).thenReturn(false);
+        when(config.getClientConnectTimeout()).thenReturn(Duration.ofSeconds(2));
+        when(config.getClientRequestTimeout()).thenReturn(Duration.ofSeconds(10));
+        when(config.getClientKeepAlive()).thenReturn(Duration.ofMinutes(1));
+        when(config.getClientMaxRequestsPerPeer()).thenReturn(8);
+        when(config.getClientMaxQueuedPerPeer()).thenReturn(100);
+        when(config.getDiscoveryDefaultTtl()).thenReturn(Duration.ofHours(1));
+        when(config.getDiscoveryMaxTtl()).thenReturn(Duration.ofHours(24));
+        when(config.getDiscoveryStaleWhileRevalidate()).thenReturn(Duration.ofHours(1));
+        when(config.getDiscoveryNegativeTtl()).thenReturn(Duration.ofMinutes(1));
+        when(config.getDiscoveryMaximumPeers()).thenReturn(100L);
+        return config;
+    }
+}
@@ -0,0 +1,240 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.FederationConfig;
+import org.margin.server.federation.models.FederatedMessageDTO;
+import org.margin.server.federation.models.FederationLinkFrame;
+import org.margin.server.federation.services.FederationClient;
+import org.margin.server.federation.services.FederationLinkAcceptor;
+import org.margin.server.federation.services.FederationLinks;
+import org.margin.server.federation.services.FederationService;
+import org.margin.server.federation.services.FederationSigningKey;
+import org.margin.server.social.repositories.ChatMessageRepository;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Two servers in one JVM, talking to each other over loopback
+ */
+@Slf4j
+class FederationLinkTest {
+
+    private static ConfigurableApplicationContext serverA;
+    private static ConfigurableApplicationContext serverB;
+    private static String domainB;
+
+    private final AtomicLong messageIds = new AtomicLong(System.nanoTime());
+
+    @BeforeAll
+    static void startServers() throws IOException {
+        serverA = startServer("linka");
+        serverB = startServer("linkb");
+        domainB = serverB.getEnvironment().getProperty("federation.server-domain");
+    }
+
+    @AfterAll
+    static void stopServers() {
+        if (serverA != null) {
+            serverA.close();
+        }
+        if (serverB != null) {
+            serverB.close();
+        }
+    }
+
+    @Test
+    void link_CarriesMessagesAndReconnectsAfterBeingDropped() throws Exception {
+        FederationService federationService = serverA.getBean(FederationService.class);
+        FederationLinks links = serverA.getBean(FederationLinks.class);
+        ChatMessageRepository messagesB = serverB.getBean(ChatMessageRepository.class);
+
+        long storedBefore = messagesB.count();
+        double sentBefore = counter(serverA, "federation.link.sent");
+
+        // The first message waits for the link being opened rather than going over HTTP
+        assertTrue(federationService.sendFederatedMessage(domainB, message()).get(10, TimeUnit.SECONDS));
+        assertTrue(links.isOpen(domainB));
+        assertEquals(1, counter(serverA, "federation.link.sent") - sentBefore);
+
+        // Within the window plus the queue for credit, so none has to fall back to HTTP
+        int messages = 1000;
+        sentBefore = counter(serverA, "federation.link.sent");
+        sendAll(federationService, messages);
+        assertEquals(messages, counter(serverA, "federation.link.sent") - sentBefore,
+                "every message should have gone over the link");
+
+        double fallbacksBefore = fallbacks(serverA);
+        serverB.getBean(FederationLinkAcceptor.class).closeLinks();
+        sendAll(federationService, 100);
+        awaitTrue(() -> links.isOpen(domainB));
+        assertTrue(fallbacks(serverA) > fallbacksBefore, "messages sent while the link was down should be counted");
+
+        sentBefore = counter(serverA, "federation.link.sent");
+        sendAll(federationService, 100);
+        assertEquals(100, counter(serverA, "federation.link.sent") - sentBefore);
+
+        assertEquals(1 + messages + 200, messagesB.count() - storedBefore,
+                "each message should be stored exactly once");
+    }
+
+    @Test
+    void link_RefusesHandshakesNotSignedByTheClaimedServer() throws Exception {
+        String domainA = serverA.getEnvironment().getProperty("federation.server-domain");
+        URI linkB = URI.create(serverB.getEnvironment().getProperty("federation.link.advertised-url"));
+        long now = System.currentTimeMillis();
+        String handshake = FederationSigningKey.linkHandshake(domainA, domainB, now);
+
+        // A key of its own, not the one server A advertises
+        FederationSigningKey forger = new FederationSigningKey(mock(FederationConfig.class));
+        assertThrows(CompletionException.class, () -> openLink(linkB, domainA, now, forger.sign(handshake)));
+
+        // Server A's own signature, but made for another server
+        FederationSigningKey keyA = serverA.getBean(FederationSigningKey.class);
+        assertThrows(CompletionException.class, () -> openLink(linkB, domainA, now,
+                keyA.sign(FederationSigningKey.linkHandshake(domainA, "elsewhere.org", now))));
+
+        assertThrows(CompletionException.class, () -> openLink(linkB, domainA, now, "not-a-signature"));
+    }
+
+    @Test
+    void link_VersusHttpRoundTrip() throws Exception {
+        FederationService federationService = serverA.getBean(FederationService.class);
+        FederationClient client = serverA.getBean(FederationClient.class);
+        FederationLinks links = serverA.getBean(FederationLinks.class);
+
+        assertTrue(federationService.sendFederatedMessage(domainB, message()).get(10, TimeUnit.SECONDS));
+        awaitTrue(() -> links.isOpen(domainB));
+
+        // A message the peer already has is acknowledged without being stored again, so repeating one measures the
+        // transport rather than the receiving server's persistence
+        FederatedMessageDTO repeated = message();
+        assertTrue(federationService.sendFederatedMessage(domainB, repeated).get(10, TimeUnit.SECONDS));
+
+        int rounds = 500;
+        URI messagesB = client.peerUri(domainB, "/federation/messages");
+        long[] overLink = new long[rounds];
+        long[] overHttp = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            assertTrue(federationService.sendFederatedMessage(domainB, repeated).get(10, TimeUnit.SECONDS));
+            overLink[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            assertEquals(200, client.post(messagesB, repeated).get(10, TimeUnit.SECONDS).statusCode());
+            overHttp[i] = System.nanoTime() - start;
+        }
+
+        log.info("Federated message round trip over loopback: link p50 {} us p99 {} us, HTTP p50 {} us p99 {} us",
+                percentile(overLink, 50), percentile(overLink, 99),
+                percentile(overHttp, 50), percentile(overHttp, 99));
+    }
+
+    private void sendAll(FederationService federationService, int count) throws Exception {
+        List<CompletableFuture<Boolean>> sends = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sends.add(federationService.sendFederatedMessage(domainB, message()));
+        }
+        for (CompletableFuture<Boolean> send : sends) {
+            assertTrue(send.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    private static void openLink(URI uri, String fromServer, long timestamp, String signature) {
+        try (HttpClient client = HttpClient.newHttpClient()) {
+            client.newWebSocketBuilder()
+                    .subprotocols(FederationLinkFrame.SUBPROTOCOL)
+                    .header(FederationLinkAcceptor.SERVER_DOMAIN_HEADER, fromServer)
+                    .header(FederationLinkAcceptor.TIMESTAMP_HEADER, Long.toString(timestamp))
+                    .header(FederationLinkAcceptor.SIGNATURE_HEADER, signature)
+                    .buildAsync(uri, new WebSocket.Listener() {
+                    })
+                    .join()
+                    .abort();
+        }
+    }
+
+    private FederatedMessageDTO message() {
+        return FederatedMessageDTO.builder()
+                .messageId(messageIds.incrementAndGet())
+                .fromUserId(1L)
+                .fromServer(serverA.getEnvironment().getProperty("federation.server-domain"))
+                .toUserId(2L)
+                .message("hello")
+                .timestamp(System.currentTimeMillis())
+                .build();
+    }
+
+    private static ConfigurableApplicationContext startServer(String name) throws IOException {
+        int httpPort = freePort();
+        int webSocketPort = freePort();
+        String domain = "127.0.0.1:" + httpPort;
+
+        return new SpringApplicationBuilder(MarginServerApplication.class)
+                .profiles("test")
+                .run("--server.port=" + httpPort,
+                        "--spring.datasource.url=jdbc:h2:mem:" + name,
+                        "--websocket.port=" + webSocketPort,
+                        "--websocket.advertised-url=ws://127.0.0.1:" + webSocketPort + "/ws",
+                        "--federation.server-domain=" + domain,
+                        "--federation.public-endpoint=http://" + domain,
+                        "--federation.client.scheme=http",
+                        "--federation.batch.enabled=false",
+                        "--federation.link.enabled=true",
+                        "--federation.link.advertised-url=ws://127.0.0.1:" + webSocketPort + "/federation/link",
+                        "--federation.link.reconnect-base=50ms",
+                        "--federation.link.reconnect-max=500ms");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static double counter(ConfigurableApplicationContext server, String name) {
+        return server.getBean(MeterRegistry.class).counter(name).count();
+    }
+
+    private static double fallbacks(ConfigurableApplicationContext server) {
+        return server.getBean(MeterRegistry.class).find("federation.link.fallbacks").counters().stream()
+                .mapToDouble(Counter::count)
+                .sum();
+    }
+
+    private static long percentile(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1000;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+}
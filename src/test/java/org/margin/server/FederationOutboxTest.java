@@ -0,0 +1,149 @@
+package org.margin.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.federation.models.FederationOutboxEntry;
+import org.margin.server.federation.repositories.FederationOutboxRepository;
+import org.margin.server.federation.services.FederationOutbox;
+import org.margin.server.social.models.DirectMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:outboxtest",
+        "websocket.port=0",
+        "federation.client.scheme=http",
+        "federation.batch.enabled=false",
+        "federation.discovery.negative-ttl=10ms",
+        "federation.outbox.poll-interval=50ms",
+        "federation.outbox.backoff-base=20ms",
+        "federation.outbox.backoff-max=200ms",
+        "federation.outbox.breaker-failure-threshold=5",
+        "federation.outbox.breaker-open-duration=5s"
+})
+@ActiveProfiles("test")
+class FederationOutboxTest {
+
+    @Autowired
+    private FederationOutbox outbox;
+
+    @Autowired
+    private FederationOutboxRepository repository;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<Long> received = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    private HttpServer peer;
+    private String peerDomain;
+
+    @BeforeEach
+    void startPeer() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        peerDomain = "127.0.0.1:" + peer.getAddress().getPort();
+
+        peer.createContext("/.well-known/federation", exchange -> respond(exchange, 200, """
+                {"endpoints":{"messages":"http://%s/federation/messages"}}
+                """.formatted(peerDomain)));
+        peer.createContext("/federation/messages", exchange -> {
+            long messageId = mapper.readTree(exchange.getRequestBody()).get("messageId").asLong();
+            // The first few requests fail, as if the peer were restarting
+            if (requests.incrementAndGet() <= 3) {
+                respond(exchange, 503, "");
+                return;
+            }
+            if (!received.add(messageId)) {
+                duplicates.incrementAndGet();
+            }
+            respond(exchange, 200, "");
+        });
+        peer.start();
+    }
+
+    @AfterEach
+    void stopPeer() {
+        peer.stop(0);
+    }
+
+    @Test
+    void enqueue_RetriesUntilThePeerAcceptsEachMessage() throws Exception {
+        List<Long> ids = LongStream.range(1_000, 1_020).boxed().toList();
+        for (long id : ids) {
+            outbox.enqueue(message(id, peerDomain)).join();
+        }
+
+        awaitTrue(() -> received.size() == ids.size() && ids.stream().noneMatch(repository::existsById));
+
+        assertEquals(Set.copyOf(ids), received);
+        assertEquals(0, duplicates.get());
+        assertTrue(requests.get() > ids.size(), "failed requests should have been retried");
+        assertFalse(outbox.peersWithOpenCircuit().contains(peerDomain));
+    }
+
+    @Test
+    void enqueue_OpensTheCircuitToAnUnreachablePeerAndKeepsItsMessages() throws Exception {
+        peer.stop(0);
+        String deadPeer = peerDomain;
+        List<Long> ids = LongStream.range(2_000, 2_010).boxed().toList();
+        for (long id : ids) {
+            outbox.enqueue(message(id, deadPeer)).join();
+        }
+
+        Instant enqueued = Instant.now();
+        awaitTrue(() -> outbox.peersWithOpenCircuit().contains(deadPeer) && ids.stream()
+                .map(id -> repository.findById(id).orElseThrow())
+                .allMatch(entry -> entry.getNextAttemptAt().isAfter(enqueued.plusSeconds(4))));
+
+        for (long id : ids) {
+            FederationOutboxEntry entry = repository.findById(id).orElseThrow();
+            assertEquals(FederationOutboxEntry.Status.PENDING, entry.getStatus());
+            assertTrue(entry.getAttempts() <= 5, "the circuit should stop retries after a few failures");
+        }
+    }
+
+    private static DirectMessage message(long id, String server) {
+        DirectMessage message = new DirectMessage(1L, 2L, null, server, "hello " + id);
+        message.setId(id);
+        return message;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,86 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.services.HeartbeatMonitor;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class HeartbeatMonitorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final HeartbeatMonitor monitor = new HeartbeatMonitor(config(), meterRegistry);
+
+    @AfterEach
+    void tearDown() {
+        monitor.shutdown();
+    }
+
+    @Test
+    void quietChannel_IsPingedThenReaped() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+
+        monitor.register(channel);
+
+        await(() -> meterRegistry.get("websocket.heartbeat.pings").counter().count() >= 1);
+        await(() -> !channel.isOpen());
+        assertEquals(1, meterRegistry.get("websocket.heartbeat.reaped").counter().count());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void channelThatKeepsTalking_IsNotReaped() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        monitor.register(channel);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2500);
+        while (System.nanoTime() < deadline) {
+            HeartbeatMonitor.touch(channel);
+            Thread.sleep(50);
+        }
+
+        assertTrue(channel.isOpen());
+        assertEquals(0, meterRegistry.get("websocket.heartbeat.reaped").counter().count());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void channelOnlyReadFrom_IsPingedWhenNothingIsWritten() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(HeartbeatMonitor.WriteTracker.INSTANCE);
+        monitor.register(channel);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1500);
+        while (System.nanoTime() < deadline) {
+            HeartbeatMonitor.touch(channel);
+            Thread.sleep(50);
+        }
+
+        assertTrue(meterRegistry.get("websocket.heartbeat.pings").counter().count() >= 1);
+        assertTrue(channel.isOpen());
+        channel.finishAndReleaseAll();
+    }
+
+    private static WebSocketConfig config() {
+        WebSocketConfig config = mock(WebSocketConfig.class);
+        when(config.getHeartbeatPingInterval()).thenReturn(Duration.ofMillis(500));
+        when(config.getHeartbeatReaderIdleTimeout()).thenReturn(Duration.ofMillis(1500));
+        when(config.getHeartbeatWriterIdleInterval()).thenReturn(Duration.ofMillis(500));
+        return config;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+}
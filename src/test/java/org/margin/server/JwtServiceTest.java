@@ -0,0 +1,84 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.authentication.models.JwtPrincipal;
+import org.margin.server.authentication.services.JwtService;
+import org.margin.server.authentication.services.TokenRevocationService;
+import org.margin.server.users.UserService;
+import org.margin.server.users.models.Role;
+import org.margin.server.users.models.User;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class JwtServiceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private JwtService jwtService;
+
+    @BeforeEach
+    void setUp() {
+        jwtService = new JwtService(mock(UserService.class), meterRegistry, new TokenRevocationService(100_000));
+        ReflectionTestUtils.setField(jwtService, "secret", "test-secret-key-for-testing-purposes-only-minimum-256-bits");
+        ReflectionTestUtils.setField(jwtService, "expiration", 60_000L);
+        ReflectionTestUtils.setField(jwtService, "verifiedTokenCacheSize", 100L);
+        ReflectionTestUtils.invokeMethod(jwtService, "init");
+    }
+
+    @Test
+    void validateToken_ReturnsPrincipalAndCachesVerification() {
+        String token = jwtService.generateToken("alice", 42L);
+
+        Optional<JwtPrincipal> first = jwtService.validateToken(token);
+        Optional<JwtPrincipal> second = jwtService.validateToken(token);
+
+        assertTrue(first.isPresent());
+        assertEquals("alice", first.get().username());
+        assertEquals(42L, first.get().userId());
+        assertEquals(first, second);
+        assertEquals(1, meterRegistry.get("cache.gets").tag("cache", "jwt-tokens").tag("result", "hit")
+                .functionCounter().count());
+    }
+
+    @Test
+    void validateToken_RejectsTamperedToken() {
+        String token = jwtService.generateToken("alice", 42L);
+        String tampered = token.substring(0, token.length() - 2) + (token.endsWith("AA") ? "BB" : "AA");
+
+        assertTrue(jwtService.validateToken(tampered).isEmpty());
+        assertFalse(jwtService.isTokenValid(token, "bob"));
+    }
+
+    @Test
+    void generateToken_CarriesRoleAndServerDomainClaims() {
+        User user = new User();
+        user.setId(7L);
+        user.setUsername("carol");
+        user.setRole(Role.ADMIN);
+        user.setServerDomain("margin.example");
+
+        JwtPrincipal principal = jwtService.validateToken(jwtService.generateToken(user)).orElseThrow();
+
+        assertEquals(7L, principal.userId());
+        assertEquals("carol", principal.getName());
+        assertEquals("ADMIN", principal.role());
+        assertEquals("margin.example", principal.serverDomain());
+        assertNotNull(principal.expiresAt());
+    }
+
+    @Test
+    void revokeToken_RejectsTokenEvenWhenCached() {
+        String token = jwtService.generateToken("alice", 42L);
+        assertTrue(jwtService.validateToken(token).isPresent());
+
+        assertTrue(jwtService.revokeToken(token));
+
+        assertTrue(jwtService.validateToken(token).isEmpty());
+        assertFalse(jwtService.revokeToken(token));
+    }
+}
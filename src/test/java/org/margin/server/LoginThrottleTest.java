@@ -0,0 +1,79 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.margin.server.authentication.services.LoginThrottle;
+import org.margin.server.config.LoginThrottleConfig;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginThrottleTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+    private final LoginThrottle throttle = new LoginThrottle(config(), meterRegistry, now::get);
+
+    @Test
+    void recordFailure_LocksUsernameOnceAtThreshold() {
+        assertNull(throttle.recordFailure("alice", "10.0.0.1"));
+        assertNull(throttle.recordFailure("alice", "10.0.0.1"));
+
+        Instant lockedUntil = throttle.recordFailure("alice", "10.0.0.1");
+
+        assertEquals(Instant.ofEpochMilli(now.get() + 30_000), lockedUntil);
+        assertEquals(lockedUntil, throttle.lockedUntil("alice"));
+        assertNull(throttle.recordFailure("alice", "10.0.0.1"), "lock is only reported on the transition");
+        assertNull(throttle.lockedUntil("bob"));
+        assertEquals(1, meterRegistry.get("auth.throttle.locks").counter().count());
+
+        now.addAndGet(30_001);
+        assertNull(throttle.lockedUntil("alice"));
+    }
+
+    @Test
+    void failuresSlideOutOfWindow() {
+        throttle.recordFailure("alice", null);
+        throttle.recordFailure("alice", null);
+
+        // Two windows later the earlier failures no longer count
+        now.addAndGet(Duration.ofMinutes(10).toMillis());
+
+        assertNull(throttle.recordFailure("alice", null));
+        assertNull(throttle.lockedUntil("alice"));
+    }
+
+    @Test
+    void isAddressBlocked_AfterFailuresAcrossUsernames() {
+        for (int i = 0; i < 5; i++) {
+            assertFalse(throttle.isAddressBlocked("10.0.0.2"));
+            throttle.recordFailure("user" + i, "10.0.0.2");
+        }
+
+        assertTrue(throttle.isAddressBlocked("10.0.0.2"));
+        assertFalse(throttle.isAddressBlocked("10.0.0.3"));
+    }
+
+    @Test
+    void recordSuccess_ClearsUsernameFailures() {
+        throttle.recordFailure("alice", null);
+        throttle.recordFailure("alice", null);
+        throttle.recordSuccess("alice");
+
+        assertNull(throttle.recordFailure("alice", null));
+    }
+
+    private static LoginThrottleConfig config() {
+        LoginThrottleConfig config = new LoginThrottleConfig();
+        ReflectionTestUtils.setField(config, "maxFailuresPerUser", 3);
+        ReflectionTestUtils.setField(config, "maxFailuresPerIp", 5);
+        ReflectionTestUtils.setField(config, "window", Duration.ofMinutes(5));
+        ReflectionTestUtils.setField(config, "lockDuration", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(config, "maximumKeys", 1000L);
+        return config;
+    }
+}
@@ -0,0 +1,83 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.authentication.services.PasswordHashingService;
+import org.margin.server.config.PasswordHashingConfig;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class PasswordHashingServiceTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private PasswordHashingService service;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        service.shutdown();
+    }
+
+    @Test
+    void encodeAndMatches_RunOnHashingPool() {
+        service = new PasswordHashingService(new BCryptPasswordEncoder(4), config(1, 1), meterRegistry);
+
+        String hash = service.encode("secret");
+
+        assertTrue(service.matches("secret", hash));
+        assertFalse(service.matches("wrong", hash));
+    }
+
+    @Test
+    void saturatedPool_RejectsWithTooManyRequests() throws Exception {
+        PasswordEncoder blocking = mock(PasswordEncoder.class);
+        CountDownLatch started = new CountDownLatch(1);
+        when(blocking.encode(anyString())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return "hash";
+        });
+        service = new PasswordHashingService(blocking, config(1, 1), meterRegistry);
+
+        CompletableFuture.runAsync(() -> service.encode("running"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture.runAsync(() -> service.encode("queued"));
+        await(() -> meterRegistry.get("executor.queued").tag("name", "password-hashing").gauge().value() == 1);
+
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> service.encode("rejected"));
+
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatusCode());
+        assertEquals(1, meterRegistry.get("auth.password.hashing.rejected").counter().count());
+    }
+
+    private static PasswordHashingConfig config(int threads, int queueCapacity) {
+        PasswordHashingConfig config = new PasswordHashingConfig();
+        ReflectionTestUtils.setField(config, "threads", threads);
+        ReflectionTestUtils.setField(config, "queueCapacity", queueCapacity);
+        ReflectionTestUtils.setField(config, "timeout", Duration.ofSeconds(5));
+        return config;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+}
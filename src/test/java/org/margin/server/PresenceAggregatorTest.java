@@ -0,0 +1,61 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.users.models.User;
+import org.margin.server.websocket.models.PresenceDiff;
+import org.margin.server.websocket.services.PresenceAggregator;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.margin.server.websocket.models.WebSocketMessageType.USER_LOGIN;
+import static org.margin.server.websocket.models.WebSocketMessageType.USER_LOGOUT;
+import static org.mockito.Mockito.*;
+
+class PresenceAggregatorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private PresenceAggregator aggregator;
+
+    @BeforeEach
+    void setUp() {
+        WebSocketConfig config = mock(WebSocketConfig.class);
+        when(config.getPresenceWindowMs()).thenReturn(1000L);
+        aggregator = new PresenceAggregator(config, meterRegistry);
+    }
+
+    @Test
+    void drain_ReconnectWithinWindow_CancelsOut() {
+        User flapping = user(1L);
+        User arriving = user(2L);
+
+        aggregator.record(USER_LOGOUT, flapping);
+        aggregator.record(USER_LOGIN, flapping);
+        aggregator.record(USER_LOGIN, arriving);
+
+        PresenceDiff diff = aggregator.drain();
+
+        assertEquals(List.of(arriving), diff.online());
+        assertTrue(diff.offline().isEmpty());
+        assertEquals(2, meterRegistry.counter("websocket.presence.events.suppressed").count());
+        assertEquals(1, meterRegistry.counter("websocket.presence.events.emitted").count());
+    }
+
+    @Test
+    void drain_EmptiesPendingChanges() {
+        aggregator.record(USER_LOGOUT, user(1L));
+
+        assertEquals(1, aggregator.drain().offline().size());
+        assertTrue(aggregator.drain().isEmpty());
+    }
+
+    private User user(Long id) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername("user" + id);
+        return user;
+    }
+}
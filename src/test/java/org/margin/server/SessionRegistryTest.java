@@ -0,0 +1,92 @@
+package org.margin.server;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import org.margin.server.websocket.services.SessionRegistry;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionRegistryTest {
+
+    private final SessionRegistry registry = new SessionRegistry();
+
+    @Test
+    void secondDevice_DoesNotReplaceOrLogOutTheFirst() {
+        Channel phone = new EmbeddedChannel();
+        Channel laptop = new EmbeddedChannel();
+
+        assertTrue(registry.add(42L, phone), "first session brings the user online");
+        assertFalse(registry.add(42L, laptop));
+        assertArrayEquals(new Channel[]{phone, laptop}, registry.sessions(42L));
+
+        assertFalse(registry.remove(42L, phone), "user still has the laptop session");
+        assertArrayEquals(new Channel[]{laptop}, registry.sessions(42L));
+        assertTrue(registry.isOnline(42L));
+
+        assertFalse(registry.remove(42L, phone), "removing twice is a no-op");
+        assertTrue(registry.remove(42L, laptop));
+        assertFalse(registry.isOnline(42L));
+        assertEquals(0, registry.sessions(42L).length);
+    }
+
+    @Test
+    void concurrentAddAndRemove_ReportExactlyOneOnlineAndOfflineTransitionPerUser() throws Exception {
+        int users = 200;
+        int sessionsPerUser = 8;
+        AtomicInteger online = new AtomicInteger();
+        AtomicInteger offline = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch done = new CountDownLatch(users * sessionsPerUser);
+
+        for (int user = 0; user < users; user++) {
+            for (int session = 0; session < sessionsPerUser; session++) {
+                long userId = user;
+                executor.execute(() -> {
+                    Channel channel = new EmbeddedChannel();
+                    if (registry.add(userId, channel)) {
+                        online.incrementAndGet();
+                    }
+                    if (registry.remove(userId, channel)) {
+                        offline.incrementAndGet();
+                    }
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        assertEquals(online.get(), offline.get());
+        assertTrue(online.get() >= users);
+        assertEquals(0, registry.userCount());
+        assertEquals(0, registry.sessionCount());
+    }
+
+    @Test
+    void forEach_VisitsEverySessionWithItsUser() {
+        Channel first = new EmbeddedChannel();
+        Channel second = new EmbeddedChannel();
+        Channel other = new EmbeddedChannel();
+        registry.add(1L, first);
+        registry.add(1L, second);
+        registry.add(Long.MAX_VALUE, other);
+
+        AtomicInteger visits = new AtomicInteger();
+        registry.forEach((userId, channel) -> {
+            visits.incrementAndGet();
+            assertEquals(channel == other ? Long.MAX_VALUE : 1L, userId);
+        });
+
+        assertEquals(3, visits.get());
+        assertEquals(2, registry.userCount());
+        assertEquals(3, registry.channels().size());
+    }
+}
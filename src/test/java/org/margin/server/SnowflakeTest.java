@@ -0,0 +1,40 @@
+package org.margin.server;
+
+import org.junit.jupiter.api.Test;
+import org.margin.server.social.ids.Snowflake;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnowflakeTest {
+
+    @Test
+    void nextId_IsUniqueAndIncreasing() {
+        Snowflake snowflake = Snowflake.forNode(7);
+        Set<Long> seen = new HashSet<>();
+        long previous = -1;
+
+        for (int i = 0; i < 100_000; i++) {
+            long id = snowflake.nextId();
+            assertTrue(id > previous);
+            assertTrue(seen.add(id));
+            previous = id;
+        }
+    }
+
+    @Test
+    void timestampOf_RecoversCreationTime() {
+        long before = System.currentTimeMillis();
+        long id = Snowflake.forNode(1).nextId();
+
+        assertTrue(Snowflake.timestampOf(id) >= before);
+        assertTrue(id >= Snowflake.lowerBoundFor(before));
+    }
+
+    @Test
+    void forNode_RejectsOutOfRangeNode() {
+        assertThrows(IllegalArgumentException.class, () -> Snowflake.forNode(1024));
+    }
+}
@@ -0,0 +1,108 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.services.UserTaskDispatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@Slf4j
+class UserTaskDispatcherTest {
+
+    private final UserTaskDispatcher dispatcher = dispatcher(100_000);
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void tasksForOneUser_RunInSubmissionOrder() throws Exception {
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            assertTrue(dispatcher.submit(1L, () -> seen.add(n)));
+        }
+        dispatcher.submit(1L, done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, seen.get(i));
+        }
+    }
+
+    @Test
+    void slowFederatedPeer_OnlyDelaysItsOwnUser() throws Exception {
+        CountDownLatch peerAnswers = new CountDownLatch(1);
+        // The sender to the slow peer is blocked for the whole run, like a POST that hangs
+        dispatcher.submit(1L, () -> awaitQuietly(peerAnswers));
+        CountDownLatch behindSlowPeer = new CountDownLatch(1);
+        dispatcher.submit(1L, behindSlowPeer::countDown);
+
+        int messages = 5000;
+        long[] latencies = new long[messages];
+        CountDownLatch delivered = new CountDownLatch(messages);
+        for (int i = 0; i < messages; i++) {
+            int n = i;
+            long submitted = System.nanoTime();
+            dispatcher.submit(2L + i % 500, () -> {
+                latencies[n] = System.nanoTime() - submitted;
+                delivered.countDown();
+            });
+        }
+
+        assertTrue(delivered.await(10, TimeUnit.SECONDS), "local delivery stalled behind the slow peer");
+        assertEquals(1, behindSlowPeer.getCount(), "the slow user's own queue must still be waiting");
+        peerAnswers.countDown();
+        assertTrue(behindSlowPeer.await(5, TimeUnit.SECONDS));
+
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        long p99Micros = TimeUnit.NANOSECONDS.toMicros(sorted[(int) (messages * 0.99)]);
+        log.info("Local delivery p99 with a stalled federated peer: {} us", p99Micros);
+        assertTrue(p99Micros < TimeUnit.SECONDS.toMicros(1), "p99 was " + p99Micros + " us");
+    }
+
+    @Test
+    void submit_RefusesOnceUserBacklogIsFull() throws Exception {
+        UserTaskDispatcher bounded = dispatcher(2);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            assertTrue(bounded.submit(1L, () -> awaitQuietly(release)));
+            assertTrue(bounded.submit(1L, () -> { }));
+            assertFalse(bounded.submit(1L, () -> { }));
+            assertTrue(bounded.submit(2L, () -> { }), "other users are unaffected");
+        } finally {
+            release.countDown();
+            bounded.shutdown();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static UserTaskDispatcher dispatcher(int maxPending) {
+        WebSocketConfig config = mock(WebSocketConfig.class);
+        when(config.getDispatchMaxPendingPerUser()).thenReturn(maxPending);
+        return new UserTaskDispatcher(config, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,156 @@
+package org.margin.server;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.users.models.User;
+import org.margin.server.websocket.WebSocketAttributes;
+import org.margin.server.websocket.compression.WebSocketCompression;
+import org.margin.server.websocket.factories.WebSocketMessageFactory;
+import org.margin.server.websocket.models.PresenceDiff;
+import org.margin.server.websocket.models.WebSocketFrameFormat;
+import org.margin.server.websocket.services.SlowConsumerGuard;
+import org.margin.server.websocket.services.WebSocketBroadcaster;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class WebSocketBroadcasterTest {
+
+    @Test
+    void broadcast_EncodesEachFormatOnceAndSharesBuffer() throws Exception {
+        WebSocketBroadcaster broadcaster = broadcaster(config("batched"));
+        Map<WebSocketFrameFormat, WebSocketFrame> encoded = new EnumMap<>(WebSocketFrameFormat.class);
+
+        List<EmbeddedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            channel.attr(WebSocketAttributes.FRAME_FORMAT)
+                    .set(i % 2 == 0 ? WebSocketFrameFormat.JSON : WebSocketFrameFormat.CBOR);
+            channels.add(channel);
+        }
+        EmbeddedChannel excluded = channels.get(0);
+
+        broadcaster.broadcast(new ArrayList<Channel>(channels), excluded, format -> {
+            WebSocketFrame frame = format == WebSocketFrameFormat.JSON
+                    ? new TextWebSocketFrame("presence")
+                    : new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[]{1, 2, 3}));
+            assertNull(encoded.put(format, frame), "format encoded twice");
+            return frame;
+        });
+
+        assertNull(excluded.readOutbound());
+        for (EmbeddedChannel channel : channels.subList(1, channels.size())) {
+            WebSocketFrame written = channel.readOutbound();
+            WebSocketFrame original = encoded.get(channel.attr(WebSocketAttributes.FRAME_FORMAT).get());
+            assertSame(original.content(), written.content().unwrap());
+            written.release();
+        }
+
+        encoded.values().forEach(frame -> assertEquals(0, frame.refCnt()));
+    }
+
+    @Test
+    void broadcast_CoalescedModeDefersFlush() throws Exception {
+        WebSocketBroadcaster broadcaster = broadcaster(config("coalesced"));
+        EmbeddedChannel channel = new EmbeddedChannel();
+
+        broadcaster.broadcast(List.of(channel), null, format -> new TextWebSocketFrame("first"));
+        broadcaster.broadcast(List.of(channel), null, format -> new TextWebSocketFrame("second"));
+        assertNull(channel.readOutbound());
+
+        channel.advanceTimeBy(1, TimeUnit.SECONDS);
+        channel.runPendingTasks();
+
+        TextWebSocketFrame first = channel.readOutbound();
+        TextWebSocketFrame second = channel.readOutbound();
+        assertEquals("first", first.text());
+        assertEquals("second", second.text());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    void broadcastPresence_CoalescesForUnwritableChannelUntilItDrains() throws Exception {
+        WebSocketMessageFactory messageFactory = mock(WebSocketMessageFactory.class);
+        SlowConsumerGuard guard = new SlowConsumerGuard(config("batched"), messageFactory, new SimpleMeterRegistry());
+        WebSocketBroadcaster broadcaster = new WebSocketBroadcaster(config("batched"), guard, new WebSocketCompression(config("batched")));
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        channel.write(Unpooled.wrappedBuffer(new byte[32]));
+        assertFalse(channel.isWritable());
+
+        User alice = user(1L);
+        User bob = user(2L);
+        broadcaster.broadcastPresence(List.of(channel), null, new PresenceDiff(List.of(alice, bob), List.of()),
+                format -> new TextWebSocketFrame("first"));
+        broadcaster.broadcastPresence(List.of(channel), null, new PresenceDiff(List.of(), List.of(bob)),
+                format -> new TextWebSocketFrame("second"));
+
+        assertNull(channel.readOutbound());
+        channel.flush();
+        ByteBuf backlog = channel.readOutbound();
+        assertEquals(32, backlog.readableBytes());
+        assertNull(channel.readOutbound(), "presence frames were queued behind the backlog");
+        backlog.release();
+        assertTrue(channel.isWritable());
+
+        when(messageFactory.createPresenceDiffFrame(any(), any())).thenReturn(new TextWebSocketFrame("merged"));
+        guard.onWritable(channel);
+
+        verify(messageFactory).createPresenceDiffFrame(WebSocketFrameFormat.JSON,
+                new PresenceDiff(List.of(alice), List.of(bob)));
+        TextWebSocketFrame merged = channel.readOutbound();
+        assertEquals("merged", merged.text());
+        merged.release();
+        assertNull(channel.readOutbound());
+    }
+
+    @Test
+    void broadcast_DisconnectsChannelOverBacklogLimit() throws Exception {
+        WebSocketBroadcaster broadcaster = broadcaster(config("batched"));
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        channel.write(Unpooled.wrappedBuffer(new byte[2048]));
+
+        broadcaster.broadcast(List.of(channel), null, format -> new TextWebSocketFrame("chat"));
+
+        assertFalse(channel.isOpen());
+    }
+
+    private WebSocketBroadcaster broadcaster(WebSocketConfig config) {
+        SlowConsumerGuard guard = new SlowConsumerGuard(config, mock(WebSocketMessageFactory.class),
+                new SimpleMeterRegistry());
+        return new WebSocketBroadcaster(config, guard, new WebSocketCompression(config));
+    }
+
+    private User user(Long id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+
+    private WebSocketConfig config(String flushMode) {
+        WebSocketConfig config = mock(WebSocketConfig.class);
+        when(config.getBroadcastFlushMode()).thenReturn(flushMode);
+        when(config.getBroadcastFlushIntervalMs()).thenReturn(500L);
+        when(config.getSlowConsumerPresencePolicy()).thenReturn("coalesce");
+        when(config.getSlowConsumerMaxBacklogBytes()).thenReturn(1024L);
+        return config;
+    }
+}
@@ -0,0 +1,103 @@
+package org.margin.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import org.junit.jupiter.api.Test;
+import org.margin.server.config.WebSocketConfig;
+import org.margin.server.websocket.compression.WebSocketCompression;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class WebSocketCompressionTest {
+
+    private static final String PRESENCE_JSON = ("{\"type\":\"PRESENCE_DIFF\",\"online\":["
+            + "{\"id\":1,\"username\":\"alice\",\"serverDomain\":\"margin.example\",\"role\":\"USER\"},".repeat(20)
+            + "{\"id\":2,\"username\":\"bob\",\"serverDomain\":\"margin.example\",\"role\":\"USER\"}],\"offline\":[]}");
+
+    private final WebSocketCompression compression = new WebSocketCompression(config());
+
+    @Test
+    void precompress_ProducesPerMessageDeflatePayload() throws Exception {
+        TextWebSocketFrame frame = new TextWebSocketFrame(PRESENCE_JSON);
+
+        WebSocketFrame compressed = compression.precompress(frame);
+
+        assertEquals(WebSocketExtension.RSV1, compressed.rsv());
+        assertTrue(compressed.content().readableBytes() < frame.content().readableBytes() / 4,
+                "expected presence JSON to compress at least 4x");
+        assertEquals(PRESENCE_JSON, inflate(compressed.content()));
+        assertNull(compression.precompress(new TextWebSocketFrame("tiny")));
+
+        frame.release();
+        compressed.release();
+    }
+
+    @Test
+    void negotiation_AddsServerNoContextTakeoverAndMarksChannelShared() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(compression.newExtensionHandler());
+
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/ws");
+        request.headers()
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE)
+                .set(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET)
+                .set(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS, "permessage-deflate; client_max_window_bits");
+        channel.writeInbound(request);
+        ((FullHttpRequest) channel.readInbound()).release();
+
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SWITCHING_PROTOCOLS);
+        response.headers()
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE)
+                .set(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET);
+        channel.writeOutbound(response);
+        FullHttpResponse written = channel.readOutbound();
+
+        assertTrue(written.headers().get(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS)
+                .contains("server_no_context_takeover"));
+        assertTrue(compression.isSharedDeflate(channel));
+        written.release();
+
+        // Pre-compressed frames pass through the channel's deflate encoder untouched
+        WebSocketFrame precompressed = compression.precompress(new TextWebSocketFrame(PRESENCE_JSON));
+        ByteBuf expected = precompressed.content().copy();
+        channel.writeOutbound(precompressed);
+        WebSocketFrame sent = channel.readOutbound();
+        assertEquals(expected, sent.content());
+        expected.release();
+        sent.release();
+        channel.finishAndReleaseAll();
+    }
+
+    private static String inflate(ByteBuf content) throws Exception {
+        byte[] input = new byte[content.readableBytes() + 4];
+        content.getBytes(content.readerIndex(), input, 0, content.readableBytes());
+        input[input.length - 2] = (byte) 0xff;
+        input[input.length - 1] = (byte) 0xff;
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(input);
+        byte[] output = new byte[PRESENCE_JSON.length() * 2];
+        int length = inflater.inflate(output);
+        inflater.end();
+        return new String(output, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static WebSocketConfig config() {
+        WebSocketConfig config = mock(WebSocketConfig.class);
+        when(config.isCompressionEnabled()).thenReturn(true);
+        when(config.getCompressionLevel()).thenReturn(6);
+        when(config.getCompressionClientWindowBits()).thenReturn(15);
+        when(config.getCompressionMinSize()).thenReturn(256);
+        when(config.isCompressionServerNoContextTakeover()).thenReturn(true);
+        return config;
+    }
+}
@@ -0,0 +1,80 @@
+package org.margin.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.margin.server.social.models.DirectMessage;
+import org.margin.server.users.UserService;
+import org.margin.server.users.models.User;
+import org.margin.server.websocket.factories.WebSocketMessageFactory;
+import org.margin.server.websocket.models.WebSocketFrameFormat;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class WebSocketMessageFactoryTest {
+
+    private final ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+    private WebSocketMessageFactory messageFactory;
+
+    @BeforeEach
+    void setUp() {
+        User recipient = new User();
+        recipient.setId(2L);
+        recipient.setUsername("recipient");
+        recipient.setEmail("recipient@example.com");
+        recipient.setServerDomain("localhost:8080");
+        recipient.setCreatedAt(LocalDateTime.now());
+
+        UserService userService = mock(UserService.class);
+        when(userService.getById(2L)).thenReturn(recipient);
+
+        messageFactory = new WebSocketMessageFactory(mapper, userService);
+    }
+
+    @Test
+    void createChatMessageFrame_Json_KeepsLegacyEnvelope() throws Exception {
+        WebSocketFrame frame = messageFactory.createChatMessageFrame(WebSocketFrameFormat.JSON, directMessage());
+
+        try {
+            assertInstanceOf(TextWebSocketFrame.class, frame);
+            JsonNode envelope = mapper.readTree(((TextWebSocketFrame) frame).text());
+            assertEquals("SEND_MESSAGE", envelope.get("type").asText());
+            assertTrue(envelope.get("userJson").isTextual());
+            assertTrue(envelope.get("payload").isTextual());
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    void createChatMessageFrame_Cbor_NestsObjectsAndIsSmaller() throws Exception {
+        WebSocketFrame json = messageFactory.createChatMessageFrame(WebSocketFrameFormat.JSON, directMessage());
+        WebSocketFrame cbor = messageFactory.createChatMessageFrame(WebSocketFrameFormat.CBOR, directMessage());
+
+        try {
+            assertInstanceOf(BinaryWebSocketFrame.class, cbor);
+            JsonNode envelope = new CBORMapper().readTree(ByteBufUtil.getBytes(cbor.content()));
+            assertEquals("SEND_MESSAGE", envelope.get("type").asText());
+            assertEquals("recipient", envelope.get("user").get("username").asText());
+            assertEquals("hello there", envelope.get("payload").get("message").asText());
+            assertTrue(cbor.content().readableBytes() < json.content().readableBytes());
+        } finally {
+            json.release();
+            cbor.release();
+        }
+    }
+
+    private DirectMessage directMessage() {
+        return new DirectMessage(1L, 2L, "localhost:8080", null, "hello there");
+    }
+}